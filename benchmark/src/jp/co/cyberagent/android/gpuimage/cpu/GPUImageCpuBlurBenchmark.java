@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blurs of a 12 MP image with {@link GPUImageCpuBlur}, whose time should not
+ * depend on the radius.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GPUImageCpuBlurBenchmark {
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+
+    /** The box radius, and the standard deviation of the Gaussian. */
+    @Param({"2", "10", "50", "100", "200"})
+    public int radius;
+
+    /** The render threads, 0 for one per core. */
+    @Param({"1", "0"})
+    public int threads;
+
+    private GPUImageCpuRenderer mRenderer;
+    private List<GPUImageCpuKernel> mBox;
+    private List<GPUImageCpuKernel> mGaussian;
+    private int[] mPixels;
+
+    @Setup
+    public void setUp() {
+        mRenderer = threads == 0 ? new GPUImageCpuRenderer() : new GPUImageCpuRenderer(threads);
+        mBox = GPUImageCpuBlur.box(radius);
+        mGaussian = GPUImageCpuBlur.gaussian(radius);
+        // Blurring in place is fine, the passes take as long on any content.
+        mPixels = new int[WIDTH * HEIGHT];
+        Random random = new Random(0);
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = random.nextInt() | 0xff000000;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRenderer.release();
+    }
+
+    @Benchmark
+    public int[] box() {
+        mRenderer.render(mBox, mPixels, WIDTH, HEIGHT);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] gaussian() {
+        mRenderer.render(mGaussian, mPixels, WIDTH, HEIGHT);
+        return mPixels;
+    }
+}
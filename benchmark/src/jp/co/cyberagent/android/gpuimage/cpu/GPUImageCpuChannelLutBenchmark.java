@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageBrightnessFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageContrastFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageExposureFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageGammaFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageLevelsFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImagePosterizeFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageRGBFilter;
+
+/**
+ * A chain of per-channel filters on a 12 MP image, compiled into a
+ * {@link GPUImageCpuChannelLut} against the kernels of the filters run one
+ * after the other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GPUImageCpuChannelLutBenchmark {
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 3000;
+
+    /** How many filters of the chain are used, up to all seven. */
+    @Param({"1", "3", "7"})
+    public int filterCount;
+
+    /** The render threads, 0 for one per core. */
+    @Param({"1", "0"})
+    public int threads;
+
+    private GPUImageCpuRenderer mRenderer;
+    private List<GPUImageFilter> mFilters;
+    private List<GPUImageCpuKernel> mFilterKernels;
+    private List<GPUImageCpuKernel> mLut;
+    private int[] mPixels;
+
+    @Setup
+    public void setUp() {
+        mRenderer = threads == 0 ? new GPUImageCpuRenderer() : new GPUImageCpuRenderer(threads);
+
+        GPUImageLevelsFilter levels = new GPUImageLevelsFilter();
+        levels.setMin(0.1f, 1.2f, 0.9f);
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        filters.add(new GPUImageContrastFilter(1.2f));
+        filters.add(new GPUImageBrightnessFilter(0.1f));
+        filters.add(new GPUImageGammaFilter(0.8f));
+        filters.add(new GPUImageExposureFilter(0.3f));
+        filters.add(levels);
+        filters.add(new GPUImageRGBFilter(1.1f, 1f, 0.9f));
+        filters.add(new GPUImagePosterizeFilter(32));
+        mFilters = filters.subList(0, filterCount);
+
+        mFilterKernels = new ArrayList<GPUImageCpuKernel>();
+        for (GPUImageFilter filter : mFilters) {
+            mFilterKernels.addAll(GPUImageCpuKernels.createPasses(filter, WIDTH, HEIGHT));
+        }
+        mLut = Collections.<GPUImageCpuKernel>singletonList(
+                GPUImageCpuChannelLut.compile(mFilters));
+
+        mPixels = new int[WIDTH * HEIGHT];
+        Random random = new Random(0);
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = random.nextInt() | 0xff000000;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRenderer.release();
+    }
+
+    @Benchmark
+    public int[] filterByFilter() {
+        mRenderer.render(mFilterKernels, mPixels, WIDTH, HEIGHT);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] lut() {
+        mRenderer.render(mLut, mPixels, WIDTH, HEIGHT);
+        return mPixels;
+    }
+
+    /** The cost of a parameter change, which recompiles the tables. */
+    @Benchmark
+    public GPUImageCpuChannelLut compile() {
+        return GPUImageCpuChannelLut.compile(mFilters);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.graphics.PointF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dragging a control point of a tone curve: the work done for each move on
+ * the caller's thread, against the list based code it replaced. To keep up
+ * with the display a move has to take well under the 16 ms of a frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ToneCurveSplineBenchmark {
+    @Param({"3", "8", "16"})
+    public int pointCount;
+
+    private final ToneCurveSpline mSpline = new ToneCurveSpline();
+    private final float[] mCurve = new float[ToneCurveSpline.LEVELS];
+    private GPUImageToneCurveFilter mFilter;
+    private PointF[] mPoints;
+    private PointF mDragged;
+    private int mStep;
+
+    @Setup
+    public void setUp() {
+        mPoints = new PointF[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            float x = (float) i / (pointCount - 1);
+            mPoints[i] = new PointF(x, x);
+        }
+        mDragged = mPoints[pointCount / 2];
+        // Never drawn, so its texture update stays queued and each move
+        // only computes the curve.
+        mFilter = new GPUImageToneCurveFilter();
+    }
+
+    private PointF[] drag() {
+        mDragged.y = (mStep++ & 63) / 63f;
+        return mPoints;
+    }
+
+    @Benchmark
+    public float[] spline() {
+        mSpline.evaluate(drag(), mCurve);
+        return mCurve;
+    }
+
+    @Benchmark
+    public Object legacySpline() {
+        return LegacyToneCurve.createSplineCurve(drag());
+    }
+
+    @Benchmark
+    public GPUImageToneCurveFilter filter() {
+        mFilter.setRgbCompositeControlPoints(drag());
+        return mFilter;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.graphics.PointF;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link GPUImageToneCurveFilter} computes the same tone curve
+ * texture, byte for byte, as the list based code {@link ToneCurveSpline}
+ * replaced.
+ */
+public class ToneCurveSplineTest {
+    private static final int CURVE_SETS = 20000;
+
+    @Test
+    public void matchesLegacyCurves() {
+        Random random = new Random(0);
+        GPUImageToneCurveFilter filter = new GPUImageToneCurveFilter();
+        for (int i = 0; i < CURVE_SETS; i++) {
+            PointF[][] curves = new PointF[4][];
+            for (int c = 0; c < 4; c++) {
+                curves[c] = randomPoints(random);
+            }
+            filter.setRedControlPoints(curves[0]);
+            filter.setGreenControlPoints(curves[1]);
+            filter.setBlueControlPoints(curves[2]);
+            filter.setRgbCompositeControlPoints(curves[3]);
+
+            byte[] expected = legacyToneCurve(curves);
+            assertArrayEquals("curves " + Arrays.deepToString(toArrays(curves)), expected,
+                    filter.getToneCurve());
+        }
+    }
+
+    @Test
+    public void matchesLegacyCurvesStartingAfterZero() {
+        // The old code shifts such curves by one level.
+        PointF[] points = new PointF[] {new PointF(0.3f, 0f), new PointF(0.6f, 0.8f),
+                new PointF(1f, 1f)};
+        PointF[] identity = new PointF[] {new PointF(0f, 0f), new PointF(1f, 1f)};
+        GPUImageToneCurveFilter filter = new GPUImageToneCurveFilter();
+        filter.setRedControlPoints(points);
+        filter.setGreenControlPoints(identity);
+        filter.setBlueControlPoints(identity);
+        filter.setRgbCompositeControlPoints(identity);
+        assertArrayEquals(LegacyToneCurve.createToneCurve(points, identity, identity, identity),
+                filter.getToneCurve());
+    }
+
+    @Test
+    public void rejectsCurvesWithoutTwoLevels() {
+        ToneCurveSpline spline = new ToneCurveSpline();
+        float[] curve = new float[ToneCurveSpline.LEVELS];
+        assertFalse(spline.evaluate(null, curve));
+        assertFalse(spline.evaluate(new PointF[] {new PointF(0.5f, 0.5f)}, curve));
+        assertFalse(spline.evaluate(new PointF[] {new PointF(0.5f, 0.2f),
+                new PointF(0.5f, 0.8f)}, curve));
+
+        GPUImageToneCurveFilter filter = new GPUImageToneCurveFilter();
+        filter.setRedControlPoints(new PointF[] {new PointF(0.5f, 0.5f)});
+        assertNull(filter.getToneCurve());
+    }
+
+    /**
+     * Gets the old texture data, or null where the old code failed; it
+     * threw for curves without two distinct levels.
+     */
+    private static byte[] legacyToneCurve(final PointF[][] curves) {
+        try {
+            return LegacyToneCurve.createToneCurve(curves[0], curves[1], curves[2], curves[3]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static PointF[] randomPoints(final Random random) {
+        PointF[] points = new PointF[2 + random.nextInt(15)];
+        for (int i = 0; i < points.length; i++) {
+            // Mostly on whole levels, some between them and some repeated.
+            float x = random.nextInt(4) == 0 ? random.nextFloat() : random.nextInt(256) / 255f;
+            float y = random.nextInt(4) == 0 ? random.nextFloat() : random.nextInt(256) / 255f;
+            points[i] = i > 0 && random.nextInt(16) == 0
+                    ? new PointF(points[i - 1].x, y) : new PointF(x, y);
+        }
+        if (random.nextBoolean()) {
+            points[0] = new PointF(0f, points[0].y);
+            points[points.length - 1] = new PointF(1f, points[points.length - 1].y);
+        }
+        return points;
+    }
+
+    private static float[][] toArrays(final PointF[][] curves) {
+        float[][] arrays = new float[curves.length][];
+        for (int c = 0; c < curves.length; c++) {
+            arrays[c] = new float[curves[c].length * 2];
+            for (int i = 0; i < curves[c].length; i++) {
+                arrays[c][i * 2] = curves[c][i].x;
+                arrays[c][i * 2 + 1] = curves[c][i].y;
+            }
+        }
+        return arrays;
+    }
+}
@@ -0,0 +1,14 @@
+#include <jni.h>
+#include <stdint.h>
+#include <GLES2/gl2.h>
+
+
+/*
+ * glReadPixels into the bound GL_PIXEL_PACK_BUFFER. The Java binding taking a
+ * buffer offset only exists from API 24 on, the C entry point is the same one
+ * GLES 2.0 uses.
+ */
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_filter_GPUImageNativeLibrary_readPixelsToPackBuffer(JNIEnv * env, jclass clazz, jint x, jint y, jint width, jint height, jint format, jint type, jint offset)
+{
+    glReadPixels(x, y, width, height, format, type, (GLvoid *) (intptr_t) offset);
+}
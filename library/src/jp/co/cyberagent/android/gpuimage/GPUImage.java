@@ -51,12 +51,15 @@ import jp.co.cyberagent.android.gpuimage.filter.GPUImageYUVFilter;
  * tasks through a simple interface.
  */
 public class GPUImage {
+    private static final long OFFSCREEN_KEEP_ALIVE_MILLIS = 5000;
+
     private final Context mContext;
     private final GPUImageRenderer mRenderer;
     private GLSurfaceView mGlSurfaceView;
     private GPUImageFilter mFilter;
     private Bitmap mCurrentBitmap;
     private ScaleType mScaleType = ScaleType.CENTER_CROP;
+    private GPUImageOffscreenEngine mOffscreenEngine;
 
     /**
      * Instantiates a new GPUImage object.
@@ -69,6 +72,7 @@ public class GPUImage {
         }
 
         mContext = context;
+        GPUImageFramebufferCache.getInstance().registerComponentCallbacks(context);
         // mFilter = new GPUImageFilter();
         mFilter = new GPUImageYUVFilter();
         mRenderer = new GPUImageRenderer(mFilter);
@@ -94,6 +98,10 @@ public class GPUImage {
      * @param view the GLSurfaceView
      */
     public void setGLSurfaceView(final GLSurfaceView view) {
+        if (mOffscreenEngine != null) {
+            // The filter is about to be initialized on the preview's context.
+            mOffscreenEngine.release();
+        }
         mGlSurfaceView = view;
         mGlSurfaceView.setEGLContextClientVersion(2);
         mGlSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
@@ -171,6 +179,17 @@ public class GPUImage {
         requestRender();
     }
 
+    /**
+     * Compiles filter programs in the background so switching to a warmed
+     * up filter does not stall the preview.
+     *
+     * @param warmUp the warm-up to run on a context shared with the preview
+     */
+    public void setShaderWarmUp(final GPUImageShaderWarmUp warmUp) {
+        mRenderer.setShaderWarmUp(warmUp);
+        requestRender();
+    }
+
     /**
      * Sets the image on which the filter should be applied.
      *
@@ -263,6 +282,15 @@ public class GPUImage {
      * @return the bitmap with filter applied
      */
     public Bitmap getBitmapWithFilterApplied(final Bitmap bitmap) {
+        if (mGlSurfaceView == null) {
+            // Nothing on screen, keep the filter initialized between calls.
+            GPUImageOffscreenEngine engine = getOffscreenEngine();
+            engine.setRotation(Rotation.NORMAL,
+                    mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically());
+            engine.setScaleType(mScaleType);
+            return engine.render(mFilter, bitmap);
+        }
+
         if (mGlSurfaceView != null) {
             mRenderer.deleteImage();
             mRenderer.runOnDraw(new Runnable() {
@@ -306,6 +334,24 @@ public class GPUImage {
         return result;
     }
 
+    /**
+     * Sets the engine used to apply filters while no GLSurfaceView is set.
+     * By default an engine destroying its context after a few idle seconds
+     * is created on first use.
+     *
+     * @param engine the engine
+     */
+    public void setOffscreenEngine(final GPUImageOffscreenEngine engine) {
+        mOffscreenEngine = engine;
+    }
+
+    private GPUImageOffscreenEngine getOffscreenEngine() {
+        if (mOffscreenEngine == null) {
+            mOffscreenEngine = new GPUImageOffscreenEngine(OFFSCREEN_KEEP_ALIVE_MILLIS);
+        }
+        return mOffscreenEngine;
+    }
+
     /**
      * Gets the images for multiple filters on a image. This can be used to
      * quickly get thumbnail images for filters. <br>
@@ -0,0 +1,698 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * Applies a filter to a stream of images. Decoding, rendering and encoding run
+ * as separate stages on their own threads, connected by bounded queues: while
+ * the GPU renders one image the next ones are decoded and the previous ones
+ * compressed. A full queue blocks the stage feeding it, so a slow stage throttles
+ * the others instead of piling up bitmaps.
+ * <br>
+ * Rendering runs on a {@link GPUImageOffscreenEngine}, so the filter must not
+ * be shown on screen at the same time. Use a {@link jp.co.cyberagent.android.gpuimage.filter.GPUImageFilterGroup}
+ * for a chain of filters. Listener methods are called on the stage threads.
+ */
+public class GPUImageBatchProcessor {
+    private static final String TAG = "GPUImageBatchProcessor";
+
+    public static final int STAGE_DECODE = 0;
+    public static final int STAGE_RENDER = 1;
+    public static final int STAGE_ENCODE = 2;
+
+    private static final Item END = new Item(null, null);
+
+    private final GPUImageFilter mFilter;
+    private final Encoder mEncoder;
+    private GPUImageOffscreenEngine mEngine;
+    private boolean mOwnsEngine;
+    private Listener mListener;
+    private int mDecodeThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int mEncodeThreadCount = 1;
+    private int mQueueCapacity = 4;
+
+    private Iterator<? extends Input> mInputs;
+    private BlockingQueue<Item> mDecoded;
+    private BlockingQueue<Item> mRendered;
+    private BlockingQueue<Bitmap> mFreeBitmaps;
+    private StageStats[] mStats;
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+    private final AtomicInteger mRunningDecoders = new AtomicInteger();
+    private final AtomicInteger mRunningThreads = new AtomicInteger();
+    private CountDownLatch mFinished;
+    private volatile boolean mCancelled;
+
+    /**
+     * A source of one image.
+     */
+    public abstract static class Input {
+        /**
+         * Gets a name for the image, used for the output file.
+         *
+         * @return the name without extension
+         */
+        public abstract String getName();
+
+        /**
+         * Decodes the image into an ARGB_8888 bitmap. Called on a decode thread.
+         *
+         * @return the bitmap
+         * @throws IOException if the image cannot be read
+         */
+        public abstract Bitmap decode() throws IOException;
+
+        /**
+         * Tells whether the bitmap returned by {@link #decode()} may be
+         * recycled once rendered.
+         *
+         * @return true if the processor owns the bitmap
+         */
+        public boolean isRecyclable() {
+            return true;
+        }
+
+        public static Input fromFile(final File file) {
+            return new Input() {
+                @Override
+                public String getName() {
+                    return stripExtension(file.getName());
+                }
+
+                @Override
+                public Bitmap decode() throws IOException {
+                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+                    if (bitmap == null) {
+                        throw new IOException("Cannot decode " + file);
+                    }
+                    return bitmap;
+                }
+            };
+        }
+
+        public static Input fromUri(final Context context, final Uri uri) {
+            return new Input() {
+                @Override
+                public String getName() {
+                    return stripExtension(uri.getLastPathSegment());
+                }
+
+                @Override
+                public Bitmap decode() throws IOException {
+                    InputStream input = context.getContentResolver().openInputStream(uri);
+                    if (input == null) {
+                        throw new IOException("Cannot open " + uri);
+                    }
+                    try {
+                        Bitmap bitmap = BitmapFactory.decodeStream(input);
+                        if (bitmap == null) {
+                            throw new IOException("Cannot decode " + uri);
+                        }
+                        return bitmap;
+                    } finally {
+                        input.close();
+                    }
+                }
+            };
+        }
+
+        public static Input fromBitmap(final String name, final Bitmap bitmap) {
+            return new Input() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public Bitmap decode() {
+                    return bitmap;
+                }
+
+                @Override
+                public boolean isRecyclable() {
+                    return false;
+                }
+            };
+        }
+
+        private static String stripExtension(final String name) {
+            if (name == null) {
+                return "image";
+            }
+            int dot = name.lastIndexOf('.');
+            return dot > 0 ? name.substring(0, dot) : name;
+        }
+    }
+
+    /**
+     * Stores a filtered image. Called on an encode thread; the bitmap is only
+     * valid during the call.
+     */
+    public interface Encoder {
+        void encode(Input input, Bitmap bitmap) throws IOException;
+    }
+
+    /**
+     * Compresses images into files of a directory, named after the input.
+     */
+    public static class FileEncoder implements Encoder {
+        private final File mDirectory;
+        private final CompressFormat mFormat;
+        private final int mQuality;
+
+        public FileEncoder(final File directory, final CompressFormat format, final int quality) {
+            mDirectory = directory;
+            mFormat = format;
+            mQuality = quality;
+        }
+
+        @Override
+        public void encode(final Input input, final Bitmap bitmap) throws IOException {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            String extension = mFormat == CompressFormat.PNG ? ".png"
+                    : mFormat == CompressFormat.JPEG ? ".jpg" : ".webp";
+            OutputStream output = new BufferedOutputStream(
+                    new FileOutputStream(new File(mDirectory, input.getName() + extension)));
+            try {
+                if (!bitmap.compress(mFormat, mQuality, output)) {
+                    throw new IOException("Cannot compress " + input.getName());
+                }
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    public interface Listener {
+        void onImageProcessed(Input input);
+
+        void onImageFailed(Input input, Throwable error);
+
+        /**
+         * Called once after the last image, or after cancelling.
+         *
+         * @param cancelled true if {@link #cancel()} stopped the batch
+         */
+        void onFinished(boolean cancelled);
+    }
+
+    /**
+     * Counters of one stage, updated while the batch runs.
+     */
+    public static class StageStats {
+        private final BlockingQueue<?> mQueue;
+        private final int mQueueCapacity;
+        private final long mStartTime;
+        private final AtomicLong mProcessed = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+        private final AtomicLong mBlockedNanos = new AtomicLong();
+        private final AtomicLong mOccupancySum = new AtomicLong();
+        private final AtomicLong mOccupancySamples = new AtomicLong();
+
+        StageStats(final BlockingQueue<?> queue, final int queueCapacity, final long startTime) {
+            mQueue = queue;
+            mQueueCapacity = queueCapacity;
+            mStartTime = startTime;
+        }
+
+        public long getProcessedCount() {
+            return mProcessed.get();
+        }
+
+        public long getFailedCount() {
+            return mFailed.get();
+        }
+
+        /**
+         * Gets the time the stage's threads spent working, summed up.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getBusyTimeNanos() {
+            return mBusyNanos.get();
+        }
+
+        /**
+         * Gets the time the stage's threads waited for the next stage to
+         * take their results, summed up. High values mean backpressure.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getBlockedTimeNanos() {
+            return mBlockedNanos.get();
+        }
+
+        /**
+         * Gets the images processed per second since the batch started.
+         *
+         * @return the throughput
+         */
+        public float getThroughput() {
+            long elapsed = System.nanoTime() - mStartTime;
+            return elapsed > 0 ? mProcessed.get() * 1e9f / elapsed : 0;
+        }
+
+        /**
+         * Gets the number of images waiting for this stage.
+         *
+         * @return the queue size, 0 for the decode stage
+         */
+        public int getQueueSize() {
+            return mQueue != null ? mQueue.size() : 0;
+        }
+
+        public int getQueueCapacity() {
+            return mQueueCapacity;
+        }
+
+        /**
+         * Gets the average fill level of the stage's input queue, sampled
+         * whenever the stage takes an image.
+         *
+         * @return the occupancy from 0 to 1
+         */
+        public float getAverageQueueOccupancy() {
+            long samples = mOccupancySamples.get();
+            if (samples == 0 || mQueueCapacity == 0) {
+                return 0;
+            }
+            return (float) mOccupancySum.get() / samples / mQueueCapacity;
+        }
+
+        void sampleQueue() {
+            mOccupancySum.addAndGet(mQueue.size());
+            mOccupancySamples.incrementAndGet();
+        }
+    }
+
+    private static class Item {
+        final Input mInput;
+        final Bitmap mBitmap;
+
+        Item(final Input input, final Bitmap bitmap) {
+            mInput = input;
+            mBitmap = bitmap;
+        }
+    }
+
+    /**
+     * Creates a processor.
+     *
+     * @param filter the filter applied to every image
+     * @param encoder stores the filtered images
+     */
+    public GPUImageBatchProcessor(final GPUImageFilter filter, final Encoder encoder) {
+        mFilter = filter;
+        mEncoder = encoder;
+    }
+
+    public void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the engine to render on, for example one shared with other work.
+     * By default the processor creates one and releases it when done.
+     *
+     * @param engine the engine
+     */
+    public void setOffscreenEngine(final GPUImageOffscreenEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Sets the number of decode threads. Defaults to one less than the
+     * number of cores.
+     *
+     * @param count the thread count
+     */
+    public void setDecodeThreadCount(final int count) {
+        mDecodeThreadCount = Math.max(1, count);
+    }
+
+    public void setEncodeThreadCount(final int count) {
+        mEncodeThreadCount = Math.max(1, count);
+    }
+
+    /**
+     * Sets how many images may wait between two stages. Every waiting image
+     * holds a full-size bitmap.
+     *
+     * @param capacity the capacity of each queue
+     */
+    public void setQueueCapacity(final int capacity) {
+        mQueueCapacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Starts processing. The inputs are pulled lazily by the decode threads.
+     *
+     * @param inputs the images
+     */
+    public void start(final Iterable<? extends Input> inputs) {
+        start(inputs.iterator());
+    }
+
+    /**
+     * Starts processing. The inputs are pulled lazily by the decode threads.
+     *
+     * @param inputs the images
+     */
+    public synchronized void start(final Iterator<? extends Input> inputs) {
+        if (mFinished != null) {
+            throw new IllegalStateException("The batch was already started");
+        }
+        mInputs = inputs;
+        mDecoded = new ArrayBlockingQueue<Item>(mQueueCapacity);
+        mRendered = new ArrayBlockingQueue<Item>(mQueueCapacity);
+        mFreeBitmaps = new ArrayBlockingQueue<Bitmap>(mQueueCapacity + mEncodeThreadCount);
+        long startTime = System.nanoTime();
+        mStats = new StageStats[] {
+                new StageStats(null, 0, startTime),
+                new StageStats(mDecoded, mQueueCapacity, startTime),
+                new StageStats(mRendered, mQueueCapacity, startTime)
+        };
+        if (mEngine == null) {
+            mEngine = new GPUImageOffscreenEngine();
+            mOwnsEngine = true;
+        }
+
+        mRunningDecoders.set(mDecodeThreadCount);
+        for (int i = 0; i < mDecodeThreadCount; i++) {
+            mThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runDecoder();
+                }
+            }, TAG + "-decode-" + i));
+        }
+        mThreads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runRenderer();
+            }
+        }, TAG + "-render"));
+        for (int i = 0; i < mEncodeThreadCount; i++) {
+            mThreads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runEncoder();
+                }
+            }, TAG + "-encode-" + i));
+        }
+
+        mFinished = new CountDownLatch(1);
+        mRunningThreads.set(mThreads.size());
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the batch. Images already in the pipeline are dropped.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all images are processed or the batch is cancelled.
+     *
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void await() throws InterruptedException {
+        CountDownLatch finished;
+        synchronized (this) {
+            finished = mFinished;
+        }
+        if (finished != null) {
+            finished.await();
+        }
+    }
+
+    /**
+     * Gets the counters of a stage.
+     *
+     * @param stage {@link #STAGE_DECODE}, {@link #STAGE_RENDER} or {@link #STAGE_ENCODE}
+     * @return the counters, or null before the batch started
+     */
+    public synchronized StageStats getStageStats(final int stage) {
+        return mStats != null ? mStats[stage] : null;
+    }
+
+    private Input nextInput() {
+        synchronized (mInputs) {
+            return mInputs.hasNext() ? mInputs.next() : null;
+        }
+    }
+
+    private void runDecoder() {
+        StageStats stats = mStats[STAGE_DECODE];
+        boolean stopped = false;
+        try {
+            Input input;
+            while (!mCancelled && (input = nextInput()) != null) {
+                long start = System.nanoTime();
+                Bitmap bitmap;
+                try {
+                    bitmap = input.decode();
+                } catch (Exception e) {
+                    stats.mFailed.incrementAndGet();
+                    onFailed(input, e);
+                    continue;
+                } catch (OutOfMemoryError e) {
+                    // Likely one oversized image, the next ones may fit.
+                    stats.mFailed.incrementAndGet();
+                    onFailed(input, e);
+                    continue;
+                }
+                long decoded = System.nanoTime();
+                stats.mBusyNanos.addAndGet(decoded - start);
+                stats.mProcessed.incrementAndGet();
+                mDecoded.put(new Item(input, bitmap));
+                stats.mBlockedNanos.addAndGet(System.nanoTime() - decoded);
+            }
+            stopped = true;
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Decoder stopped");
+            stopped = true;
+        } finally {
+            if (!stopped) {
+                abort();
+            }
+            // Whatever stopped the last decoder, the renderer must not wait
+            // for more images. After a cancel it stops by itself.
+            if (mRunningDecoders.decrementAndGet() == 0 && !mCancelled) {
+                try {
+                    mDecoded.put(END);
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Decoder stopped");
+                }
+            }
+            onThreadFinished();
+        }
+    }
+
+    private void runRenderer() {
+        StageStats stats = mStats[STAGE_RENDER];
+        boolean stopped = false;
+        try {
+            while (true) {
+                Item item = mDecoded.take();
+                if (item == END) {
+                    break;
+                }
+                stats.sampleQueue();
+                long start = System.nanoTime();
+                Bitmap result;
+                Bitmap reuse = takeFreeBitmap(item.mBitmap);
+                try {
+                    // Returns only once the engine no longer uses the bitmaps,
+                    // even when interrupted, so they can be recycled.
+                    result = mEngine.render(mFilter, item.mBitmap, reuse);
+                } catch (RuntimeException e) {
+                    stats.mFailed.incrementAndGet();
+                    onFailed(item.mInput, e);
+                    continue;
+                } catch (OutOfMemoryError e) {
+                    // Likely no room for one oversized result, the next ones may fit.
+                    stats.mFailed.incrementAndGet();
+                    onFailed(item.mInput, e);
+                    continue;
+                } finally {
+                    if (item.mInput.isRecyclable()) {
+                        item.mBitmap.recycle();
+                    }
+                }
+                if (result == null) {
+                    if (reuse != null && !mFreeBitmaps.offer(reuse)) {
+                        reuse.recycle();
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    stats.mFailed.incrementAndGet();
+                    onFailed(item.mInput, new IllegalStateException("Rendering failed"));
+                    continue;
+                }
+                long rendered = System.nanoTime();
+                stats.mBusyNanos.addAndGet(rendered - start);
+                stats.mProcessed.incrementAndGet();
+                mRendered.put(new Item(item.mInput, result));
+                stats.mBlockedNanos.addAndGet(System.nanoTime() - rendered);
+            }
+            for (int i = 0; i < mEncodeThreadCount; i++) {
+                mRendered.put(END);
+            }
+            stopped = true;
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Renderer stopped");
+            stopped = true;
+        } finally {
+            if (!stopped) {
+                abort();
+            }
+            onThreadFinished();
+        }
+    }
+
+    private void runEncoder() {
+        StageStats stats = mStats[STAGE_ENCODE];
+        boolean stopped = false;
+        try {
+            while (true) {
+                Item item = mRendered.take();
+                if (item == END) {
+                    break;
+                }
+                stats.sampleQueue();
+                long start = System.nanoTime();
+                try {
+                    mEncoder.encode(item.mInput, item.mBitmap);
+                    stats.mBusyNanos.addAndGet(System.nanoTime() - start);
+                    stats.mProcessed.incrementAndGet();
+                    if (mListener != null) {
+                        mListener.onImageProcessed(item.mInput);
+                    }
+                } catch (Exception e) {
+                    stats.mFailed.incrementAndGet();
+                    onFailed(item.mInput, e);
+                } catch (OutOfMemoryError e) {
+                    stats.mFailed.incrementAndGet();
+                    onFailed(item.mInput, e);
+                } finally {
+                    if (!mFreeBitmaps.offer(item.mBitmap)) {
+                        item.mBitmap.recycle();
+                    }
+                }
+            }
+            stopped = true;
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Encoder stopped");
+            stopped = true;
+        } finally {
+            if (!stopped) {
+                abort();
+            }
+            onThreadFinished();
+        }
+    }
+
+    private Bitmap takeFreeBitmap(final Bitmap input) {
+        Bitmap bitmap = mFreeBitmaps.poll();
+        if (bitmap != null && (bitmap.getWidth() != input.getWidth()
+                || bitmap.getHeight() != input.getHeight())) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stops the other stages after one died of an unexpected error, so
+     * none of them waits forever for it.
+     */
+    private void abort() {
+        Log.w(TAG, "Stage failed, cancelling the batch");
+        cancel();
+    }
+
+    private void onFailed(final Input input, final Throwable error) {
+        Log.w(TAG, "Failed to process " + input.getName(), error);
+        if (mListener != null) {
+            mListener.onImageFailed(input, error);
+        }
+    }
+
+    private void onThreadFinished() {
+        if (mRunningThreads.decrementAndGet() != 0) {
+            return;
+        }
+        if (mOwnsEngine) {
+            mEngine.release();
+        }
+        // Images left behind by a cancel.
+        Item item;
+        while ((item = mDecoded.poll()) != null) {
+            if (item != END && item.mInput.isRecyclable()) {
+                item.mBitmap.recycle();
+            }
+        }
+        while ((item = mRendered.poll()) != null) {
+            if (item != END) {
+                item.mBitmap.recycle();
+            }
+        }
+        Bitmap bitmap;
+        while ((bitmap = mFreeBitmaps.poll()) != null) {
+            bitmap.recycle();
+        }
+        if (mListener != null) {
+            mListener.onFinished(mCancelled);
+        }
+        mFinished.countDown();
+    }
+}
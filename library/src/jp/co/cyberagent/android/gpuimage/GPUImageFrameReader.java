@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageNativeLibrary;
+
+/**
+ * Reads rendered frames back for continuous frame extraction. On OpenGL ES
+ * 3.0 every frame is read into one of several pixel pack buffers without
+ * waiting for the GPU; the oldest buffer is mapped and handed to the consumer
+ * once all buffers are in flight, so the CPU works on an earlier frame while
+ * the GPU renders the current one. On OpenGL ES 2.0 frames are read
+ * synchronously and handed over right away.
+ * <br>
+ * All methods have to be called on the GL thread.
+ */
+public class GPUImageFrameReader {
+
+    public interface FrameConsumer {
+        /**
+         * Called with the RGBA pixels of a frame, rows in the order the
+         * framebuffer was drawn. The buffer is only valid during the call.
+         *
+         * @param pixels the pixels, width * height * 4 bytes
+         * @param width the frame width
+         * @param height the frame height
+         * @param frameIndex the number of the frame, counting from 0
+         */
+        void onFrame(ByteBuffer pixels, int width, int height, long frameIndex);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final FrameConsumer mConsumer;
+    private final boolean mAsync;
+
+    private int[] mPackBuffers;
+    private ByteBuffer mPixels;
+    private long mNextRead;
+    private long mNextDelivery;
+
+    /**
+     * Creates a reader for the current context.
+     *
+     * @param width the width of the frames
+     * @param height the height of the frames
+     * @param bufferCount the number of frames in flight, usually 2 or 3
+     * @param consumer receives the frames
+     */
+    public GPUImageFrameReader(final int width, final int height, final int bufferCount,
+                               final FrameConsumer consumer) {
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = width * height * 4;
+        mConsumer = consumer;
+        mAsync = bufferCount > 1 && supportsPackBuffers();
+
+        if (mAsync) {
+            mPackBuffers = new int[bufferCount];
+            GLES20.glGenBuffers(bufferCount, mPackBuffers, 0);
+            for (int buffer : mPackBuffers) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffer);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mFrameSize, null,
+                        GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            mPixels = ByteBuffer.allocateDirect(mFrameSize).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Reads the frame just drawn into the bound framebuffer. In asynchronous
+     * mode the consumer gets the oldest frame in flight once all buffers are
+     * in use, otherwise it gets this frame.
+     */
+    public void readFrame() {
+        if (!mAsync) {
+            mPixels.rewind();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    mPixels);
+            mPixels.rewind();
+            mConsumer.onFrame(mPixels, mWidth, mHeight, mNextRead);
+            mNextRead++;
+            mNextDelivery = mNextRead;
+            return;
+        }
+
+        if (mNextRead - mNextDelivery == mPackBuffers.length) {
+            deliverOldest();
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER,
+                mPackBuffers[(int) (mNextRead % mPackBuffers.length)]);
+        GPUImageNativeLibrary.readPixelsToPackBuffer(0, 0, mWidth, mHeight, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mNextRead++;
+    }
+
+    /**
+     * Hands all frames still in flight to the consumer, waiting for the GPU
+     * where needed. Call it after the last frame.
+     */
+    public void flush() {
+        deliverFrames(0);
+    }
+
+    /**
+     * Hands the oldest frames in flight to the consumer until at most the
+     * given number are left, for consumers that want frames sooner than
+     * {@link #readFrame()} hands them over. Does nothing in synchronous mode.
+     *
+     * @param maxInFlight the number of frames to leave in flight
+     */
+    public void deliverFrames(final int maxInFlight) {
+        while (mNextRead - mNextDelivery > maxInFlight) {
+            deliverOldest();
+        }
+    }
+
+    /**
+     * Deletes the buffers. Frames still in flight are dropped.
+     */
+    public void destroy() {
+        if (mPackBuffers != null) {
+            GLES20.glDeleteBuffers(mPackBuffers.length, mPackBuffers, 0);
+            mPackBuffers = null;
+        }
+        mPixels = null;
+    }
+
+    /**
+     * Tells whether frames are read through pixel pack buffers.
+     *
+     * @return true for asynchronous readback
+     */
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    private void deliverOldest() {
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER,
+                mPackBuffers[(int) (mNextDelivery % mPackBuffers.length)]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                mFrameSize, GLES30.GL_MAP_READ_BIT);
+        if (pixels != null) {
+            pixels.order(ByteOrder.nativeOrder());
+            mConsumer.onFrame(pixels, mWidth, mHeight, mNextDelivery);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mNextDelivery++;
+    }
+
+    private static boolean supportsPackBuffers() {
+        if (!OpenGlUtils.isGLES3Context()) {
+            return false;
+        }
+        try {
+            // The offset variant of glReadPixels comes from the native library.
+            Class.forName(GPUImageNativeLibrary.class.getName());
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
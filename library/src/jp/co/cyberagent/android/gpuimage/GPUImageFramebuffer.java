@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * A framebuffer with a texture as its color attachment, handed out by
+ * {@link GPUImageFramebufferCache}. Framebuffers are reference counted: the
+ * cache returns them locked once, every additional user calls {@link #lock()}
+ * and every user calls {@link #unlock()} when done. When the count drops to
+ * zero the framebuffer goes back to the cache for reuse.
+ */
+public class GPUImageFramebuffer {
+    private static final int GL_HALF_FLOAT_OES = 0x8D61;
+
+    private final GPUImageFramebufferCache mCache;
+    private final GPUImageFramebufferCache.Pool mPool;
+    private final String mKey;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mInternalFormat;
+    private final int mFormat;
+    private final int mType;
+    private final int mFilter;
+    private final int mFramebufferId;
+    private final int mTextureId;
+    private int mReferenceCount;
+
+    GPUImageFramebuffer(final GPUImageFramebufferCache cache,
+                        final GPUImageFramebufferCache.Pool pool, final String key, final int width, final int height,
+                        final int internalFormat, final int format, final int type,
+                        final int filter) {
+        mCache = cache;
+        mPool = pool;
+        mKey = key;
+        mWidth = width;
+        mHeight = height;
+        mInternalFormat = internalFormat;
+        mFormat = format;
+        mType = type;
+        mFilter = filter;
+
+        int[] ids = new int[1];
+        int[] previousFramebuffer = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, previousFramebuffer, 0);
+
+        GLES20.glGenTextures(1, ids, 0);
+        mTextureId = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, internalFormat, width, height, 0,
+                format, type, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GLES20.glGenFramebuffers(1, ids, 0);
+        mFramebufferId = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFramebuffer[0]);
+    }
+
+    /**
+     * Adds a user of this framebuffer.
+     */
+    public void lock() {
+        synchronized (mCache) {
+            mReferenceCount++;
+        }
+    }
+
+    /**
+     * Removes a user of this framebuffer. The last call returns it to the
+     * cache, so it must not be used afterwards. Has to be called on the thread
+     * owning the framebuffer's OpenGL context.
+     */
+    public void unlock() {
+        synchronized (mCache) {
+            if (mReferenceCount <= 0) {
+                throw new IllegalStateException("Framebuffer unlocked more often than locked");
+            }
+            mReferenceCount--;
+            if (mReferenceCount == 0) {
+                mCache.returnFramebuffer(this);
+            }
+        }
+    }
+
+    /**
+     * Binds the framebuffer as the current render target.
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+    }
+
+    public int getFramebufferId() {
+        return mFramebufferId;
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getInternalFormat() {
+        return mInternalFormat;
+    }
+
+    public int getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Gets the approximate amount of GPU memory used by the texture.
+     *
+     * @return the size in bytes
+     */
+    public long getByteCount() {
+        return (long) mWidth * mHeight * getBytesPerPixel(mFormat, mType);
+    }
+
+    int getReferenceCount() {
+        return mReferenceCount;
+    }
+
+    GPUImageFramebufferCache.Pool getPool() {
+        return mPool;
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    void delete() {
+        GLES20.glDeleteFramebuffers(1, new int[] {mFramebufferId}, 0);
+        GLES20.glDeleteTextures(1, new int[] {mTextureId}, 0);
+    }
+
+    static int getBytesPerPixel(final int format, final int type) {
+        int components;
+        switch (format) {
+            case GLES20.GL_ALPHA:
+            case GLES20.GL_LUMINANCE:
+                components = 1;
+                break;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                components = 2;
+                break;
+            case GLES20.GL_RGB:
+                components = 3;
+                break;
+            default:
+                components = 4;
+                break;
+        }
+        switch (type) {
+            case GLES20.GL_UNSIGNED_SHORT_5_6_5:
+            case GLES20.GL_UNSIGNED_SHORT_4_4_4_4:
+            case GLES20.GL_UNSIGNED_SHORT_5_5_5_1:
+                return 2;
+            case GLES20.GL_FLOAT:
+            case GLES20.GL_INT:
+            case GLES20.GL_UNSIGNED_INT:
+                return components * 4;
+            case GLES30.GL_HALF_FLOAT:
+            case GL_HALF_FLOAT_OES:
+                return components * 2;
+            default:
+                return components;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.GLES20;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Process-wide cache of texture backed framebuffers, keyed by size, internal
+ * format and filtering. Framebuffers that are no longer used stay resident so
+ * the next filter asking for the same kind gets them without a GPU
+ * allocation. Idle framebuffers are evicted least recently used first once
+ * the resident bytes exceed {@link #setMaxBytes(long)}.
+ * <br>
+ * OpenGL objects belong to a context, so the cache keeps a separate pool for
+ * every EGL context and all methods touching framebuffers have to be called
+ * on the thread owning that context. {@link #onTrimMemory(int)} may be called
+ * from any thread; the trim is applied the next time each context uses the
+ * cache. Pools of contexts destroyed without
+ * {@link #releaseCurrentContext()} are dropped once a new context uses the
+ * cache, or right away by {@link #onContextCreated()}.
+ */
+public class GPUImageFramebufferCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static GPUImageFramebufferCache sInstance;
+
+    private final Map<EGLContext, Pool> mPools = new HashMap<EGLContext, Pool>();
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mResidentBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private boolean mCallbacksRegistered;
+    private final int[] mQueryValue = new int[1];
+
+    public static synchronized GPUImageFramebufferCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new GPUImageFramebufferCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Gets an RGBA framebuffer with linear filtering of the given size.
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @return a framebuffer locked once for the caller
+     */
+    public GPUImageFramebuffer fetchFramebuffer(final int width, final int height) {
+        return fetchFramebuffer(width, height, GLES20.GL_RGBA, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, GLES20.GL_LINEAR);
+    }
+
+    /**
+     * Gets a framebuffer for the current EGL context, reusing an idle one with
+     * the same parameters if there is one.
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param internalFormat the internal format of the texture
+     * @param format the pixel format of the texture
+     * @param type the pixel type of the texture
+     * @param filter the min and mag filter of the texture
+     * @return a framebuffer locked once for the caller
+     */
+    public synchronized GPUImageFramebuffer fetchFramebuffer(final int width, final int height,
+            final int internalFormat, final int format, final int type, final int filter) {
+        Pool pool = getCurrentPool();
+        String key = width + "x" + height + ":" + internalFormat + ":" + format + ":" + type
+                + ":" + filter;
+
+        GPUImageFramebuffer framebuffer = null;
+        ArrayDeque<GPUImageFramebuffer> idle = pool.idleByKey.get(key);
+        if (idle != null && !idle.isEmpty()) {
+            framebuffer = idle.pollLast();
+            pool.idle.remove(framebuffer);
+            pool.idleBytes -= framebuffer.getByteCount();
+            mHitCount++;
+        } else {
+            framebuffer = new GPUImageFramebuffer(this, pool, key, width, height,
+                    internalFormat, format, type, filter);
+            pool.residentBytes += framebuffer.getByteCount();
+            mResidentBytes += framebuffer.getByteCount();
+            mMissCount++;
+        }
+        framebuffer.lock();
+        trim(pool);
+        return framebuffer;
+    }
+
+    /**
+     * Called by {@link GPUImageFramebuffer#unlock()} once nobody uses the
+     * framebuffer anymore.
+     */
+    synchronized void returnFramebuffer(final GPUImageFramebuffer framebuffer) {
+        Pool pool = framebuffer.getPool();
+        if (!mPools.containsValue(pool)) {
+            // The context is gone and took the framebuffer with it; its
+            // bytes were dropped along with the pool.
+            return;
+        }
+
+        ArrayDeque<GPUImageFramebuffer> idle = pool.idleByKey.get(framebuffer.getKey());
+        if (idle == null) {
+            idle = new ArrayDeque<GPUImageFramebuffer>();
+            pool.idleByKey.put(framebuffer.getKey(), idle);
+        }
+        idle.addLast(framebuffer);
+        pool.idle.add(framebuffer);
+        pool.idleBytes += framebuffer.getByteCount();
+        trim(pool);
+    }
+
+    /**
+     * Sets the number of bytes framebuffers may use before idle ones get
+     * evicted. Framebuffers in use are never evicted.
+     *
+     * @param maxBytes the byte budget
+     */
+    public synchronized void setMaxBytes(final long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Trims the idle framebuffers of all contexts according to the given
+     * {@link ComponentCallbacks2} trim level. Critical levels drop all idle
+     * framebuffers, lower ones halve the budget for idle framebuffers.
+     *
+     * @param level the trim level passed to onTrimMemory
+     */
+    public synchronized void onTrimMemory(final int level) {
+        long idleBudget;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            idleBudget = 0;
+        } else {
+            idleBudget = mMaxBytes / 2;
+        }
+        for (Pool pool : mPools.values()) {
+            pool.pendingIdleBudget = pool.pendingIdleBudget < 0
+                    ? idleBudget : Math.min(pool.pendingIdleBudget, idleBudget);
+        }
+    }
+
+    /**
+     * Registers this cache for memory trim callbacks of the application.
+     * Calling it more than once has no effect.
+     *
+     * @param context any context of the application
+     */
+    public synchronized void registerComponentCallbacks(final Context context) {
+        if (mCallbacksRegistered) {
+            return;
+        }
+        mCallbacksRegistered = true;
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                GPUImageFramebufferCache.this.onTrimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                GPUImageFramebufferCache.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+
+    /**
+     * Deletes all idle framebuffers of the current EGL context.
+     */
+    public synchronized void purgeIdleFramebuffers() {
+        Pool pool = mPools.get(EGL14.eglGetCurrentContext());
+        if (pool != null) {
+            evict(pool, 0);
+        }
+    }
+
+    /**
+     * Forgets about the pool of the current EGL context without deleting
+     * anything. Call it right after creating a context: the new context may
+     * get the handle of a destroyed one, whose idle framebuffers would
+     * otherwise be handed out.
+     */
+    public synchronized void onContextCreated() {
+        dropPool(mPools.remove(EGL14.eglGetCurrentContext()));
+        dropStalePools();
+    }
+
+    /**
+     * Deletes all idle framebuffers of the current EGL context and forgets
+     * about the context. Call it before destroying a context. Framebuffers
+     * still in use are left to the context.
+     */
+    public synchronized void releaseCurrentContext() {
+        Pool pool = mPools.remove(EGL14.eglGetCurrentContext());
+        if (pool != null) {
+            evict(pool, 0);
+            mResidentBytes -= pool.residentBytes;
+            pool.residentBytes = 0;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Gets the bytes of all framebuffers created by the cache which were not
+     * deleted yet, both in use and idle.
+     *
+     * @return the resident bytes
+     */
+    public synchronized long getResidentBytes() {
+        return mResidentBytes;
+    }
+
+    private Pool getCurrentPool() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        Pool pool = mPools.get(context);
+        if (pool == null) {
+            dropStalePools();
+            pool = new Pool(context);
+            mPools.put(context, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Forgets about pools whose context has been destroyed. Their
+     * framebuffers went with the context, so there is nothing to delete.
+     */
+    private void dropStalePools() {
+        EGLDisplay display = EGL14.eglGetCurrentDisplay();
+        if (display == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        Iterator<Pool> iterator = mPools.values().iterator();
+        while (iterator.hasNext()) {
+            Pool pool = iterator.next();
+            if (!EGL14.eglQueryContext(display, pool.context, EGL14.EGL_CONFIG_ID,
+                    mQueryValue, 0)) {
+                iterator.remove();
+                dropPool(pool);
+            }
+        }
+    }
+
+    private void dropPool(final Pool pool) {
+        if (pool != null) {
+            mResidentBytes -= pool.residentBytes;
+            pool.residentBytes = 0;
+        }
+    }
+
+    private void trim(final Pool pool) {
+        if (pool.pendingIdleBudget >= 0) {
+            evict(pool, pool.pendingIdleBudget);
+            pool.pendingIdleBudget = -1;
+        }
+        if (mResidentBytes > mMaxBytes) {
+            evict(pool, Math.max(0, pool.idleBytes - (mResidentBytes - mMaxBytes)));
+        }
+    }
+
+    private void evict(final Pool pool, final long idleBudget) {
+        Iterator<GPUImageFramebuffer> iterator = pool.idle.iterator();
+        while (pool.idleBytes > idleBudget && iterator.hasNext()) {
+            GPUImageFramebuffer framebuffer = iterator.next();
+            iterator.remove();
+            pool.idleByKey.get(framebuffer.getKey()).remove(framebuffer);
+            pool.idleBytes -= framebuffer.getByteCount();
+            pool.residentBytes -= framebuffer.getByteCount();
+            mResidentBytes -= framebuffer.getByteCount();
+            mEvictionCount++;
+            framebuffer.delete();
+        }
+    }
+
+    static class Pool {
+        final EGLContext context;
+        /** Idle framebuffers, least recently returned first. */
+        final LinkedHashSet<GPUImageFramebuffer> idle = new LinkedHashSet<GPUImageFramebuffer>();
+        final Map<String, ArrayDeque<GPUImageFramebuffer>> idleByKey =
+                new HashMap<String, ArrayDeque<GPUImageFramebuffer>>();
+        long idleBytes;
+        /** Bytes of the framebuffers of this pool, both in use and idle. */
+        long residentBytes;
+        long pendingIdleBudget = -1;
+
+        Pool(EGLContext context) {
+            this.context = context;
+        }
+    }
+}
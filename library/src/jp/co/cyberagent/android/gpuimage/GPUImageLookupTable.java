@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A 3D color lookup table of size N in the layout read by
+ * {@link jp.co.cyberagent.android.gpuimage.filter.GPUImageLookupFilter}: N
+ * tiles of N x N RGBA texels, one per blue level, laid out in rows of
+ * tiles. Red increases across a tile and green down it. The 64 levels
+ * of the usual 512 x 512 images are 8 x 8 tiles.
+ * <br>
+ * Tables are read from .cube and .3dl files line by line straight into the
+ * texture data, which is a direct buffer ready for glTexImage2D, and can be
+ * stored in a {@link GPUImageLookupTableCache} to skip parsing next time.
+ */
+public class GPUImageLookupTable {
+    public static final int MIN_SIZE = 2;
+    public static final int MAX_SIZE = 128;
+
+    private final int mSize;
+    private final int mTilesX;
+    private final int mTilesY;
+    private final ByteBuffer mData;
+
+    /**
+     * Wraps texture data in the layout of {@link #getTilesX(int)} and
+     * {@link #getTilesY(int)}.
+     *
+     * @param size the number of levels per channel
+     * @param data the RGBA texels, row by row from the top
+     */
+    public GPUImageLookupTable(final int size, final ByteBuffer data) {
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        mSize = size;
+        mTilesX = getTilesX(size);
+        mTilesY = getTilesY(size);
+        if (data.remaining() != getWidth() * getHeight() * 4) {
+            throw new IllegalArgumentException("Expected " + getWidth() * getHeight() * 4
+                    + " bytes, got " + data.remaining());
+        }
+        mData = data.slice();
+    }
+
+    /**
+     * Gets the number of tiles per row for a table size, as close to a
+     * square as possible.
+     *
+     * @param size the number of levels per channel
+     * @return the tiles per row
+     */
+    public static int getTilesX(final int size) {
+        return (int) Math.ceil(Math.sqrt(size));
+    }
+
+    /**
+     * Gets the number of rows of tiles for a table size.
+     *
+     * @param size the number of levels per channel
+     * @return the rows of tiles
+     */
+    public static int getTilesY(final int size) {
+        int tilesX = getTilesX(size);
+        return (size + tilesX - 1) / tilesX;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getTilesX() {
+        return mTilesX;
+    }
+
+    public int getTilesY() {
+        return mTilesY;
+    }
+
+    public int getWidth() {
+        return mSize * mTilesX;
+    }
+
+    public int getHeight() {
+        return mSize * mTilesY;
+    }
+
+    /**
+     * Gets the texture data. The buffer is shared, only its position and
+     * limit are independent.
+     *
+     * @return the RGBA texels, row by row from the top
+     */
+    public ByteBuffer getData() {
+        return mData.duplicate();
+    }
+
+    /**
+     * Reads a table from a stream in the format given by the extension of
+     * its name.
+     *
+     * @param input the stream, not closed
+     * @param name the file name ending in .cube or .3dl
+     * @return the table
+     * @throws IOException if the stream cannot be read or parsed
+     */
+    public static GPUImageLookupTable read(final InputStream input, final String name)
+            throws IOException {
+        String lowerCase = name.toLowerCase(Locale.US);
+        if (lowerCase.endsWith(".cube")) {
+            return readCube(input);
+        } else if (lowerCase.endsWith(".3dl")) {
+            return read3dl(input);
+        }
+        throw new IOException("Unknown lookup table format: " + name);
+    }
+
+    /**
+     * Reads a table in the Adobe/Resolve .cube format, with red changing
+     * fastest. Only 3D tables over the domain 0 to 1 are supported.
+     *
+     * @param input the stream, not closed
+     * @return the table
+     * @throws IOException if the stream cannot be read or parsed
+     */
+    public static GPUImageLookupTable readCube(final InputStream input) throws IOException {
+        LineReader reader = new LineReader(input);
+        ByteBuffer data = null;
+        int size = 0;
+        int tilesX = 0;
+        int width = 0;
+        int count = 0;
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        float[] values = new float[3];
+        while (reader.readLine()) {
+            if (reader.isNumber()) {
+                if (data == null) {
+                    throw reader.error("Data before LUT_3D_SIZE");
+                }
+                if (count == size * size * size) {
+                    throw reader.error("Too many entries");
+                }
+                reader.readFloats(values, 3);
+                int tileX = blue % tilesX;
+                int tileY = blue / tilesX;
+                int offset = ((tileY * size + green) * width + tileX * size + red) * 4;
+                data.put(offset, toByte(values[0]));
+                data.put(offset + 1, toByte(values[1]));
+                data.put(offset + 2, toByte(values[2]));
+                data.put(offset + 3, (byte) 0xff);
+                count++;
+                if (++red == size) {
+                    red = 0;
+                    if (++green == size) {
+                        green = 0;
+                        blue++;
+                    }
+                }
+                continue;
+            }
+
+            String keyword = reader.readWord();
+            if (keyword.equals("LUT_3D_SIZE")) {
+                if (data != null) {
+                    throw reader.error("Repeated LUT_3D_SIZE");
+                }
+                size = reader.readInt();
+                checkSize(reader, size);
+                tilesX = getTilesX(size);
+                width = size * tilesX;
+                data = allocate(size);
+            } else if (keyword.equals("LUT_1D_SIZE")) {
+                throw reader.error("1D tables are not supported");
+            } else if (keyword.equals("DOMAIN_MIN") || keyword.equals("DOMAIN_MAX")) {
+                reader.readFloats(values, 3);
+                float expected = keyword.equals("DOMAIN_MIN") ? 0.0f : 1.0f;
+                if (values[0] != expected || values[1] != expected || values[2] != expected) {
+                    throw reader.error("Only the domain 0 to 1 is supported");
+                }
+            } else if (keyword.equals("LUT_3D_INPUT_RANGE")) {
+                reader.readFloats(values, 2);
+                if (values[0] != 0.0f || values[1] != 1.0f) {
+                    throw reader.error("Only the input range 0 to 1 is supported");
+                }
+            }
+            // TITLE and unknown keywords carry nothing needed here.
+        }
+        if (data == null || count != size * size * size) {
+            throw new IOException("Expected " + size * size * size + " entries, got " + count);
+        }
+        return new GPUImageLookupTable(size, data);
+    }
+
+    /**
+     * Reads a table in the Autodesk .3dl format, with blue changing fastest.
+     * The size comes from the input mesh line, or the "Mesh" line of Nuke
+     * files, and the output bit depth from the "Mesh" line or else from the
+     * largest value, rounded up to 10, 12, 14 or 16 bits.
+     *
+     * @param input the stream, not closed
+     * @return the table
+     * @throws IOException if the stream cannot be read or parsed
+     */
+    public static GPUImageLookupTable read3dl(final InputStream input) throws IOException {
+        LineReader reader = new LineReader(input);
+        int size = 0;
+        int outputMax = 0;
+        int[] entries = null;
+        int count = 0;
+        int largest = 0;
+        int[] values = new int[3];
+        while (reader.readLine()) {
+            if (!reader.isNumber()) {
+                String keyword = reader.readWord();
+                if (keyword.equals("Mesh")) {
+                    int inputBits = reader.readInt();
+                    int outputBits = reader.readInt();
+                    if (inputBits < 0 || inputBits > 7 || outputBits < 1 || outputBits > 16) {
+                        throw reader.error("Unsupported mesh");
+                    }
+                    size = (1 << inputBits) + 1;
+                    outputMax = (1 << outputBits) - 1;
+                }
+                // 3DMESH, LUT8, gamma and similar lines change nothing here.
+                continue;
+            }
+
+            int columns = reader.countValues();
+            if (entries == null && columns != 3) {
+                // The input mesh, one value per level.
+                if (size == 0) {
+                    size = columns;
+                    checkSize(reader, size);
+                }
+                continue;
+            }
+            if (columns != 3) {
+                throw reader.error("Expected 3 values");
+            }
+            if (entries == null) {
+                // Without a mesh line the size follows from the entry count.
+                entries = new int[3 * (size > 0 ? size * size * size : 17 * 17 * 17)];
+            }
+            if (count * 3 == entries.length) {
+                if (size > 0) {
+                    throw reader.error("Too many entries");
+                }
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            reader.readInts(values, 3);
+            for (int i = 0; i < 3; i++) {
+                entries[count * 3 + i] = values[i];
+                largest = Math.max(largest, values[i]);
+            }
+            count++;
+        }
+
+        if (size == 0) {
+            size = (int) Math.round(Math.cbrt(count));
+        }
+        checkSize(reader, size);
+        if (count != size * size * size) {
+            throw new IOException("Expected " + size * size * size + " entries, got " + count);
+        }
+        if (outputMax == 0) {
+            int bits = 10;
+            while (bits < 16 && largest > (1 << bits) - 1) {
+                bits += 2;
+            }
+            outputMax = (1 << bits) - 1;
+        }
+
+        int tilesX = getTilesX(size);
+        int width = size * tilesX;
+        ByteBuffer data = allocate(size);
+        float scale = 1.0f / outputMax;
+        int i = 0;
+        for (int red = 0; red < size; red++) {
+            for (int green = 0; green < size; green++) {
+                for (int blue = 0; blue < size; blue++) {
+                    int tileX = blue % tilesX;
+                    int tileY = blue / tilesX;
+                    int offset = ((tileY * size + green) * width + tileX * size + red) * 4;
+                    data.put(offset, toByte(entries[i++] * scale));
+                    data.put(offset + 1, toByte(entries[i++] * scale));
+                    data.put(offset + 2, toByte(entries[i++] * scale));
+                    data.put(offset + 3, (byte) 0xff);
+                }
+            }
+        }
+        return new GPUImageLookupTable(size, data);
+    }
+
+    private static void checkSize(final LineReader reader, final int size) throws IOException {
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw reader.error("Unsupported size " + size);
+        }
+    }
+
+    private static ByteBuffer allocate(final int size) {
+        // Tiles past the last blue level stay empty.
+        return ByteBuffer.allocateDirect(size * getTilesX(size) * size * getTilesY(size) * 4)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    private static byte toByte(final float value) {
+        return (byte) Math.max(0, Math.min(255, Math.round(value * 255.0f)));
+    }
+
+    /**
+     * Reads lines into a reused buffer and parses numbers from it without
+     * creating strings, as tables run to hundreds of thousands of lines.
+     */
+    private static final class LineReader {
+        private final InputStream mInput;
+        private final byte[] mBuffer = new byte[8192];
+        private int mBufferPosition;
+        private int mBufferLimit;
+        private char[] mLine = new char[128];
+        private int mLength;
+        private int mPosition;
+        private int mLineNumber;
+
+        LineReader(final InputStream input) {
+            mInput = input;
+        }
+
+        /**
+         * Reads the next line which is not blank or a comment.
+         *
+         * @return false at the end of the stream
+         */
+        boolean readLine() throws IOException {
+            while (true) {
+                mLength = 0;
+                mPosition = 0;
+                int c = read();
+                if (c < 0) {
+                    return false;
+                }
+                mLineNumber++;
+                boolean comment = false;
+                while (c >= 0 && c != '\n') {
+                    if (c == '#') {
+                        comment = true;
+                    }
+                    if (!comment && c != '\r') {
+                        if (mLength == mLine.length) {
+                            mLine = Arrays.copyOf(mLine, mLength * 2);
+                        }
+                        mLine[mLength++] = (char) c;
+                    }
+                    c = read();
+                }
+                skipSpaces();
+                if (mPosition < mLength) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Checks whether the line starts with a number rather than a keyword,
+         * some of which, like 3DMESH, start with a digit.
+         */
+        boolean isNumber() {
+            for (int i = mPosition; i < mLength && !isSpace(mLine[i]); i++) {
+                char c = mLine[i];
+                if (!((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.'
+                        || c == 'e' || c == 'E')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int countValues() {
+            int count = 0;
+            boolean inValue = false;
+            for (int i = mPosition; i < mLength; i++) {
+                boolean space = isSpace(mLine[i]);
+                if (!space && !inValue) {
+                    count++;
+                }
+                inValue = !space;
+            }
+            return count;
+        }
+
+        String readWord() {
+            int start = mPosition;
+            while (mPosition < mLength && !isSpace(mLine[mPosition])) {
+                mPosition++;
+            }
+            String word = new String(mLine, start, mPosition - start);
+            skipSpaces();
+            return word;
+        }
+
+        void readFloats(final float[] values, final int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                values[i] = readFloat();
+            }
+        }
+
+        void readInts(final int[] values, final int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                values[i] = readInt();
+            }
+        }
+
+        int readInt() throws IOException {
+            float value = readFloat();
+            if (value != (int) value) {
+                throw error("Expected an integer");
+            }
+            return (int) value;
+        }
+
+        float readFloat() throws IOException {
+            if (mPosition == mLength) {
+                throw error("Missing value");
+            }
+            boolean negative = false;
+            char c = mLine[mPosition];
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                mPosition++;
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            int digits = 0;
+            boolean fraction = false;
+            for (; mPosition < mLength; mPosition++) {
+                c = mLine[mPosition];
+                if (c >= '0' && c <= '9') {
+                    // Digits past what a long holds only move the exponent.
+                    if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        if (fraction) {
+                            exponent--;
+                        }
+                    } else if (!fraction) {
+                        exponent++;
+                    }
+                    digits++;
+                } else if (c == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (digits == 0) {
+                throw error("Invalid number");
+            }
+            if (mPosition < mLength && (mLine[mPosition] == 'e' || mLine[mPosition] == 'E')) {
+                mPosition++;
+                exponent += readExponent();
+            }
+            if (mPosition < mLength && !isSpace(mLine[mPosition])) {
+                throw error("Invalid number");
+            }
+            skipSpaces();
+
+            double value = exponent >= 0 ? mantissa * Math.pow(10, exponent)
+                    : mantissa / Math.pow(10, -exponent);
+            return (float) (negative ? -value : value);
+        }
+
+        private int readExponent() throws IOException {
+            boolean negative = false;
+            if (mPosition < mLength && (mLine[mPosition] == '-' || mLine[mPosition] == '+')) {
+                negative = mLine[mPosition] == '-';
+                mPosition++;
+            }
+            int exponent = 0;
+            int start = mPosition;
+            while (mPosition < mLength && mLine[mPosition] >= '0' && mLine[mPosition] <= '9') {
+                exponent = Math.min(exponent * 10 + (mLine[mPosition] - '0'), 1000);
+                mPosition++;
+            }
+            if (mPosition == start) {
+                throw error("Invalid exponent");
+            }
+            return negative ? -exponent : exponent;
+        }
+
+        IOException error(final String message) {
+            return new IOException(message + " in line " + mLineNumber);
+        }
+
+        private void skipSpaces() {
+            while (mPosition < mLength && isSpace(mLine[mPosition])) {
+                mPosition++;
+            }
+        }
+
+        private static boolean isSpace(final char c) {
+            return c == ' ' || c == '\t' || c == ',';
+        }
+
+        private int read() throws IOException {
+            if (mBufferPosition == mBufferLimit) {
+                mBufferLimit = mInput.read(mBuffer, 0, mBuffer.length);
+                mBufferPosition = 0;
+                if (mBufferLimit <= 0) {
+                    mBufferLimit = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mBufferPosition++] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores parsed lookup tables as texture data in files, so loading a table
+ * again only maps the file into memory instead of parsing text. The mapped
+ * buffer goes to glTexImage2D as it is.
+ * <br>
+ * Files are named after a hash of a key which has to change whenever the
+ * table does: the path, length and modification time for files, or a name
+ * and version chosen by the caller for other streams. Loading does file
+ * I/O, so it belongs on a background thread.
+ */
+public class GPUImageLookupTableCache {
+    private static final String TAG = "GPUImageLookupTable";
+    private static final String DIRECTORY_NAME = "gpuimage_luts";
+    private static final int MAGIC = 0x474c5554;
+    private static final int HEADER_SIZE = 8;
+
+    private final File mDirectory;
+
+    /**
+     * Creates a cache in a directory inside the app's cache directory.
+     *
+     * @param context any context of the application
+     */
+    public GPUImageLookupTableCache(final Context context) {
+        this(new File(context.getCacheDir(), DIRECTORY_NAME));
+    }
+
+    /**
+     * Creates a cache storing its files in the given directory.
+     *
+     * @param directory the directory, created if needed
+     */
+    public GPUImageLookupTableCache(final File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Loads a .cube or .3dl file, parsing it only if it has changed since it
+     * was stored.
+     *
+     * @param file the table file
+     * @return the table
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public GPUImageLookupTable load(final File file) throws IOException {
+        String key = file.getAbsolutePath() + '\0' + file.length() + '\0' + file.lastModified();
+        GPUImageLookupTable table = loadStored(key);
+        if (table != null) {
+            return table;
+        }
+        InputStream input = new FileInputStream(file);
+        try {
+            table = GPUImageLookupTable.read(input, file.getName());
+        } finally {
+            input.close();
+        }
+        store(key, table);
+        return table;
+    }
+
+    /**
+     * Loads a table from a stream, for example an asset, parsing it only if
+     * no table has been stored under the key. The stream is not read
+     * otherwise.
+     *
+     * @param key identifies the content of the stream, e.g. the asset name
+     *            and the app version
+     * @param input the stream, not closed
+     * @param name the file name ending in .cube or .3dl
+     * @return the table
+     * @throws IOException if the stream cannot be read or parsed
+     */
+    public GPUImageLookupTable load(final String key, final InputStream input, final String name)
+            throws IOException {
+        GPUImageLookupTable table = loadStored(key);
+        if (table != null) {
+            return table;
+        }
+        table = GPUImageLookupTable.read(input, name);
+        store(key, table);
+        return table;
+    }
+
+    /**
+     * Deletes all stored tables.
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private GPUImageLookupTable loadStored(final String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size <= HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size " + size);
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Invalid header");
+            }
+            int tableSize = buffer.getInt(4);
+            buffer.position(HEADER_SIZE);
+            return new GPUImageLookupTable(tableSize, buffer);
+        } catch (IOException e) {
+            Log.d(TAG, "Parsing again: " + e.getMessage());
+            file.delete();
+            return null;
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Parsing again: " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void store(final String key, final GPUImageLookupTable table) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File file = getFile(key);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(table.getSize()).flip();
+        ByteBuffer data = table.getData();
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            FileChannel channel = output.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // Only the next load gets slower.
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private File getFile(final String key) {
+        return new File(mDirectory, hash(key) + ".lut");
+    }
+
+    private static String hash(final String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * Renders bitmaps offscreen on a long-lived {@link PixelBuffer}. The context,
+ * the filter's programs and framebuffers and the input texture stay alive
+ * between jobs; the pbuffer surface and the input texture are only recreated
+ * when the image size changes.
+ * <br>
+ * Jobs run in order on the engine's own thread. A filter passed to the engine
+ * is initialized on the engine's context and stays so until another filter is
+ * used or the engine is released, so it must not be shown on screen at the
+ * same time. After the keep-alive time without jobs the context is destroyed;
+ * the next job creates a new one.
+ */
+public class GPUImageOffscreenEngine {
+    private static final String TAG = "GPUImageOffscreenEngine";
+
+    private final LinkedBlockingQueue<FutureTask<?>> mJobs = new LinkedBlockingQueue<FutureTask<?>>();
+    private WorkerThread mThread;
+    private final long mKeepAliveMillis;
+
+    private volatile Rotation mRotation = Rotation.NORMAL;
+    private volatile boolean mFlipHorizontal;
+    private volatile boolean mFlipVertical;
+    private volatile GPUImage.ScaleType mScaleType = GPUImage.ScaleType.CENTER_CROP;
+    private volatile long mTileMemoryBudget = GPUImageOffscreenSurface.DEFAULT_TILE_MEMORY_BUDGET;
+
+    /**
+     * Creates an engine keeping its context until {@link #release()}.
+     */
+    public GPUImageOffscreenEngine() {
+        this(0);
+    }
+
+    /**
+     * Creates an engine destroying its context after being idle for a while.
+     *
+     * @param keepAliveMillis the idle time in milliseconds, 0 to keep the
+     *                        context until {@link #release()}
+     */
+    public GPUImageOffscreenEngine(final long keepAliveMillis) {
+        mKeepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Sets the rotation and flipping used for jobs submitted afterwards.
+     *
+     * @param rotation the rotation
+     * @param flipHorizontal true to flip horizontally
+     * @param flipVertical true to flip vertically
+     */
+    public void setRotation(final Rotation rotation, final boolean flipHorizontal,
+                            final boolean flipVertical) {
+        mRotation = rotation;
+        mFlipHorizontal = flipHorizontal;
+        mFlipVertical = flipVertical;
+    }
+
+    /**
+     * Limits the GPU memory used to render one image. Images larger than
+     * the budget or the maximum texture size are rendered in tiles, padded
+     * by the filter's {@link GPUImageFilter#getSamplingRadius()}. Tiled
+     * images cannot be rotated or flipped. Defaults to 64 MB.
+     *
+     * @param bytes the budget in bytes
+     */
+    public void setTileMemoryBudget(final long bytes) {
+        mTileMemoryBudget = bytes;
+    }
+
+    /**
+     * Sets the scale type used for jobs submitted afterwards.
+     *
+     * @param scaleType the scale type
+     */
+    public void setScaleType(final GPUImage.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    /**
+     * Applies a filter to a bitmap and waits for the result.
+     *
+     * @param filter the filter, not shown on screen
+     * @param bitmap the input, it is not recycled
+     * @return the filtered bitmap, of the input's size
+     */
+    public Bitmap render(final GPUImageFilter filter, final Bitmap bitmap) {
+        return render(filter, bitmap, null);
+    }
+
+    /**
+     * Applies a filter to a bitmap and waits for the result.
+     *
+     * @param filter the filter, not shown on screen
+     * @param bitmap the input, it is not recycled
+     * @param reuse a mutable ARGB_8888 bitmap of the input's size to draw
+     *              into, or null to create a new one
+     * @return the filtered bitmap, or null if the waiting thread was
+     *         interrupted; the job then no longer uses the bitmaps, so they
+     *         may be recycled
+     */
+    public Bitmap render(final GPUImageFilter filter, final Bitmap bitmap, final Bitmap reuse) {
+        Job job = new Job(filter, bitmap, reuse);
+        if (isWorkerThread()) {
+            // Called from a job, run it right away instead of waiting for ourselves.
+            return job.call();
+        }
+        try {
+            return submit(job).get();
+        } catch (InterruptedException e) {
+            job.cancelAndWait();
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues a filter job without waiting for it.
+     *
+     * @param filter the filter, not shown on screen
+     * @param bitmap the input, it must not be recycled before the job ran
+     * @param reuse a bitmap to draw into, or null to create a new one
+     * @return a future completing with the filtered bitmap
+     */
+    public Future<Bitmap> submit(final GPUImageFilter filter, final Bitmap bitmap,
+                                 final Bitmap reuse) {
+        return submit(new Job(filter, bitmap, reuse));
+    }
+
+    /**
+     * Destroys the context once the queued jobs have run and waits for it,
+     * unless called from a job. The engine can still be used; the next job
+     * creates a new context.
+     */
+    public void release() {
+        WorkerThread thread;
+        synchronized (this) {
+            thread = mThread;
+            if (thread == null) {
+                return;
+            }
+            thread.quit();
+        }
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized <T> Future<T> submit(final Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        mJobs.add(task);
+        if (mThread == null) {
+            mThread = new WorkerThread();
+            mThread.start();
+        }
+        return task;
+    }
+
+    private synchronized boolean isWorkerThread() {
+        return mThread != null && mThread == Thread.currentThread();
+    }
+
+    private synchronized boolean retire(final WorkerThread thread) {
+        if (!mJobs.isEmpty()) {
+            return false;
+        }
+        // Released under the lock, so a job submitted meanwhile starts a new
+        // thread only once the filter is destroyed on this one's context.
+        thread.mSurface.release();
+        mThread = null;
+        return true;
+    }
+
+    private class Job implements Callable<Bitmap> {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final AtomicInteger mState = new AtomicInteger(QUEUED);
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final GPUImageFilter mFilter;
+        private final Bitmap mBitmap;
+        private final Bitmap mReuse;
+        private final Rotation mRotation;
+        private final boolean mFlipHorizontal;
+        private final boolean mFlipVertical;
+        private final GPUImage.ScaleType mScaleType;
+
+        Job(final GPUImageFilter filter, final Bitmap bitmap, final Bitmap reuse) {
+            mFilter = filter;
+            mBitmap = bitmap;
+            mReuse = reuse;
+            mRotation = GPUImageOffscreenEngine.this.mRotation;
+            mFlipHorizontal = GPUImageOffscreenEngine.this.mFlipHorizontal;
+            mFlipVertical = GPUImageOffscreenEngine.this.mFlipVertical;
+            mScaleType = GPUImageOffscreenEngine.this.mScaleType;
+        }
+
+        @Override
+        public Bitmap call() {
+            if (!mState.compareAndSet(QUEUED, RUNNING)) {
+                return null;
+            }
+            try {
+                WorkerThread thread = (WorkerThread) Thread.currentThread();
+                return thread.render(this);
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        /**
+         * Keeps the job from starting, or waits until it has finished if it
+         * already started, so the caller can recycle the bitmaps.
+         */
+        void cancelAndWait() {
+            if (mState.compareAndSet(QUEUED, CANCELLED)) {
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class WorkerThread extends Thread {
+        private final GPUImageOffscreenSurface mSurface = new GPUImageOffscreenSurface();
+        private volatile boolean mQuit;
+
+        WorkerThread() {
+            super(TAG);
+        }
+
+        void quit() {
+            mQuit = true;
+            // Wake the thread up if it waits for jobs.
+            mJobs.add(new FutureTask<Object>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    FutureTask<?> job;
+                    long keepAlive = mKeepAliveMillis;
+                    if (keepAlive > 0) {
+                        job = mJobs.poll(keepAlive, TimeUnit.MILLISECONDS);
+                    } else {
+                        job = mJobs.take();
+                    }
+                    if (job != null) {
+                        job.run();
+                    }
+                    if ((job == null || mQuit) && retire(this)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Interrupted");
+            } finally {
+                synchronized (GPUImageOffscreenEngine.this) {
+                    mSurface.release();
+                    if (mThread == this) {
+                        // Stopped without retiring, hand the queued jobs to a new thread.
+                        mThread = null;
+                        if (!mJobs.isEmpty()) {
+                            mThread = new WorkerThread();
+                            mThread.start();
+                        }
+                    }
+                }
+            }
+        }
+
+        Bitmap render(final Job job) {
+            mSurface.setTileMemoryBudget(mTileMemoryBudget);
+            return mSurface.render(job.mFilter, job.mBitmap, job.mReuse, job.mRotation,
+                    job.mFlipHorizontal, job.mFlipVertical, job.mScaleType);
+        }
+    }
+}
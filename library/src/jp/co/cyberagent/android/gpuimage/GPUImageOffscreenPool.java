@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * Renders bitmaps offscreen on several threads, each owning its own context
+ * and with it its own program and framebuffer caches. Every worker has a
+ * queue of jobs ordered by priority; an idle worker steals the most urgent
+ * job from the longest queue of the others.
+ * <br>
+ * Filter instances hold per-context state and are never shared between
+ * workers. Jobs describe their filter with a {@link FilterFactory}; each
+ * worker creates its own instance per factory and keeps it for later jobs.
+ * <br>
+ * Between the minimum and the maximum number of workers the pool grows while
+ * the measured job latency exceeds the target latency and jobs are waiting,
+ * and shrinks by letting workers idle for the keep-alive time exit.
+ */
+public class GPUImageOffscreenPool {
+    private static final String TAG = "GPUImageOffscreenPool";
+    private static final int MAX_FILTERS_PER_WORKER = 8;
+
+    /**
+     * Creates the filter of a job. Called once per worker, so every call has
+     * to return a new instance configured the same way.
+     */
+    public interface FilterFactory {
+        GPUImageFilter createFilter();
+    }
+
+    private final Object mLock = new Object();
+    private final List<Worker> mWorkers = new ArrayList<Worker>();
+    private final int mMinWorkers;
+    private final int mMaxWorkers;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mStolenCount = new AtomicLong();
+    private long mTargetLatencyNanos = 500000000L;
+    private long mKeepAliveMillis = 10000;
+    private long mAverageLatencyNanos;
+    private int mNextWorkerId;
+    private boolean mShutdown;
+
+    private volatile Rotation mRotation = Rotation.NORMAL;
+    private volatile boolean mFlipHorizontal;
+    private volatile boolean mFlipVertical;
+    private volatile GPUImage.ScaleType mScaleType = GPUImage.ScaleType.CENTER_CROP;
+    private volatile long mTileMemoryBudget = GPUImageOffscreenSurface.DEFAULT_TILE_MEMORY_BUDGET;
+
+    /**
+     * Creates a pool with a fixed number of workers.
+     *
+     * @param workers the number of workers
+     */
+    public GPUImageOffscreenPool(final int workers) {
+        this(workers, workers);
+    }
+
+    /**
+     * Creates a pool sizing itself between two worker counts.
+     *
+     * @param minWorkers the workers kept when idle, may be 0
+     * @param maxWorkers the most workers, each with its own context
+     */
+    public GPUImageOffscreenPool(final int minWorkers, final int maxWorkers) {
+        mMinWorkers = Math.max(0, minWorkers);
+        mMaxWorkers = Math.max(1, Math.max(minWorkers, maxWorkers));
+    }
+
+    /**
+     * Sets the job latency, from submitting to the result, above which the
+     * pool adds workers.
+     *
+     * @param millis the latency in milliseconds
+     */
+    public void setTargetLatency(final long millis) {
+        synchronized (mLock) {
+            mTargetLatencyNanos = millis * 1000000L;
+        }
+    }
+
+    /**
+     * Sets how long a worker above the minimum count waits for jobs before
+     * it destroys its context and exits.
+     *
+     * @param millis the time in milliseconds
+     */
+    public void setKeepAliveTime(final long millis) {
+        synchronized (mLock) {
+            mKeepAliveMillis = Math.max(1, millis);
+        }
+    }
+
+    /**
+     * Sets the rotation and flipping used for jobs submitted afterwards.
+     *
+     * @param rotation the rotation
+     * @param flipHorizontal true to flip horizontally
+     * @param flipVertical true to flip vertically
+     */
+    public void setRotation(final Rotation rotation, final boolean flipHorizontal,
+                            final boolean flipVertical) {
+        mRotation = rotation;
+        mFlipHorizontal = flipHorizontal;
+        mFlipVertical = flipVertical;
+    }
+
+    /**
+     * Limits the GPU memory used to render one image. Images larger than
+     * the budget or the maximum texture size are rendered in tiles, padded
+     * by the filter's {@link GPUImageFilter#getSamplingRadius()}. Tiled
+     * images cannot be rotated or flipped. Defaults to 64 MB.
+     *
+     * @param bytes the budget in bytes
+     */
+    public void setTileMemoryBudget(final long bytes) {
+        mTileMemoryBudget = bytes;
+    }
+
+    /**
+     * Sets the scale type used for jobs submitted afterwards.
+     *
+     * @param scaleType the scale type
+     */
+    public void setScaleType(final GPUImage.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    /**
+     * Queues a filter job. Cancelling the returned future removes a job that
+     * has not started yet.
+     *
+     * @param factory creates the filter on the worker running the job
+     * @param bitmap the input, it must not be recycled before the job ran
+     * @param reuse a bitmap of the input's size to draw into, or null
+     * @param priority the priority, higher runs first
+     * @return a future completing with the filtered bitmap
+     */
+    public Future<Bitmap> submit(final FilterFactory factory, final Bitmap bitmap,
+                                 final Bitmap reuse, final int priority) {
+        Job job = new Job(factory, bitmap, reuse, priority);
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new IllegalStateException("The pool is shut down");
+            }
+            if (shouldGrow()) {
+                startWorker();
+            }
+            Worker target = mWorkers.get(0);
+            for (Worker worker : mWorkers) {
+                if (worker.mQueue.size() < target.mQueue.size()) {
+                    target = worker;
+                }
+            }
+            target.mQueue.add(job);
+            mLock.notifyAll();
+        }
+        return job;
+    }
+
+    public Future<Bitmap> submit(final FilterFactory factory, final Bitmap bitmap,
+                                 final int priority) {
+        return submit(factory, bitmap, null, priority);
+    }
+
+    /**
+     * Cancels all queued jobs and stops the workers once their current job
+     * is done. Each worker destroys its context.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (Worker worker : mWorkers) {
+                Job job;
+                while ((job = worker.mQueue.poll()) != null) {
+                    job.cancel(false);
+                }
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    public int getWorkerCount() {
+        synchronized (mLock) {
+            return mWorkers.size();
+        }
+    }
+
+    public int getQueuedCount() {
+        synchronized (mLock) {
+            return queuedCount();
+        }
+    }
+
+    /**
+     * Gets the moving average of the job latency, from submitting to the
+     * result.
+     *
+     * @return the latency in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        synchronized (mLock) {
+            return mAverageLatencyNanos;
+        }
+    }
+
+    /**
+     * Gets how many jobs ran on another worker than the one they were
+     * queued on.
+     *
+     * @return the number of stolen jobs
+     */
+    public long getStolenCount() {
+        return mStolenCount.get();
+    }
+
+    private boolean shouldGrow() {
+        int workers = mWorkers.size();
+        if (workers < Math.max(1, mMinWorkers)) {
+            return true;
+        }
+        return workers < mMaxWorkers && queuedCount() >= workers
+                && mAverageLatencyNanos > mTargetLatencyNanos;
+    }
+
+    private void startWorker() {
+        Worker worker = new Worker(mNextWorkerId++);
+        mWorkers.add(worker);
+        worker.start();
+    }
+
+    /**
+     * Removes an exiting worker and moves the jobs still queued on it to the
+     * others, starting a new worker if it was the last one. Has to be called
+     * with the lock held.
+     */
+    private void removeWorker(final Worker worker) {
+        mWorkers.remove(worker);
+        Job job;
+        while ((job = worker.mQueue.poll()) != null) {
+            if (mShutdown) {
+                job.cancel(false);
+                continue;
+            }
+            if (mWorkers.isEmpty()) {
+                startWorker();
+            }
+            Worker target = mWorkers.get(0);
+            for (Worker other : mWorkers) {
+                if (other.mQueue.size() < target.mQueue.size()) {
+                    target = other;
+                }
+            }
+            target.mQueue.add(job);
+        }
+        mLock.notifyAll();
+    }
+
+    private int queuedCount() {
+        int count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.mQueue.size();
+        }
+        return count;
+    }
+
+    private void onJobDone(final Job job) {
+        long latency = System.nanoTime() - job.mSubmitTime;
+        synchronized (mLock) {
+            mAverageLatencyNanos = mAverageLatencyNanos == 0 ? latency
+                    : mAverageLatencyNanos + (latency - mAverageLatencyNanos) / 8;
+        }
+    }
+
+    private class Job extends FutureTask<Bitmap> implements Comparable<Job> {
+        private final FilterFactory mFactory;
+        private final Bitmap mBitmap;
+        private final Bitmap mReuse;
+        private final int mPriority;
+        private final long mSequence;
+        private final long mSubmitTime;
+        private final Rotation mRotation;
+        private final boolean mFlipHorizontal;
+        private final boolean mFlipVertical;
+        private final GPUImage.ScaleType mScaleType;
+
+        Job(final FilterFactory factory, final Bitmap bitmap, final Bitmap reuse,
+            final int priority) {
+            super(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return ((Worker) Thread.currentThread()).render();
+                }
+            });
+            mFactory = factory;
+            mBitmap = bitmap;
+            mReuse = reuse;
+            mPriority = priority;
+            mSequence = GPUImageOffscreenPool.this.mSequence.getAndIncrement();
+            mSubmitTime = System.nanoTime();
+            mRotation = GPUImageOffscreenPool.this.mRotation;
+            mFlipHorizontal = GPUImageOffscreenPool.this.mFlipHorizontal;
+            mFlipVertical = GPUImageOffscreenPool.this.mFlipVertical;
+            mScaleType = GPUImageOffscreenPool.this.mScaleType;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                synchronized (mLock) {
+                    for (Worker worker : mWorkers) {
+                        if (worker.mQueue.remove(this)) {
+                            break;
+                        }
+                    }
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(final Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private class Worker extends Thread {
+        final PriorityBlockingQueue<Job> mQueue = new PriorityBlockingQueue<Job>();
+        private final GPUImageOffscreenSurface mSurface = new GPUImageOffscreenSurface();
+        private final Map<FilterFactory, GPUImageFilter> mFilters =
+                new LinkedHashMap<FilterFactory, GPUImageFilter>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<FilterFactory, GPUImageFilter> eldest) {
+                        if (size() <= MAX_FILTERS_PER_WORKER) {
+                            return false;
+                        }
+                        // Called from render(), so on this worker's context.
+                        destroyFilter(eldest.getValue());
+                        return true;
+                    }
+                };
+        private Job mCurrentJob;
+
+        Worker(final int id) {
+            super(TAG + "-" + id);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Job job;
+                while ((job = nextJob()) != null) {
+                    mCurrentJob = job;
+                    job.run();
+                    mCurrentJob = null;
+                    // Cancelling a running job interrupts the thread, which
+                    // must not end the wait for the next job.
+                    Thread.interrupted();
+                    if (!job.isCancelled()) {
+                        onJobDone(job);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Interrupted");
+            } finally {
+                for (GPUImageFilter filter : mFilters.values()) {
+                    destroyFilter(filter);
+                }
+                mFilters.clear();
+                mSurface.release();
+                synchronized (mLock) {
+                    removeWorker(this);
+                }
+            }
+        }
+
+        Bitmap render() {
+            Job job = mCurrentJob;
+            GPUImageFilter filter = mFilters.get(job.mFactory);
+            if (filter == null) {
+                filter = job.mFactory.createFilter();
+                mFilters.put(job.mFactory, filter);
+            }
+            mSurface.setTileMemoryBudget(mTileMemoryBudget);
+            return mSurface.render(filter, job.mBitmap, job.mReuse, job.mRotation,
+                    job.mFlipHorizontal, job.mFlipVertical, job.mScaleType);
+        }
+
+        /**
+         * Destroys a filter dropped from the cache, releasing its programs and
+         * framebuffers. The surface's current filter is destroyed by the
+         * surface when it switches filters or is released.
+         */
+        private void destroyFilter(final GPUImageFilter filter) {
+            if (filter != mSurface.getFilter() && filter.isInitialized()) {
+                filter.destroy();
+            }
+        }
+
+        private Job nextJob() throws InterruptedException {
+            while (true) {
+                Job job = mQueue.poll();
+                if (job == null) {
+                    job = steal();
+                }
+                if (job != null) {
+                    return job;
+                }
+                synchronized (mLock) {
+                    if (mShutdown) {
+                        return null;
+                    }
+                    if (queuedCount() > 0) {
+                        continue;
+                    }
+                    long keepAlive = mKeepAliveMillis;
+                    long start = System.currentTimeMillis();
+                    mLock.wait(keepAlive);
+                    if (System.currentTimeMillis() - start >= keepAlive
+                            && queuedCount() == 0 && mWorkers.size() > mMinWorkers) {
+                        removeWorker(this);
+                        return null;
+                    }
+                }
+            }
+        }
+
+        private Job steal() {
+            Worker victim = null;
+            synchronized (mLock) {
+                for (Worker worker : mWorkers) {
+                    if (worker != this && (victim == null
+                            || worker.mQueue.size() > victim.mQueue.size())) {
+                        victim = worker;
+                    }
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            Job job = victim.mQueue.poll();
+            if (job != null) {
+                mStolenCount.incrementAndGet();
+            }
+            return job;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * The GL state of an offscreen render thread: a {@link PixelBuffer} created on
+ * the first render, the renderer drawing into it and the input texture. Only
+ * used from the thread that rendered first.
+ * <br>
+ * Images larger than the maximum texture size or the tile memory budget are
+ * rendered in tiles. Each tile is padded by the filter's sampling radius so
+ * the filter sees the same neighbourhood as for the whole image, and only the
+ * inner part of each tile is copied into the output.
+ */
+class GPUImageOffscreenSurface {
+    /** Most devices support textures of this size, used before the limits are known. */
+    private static final int INITIAL_SIZE = 2048;
+    /** Input texture, surface and two intermediate framebuffers of a group. */
+    private static final int BYTES_PER_TILE_PIXEL = 16;
+    static final long DEFAULT_TILE_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    private PixelBuffer mBuffer;
+    private GPUImageRenderer mRenderer;
+    private GPUImageFilter mFilter;
+    private int mImageWidth;
+    private int mImageHeight;
+    private int mMaxTileSize;
+    private long mTileMemoryBudget = DEFAULT_TILE_MEMORY_BUDGET;
+
+    /**
+     * Limits the GPU memory a single tile may take; larger images are split
+     * into tiles.
+     *
+     * @param bytes the budget in bytes
+     */
+    void setTileMemoryBudget(final long bytes) {
+        mTileMemoryBudget = bytes;
+    }
+
+    Bitmap render(final GPUImageFilter filter, final Bitmap bitmap, final Bitmap reuse,
+                  final Rotation rotation, final boolean flipHorizontal,
+                  final boolean flipVertical, final GPUImage.ScaleType scaleType) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (mBuffer == null) {
+            mFilter = filter;
+            mRenderer = new GPUImageRenderer(mFilter);
+            mBuffer = new PixelBuffer(Math.min(width, INITIAL_SIZE), Math.min(height, INITIAL_SIZE));
+            mBuffer.setRenderer(mRenderer);
+        } else if (filter != mFilter) {
+            // Programs of the previous filter stay in the program cache.
+            mFilter = filter;
+            mRenderer.setFilter(mFilter);
+        }
+
+        int tileSize = getTileSize();
+        if (width <= tileSize && height <= tileSize) {
+            return draw(bitmap, reuse, rotation, flipHorizontal, flipVertical, scaleType);
+        }
+        if (rotation != Rotation.NORMAL || flipHorizontal || flipVertical) {
+            throw new IllegalArgumentException("Tiled images cannot be rotated or flipped");
+        }
+        int radius = filter.getSamplingRadius();
+        if (radius < 0) {
+            throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                    + " cannot render " + width + "x" + height + " images in tiles");
+        }
+        return drawTiles(bitmap, reuse, tileSize, radius);
+    }
+
+    GPUImageFilter getFilter() {
+        return mFilter;
+    }
+
+    void release() {
+        if (mBuffer == null) {
+            return;
+        }
+        mFilter.destroy();
+        mRenderer.deleteImage();
+        mBuffer.destroy();
+        mBuffer = null;
+        mRenderer = null;
+        mFilter = null;
+        mImageWidth = 0;
+        mImageHeight = 0;
+    }
+
+    private Bitmap draw(final Bitmap bitmap, final Bitmap reuse, final Rotation rotation,
+                        final boolean flipHorizontal, final boolean flipVertical,
+                        final GPUImage.ScaleType scaleType) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        mBuffer.setSize(width, height);
+        mRenderer.setScaleType(scaleType);
+        mRenderer.setRotation(rotation, flipHorizontal, flipVertical);
+        if (mImageWidth != 0 && (mImageWidth != width || mImageHeight != height)) {
+            // The input texture is only updated in place for the same size.
+            mRenderer.deleteImage();
+        }
+        mImageWidth = width;
+        mImageHeight = height;
+        mRenderer.setImageBitmap(bitmap, false);
+        return mBuffer.getBitmap(reuse);
+    }
+
+    private Bitmap drawTiles(final Bitmap bitmap, final Bitmap reuse, final int tileSize,
+                             final int radius) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int step = tileSize - 2 * radius;
+        if (step <= 0) {
+            throw new IllegalArgumentException("Sampling radius " + radius
+                    + " does not fit into " + tileSize + " pixel tiles");
+        }
+
+        Bitmap output = reuse;
+        if (output == null || !output.isMutable() || output.getWidth() != width
+                || output.getHeight() != height || output.getConfig() != Bitmap.Config.ARGB_8888) {
+            output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        Canvas canvas = new Canvas(output);
+        Rect src = new Rect();
+        Rect dst = new Rect();
+        Bitmap tile = null;
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                int right = Math.min(x + step, width);
+                int bottom = Math.min(y + step, height);
+                // The halo is clipped at the image border, where clamping to
+                // the edge gives the same samples as for the whole image.
+                int left = Math.max(0, x - radius);
+                int top = Math.max(0, y - radius);
+                Bitmap input = Bitmap.createBitmap(bitmap, left, top,
+                        Math.min(width, right + radius) - left,
+                        Math.min(height, bottom + radius) - top);
+                Bitmap result = draw(input, tile, Rotation.NORMAL, false, false,
+                        GPUImage.ScaleType.CENTER_CROP);
+                if (input != bitmap) {
+                    input.recycle();
+                }
+                if (tile != null && tile != result) {
+                    tile.recycle();
+                }
+                tile = result;
+
+                src.set(x - left, y - top, right - left, bottom - top);
+                dst.set(x, y, right, bottom);
+                canvas.drawBitmap(tile, src, dst, null);
+            }
+        }
+        if (tile != null) {
+            tile.recycle();
+        }
+        return output;
+    }
+
+    private int getTileSize() {
+        if (mMaxTileSize == 0) {
+            int[] values = new int[2];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, values, 0);
+            int size = values[0];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_VIEWPORT_DIMS, values, 0);
+            size = Math.min(size, Math.min(values[0], values[1]));
+            int surfaceSize = mBuffer.getMaxSurfaceSize();
+            if (surfaceSize > 0) {
+                size = Math.min(size, surfaceSize);
+            }
+            mMaxTileSize = size > 0 ? size : INITIAL_SIZE;
+        }
+        int budgetSize = (int) Math.sqrt(mTileMemoryBudget / BYTES_PER_TILE_PIXEL);
+        return Math.max(1, Math.min(mMaxTileSize, budgetSize));
+    }
+}
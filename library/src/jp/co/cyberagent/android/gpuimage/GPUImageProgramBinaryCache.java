@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores linked program binaries in files so later runs of the app can skip
+ * compiling shaders. Files are named after a hash of the shader sources and
+ * the GL_RENDERER and GL_VERSION strings, so a driver update never sees
+ * binaries of an older one. A binary the driver rejects is deleted and the
+ * program compiled from source again.
+ * <br>
+ * Program binaries need an OpenGL ES 3.0 context; the OES_get_program_binary
+ * entry points are not exposed to Java, so ES 2.0 only contexts always
+ * compile from source. Files are read memory-mapped on the GL thread and
+ * written on a background thread.
+ */
+public class GPUImageProgramBinaryCache {
+    private static final String TAG = "GPUImageProgramBinary";
+    private static final String DIRECTORY_NAME = "gpuimage_programs";
+    private static final int MAGIC = 0x47504942;
+    private static final int HEADER_SIZE = 8;
+
+    private final File mDirectory;
+    private final ThreadPoolExecutor mWriter;
+
+    /**
+     * Creates a cache in a directory inside the app's cache directory.
+     *
+     * @param context any context of the application
+     */
+    public GPUImageProgramBinaryCache(final Context context) {
+        this(new File(context.getCacheDir(), DIRECTORY_NAME));
+    }
+
+    /**
+     * Creates a cache storing its files in the given directory.
+     *
+     * @param directory the directory, created if needed
+     */
+    public GPUImageProgramBinaryCache(final File directory) {
+        mDirectory = directory;
+        mWriter = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Tries to create a program from a stored binary. Has to be called on the
+     * GL thread.
+     *
+     * @param vertexShader the vertex shader source
+     * @param fragmentShader the fragment shader source
+     * @return the linked program, or 0 if there is no usable binary
+     */
+    public int loadProgram(final String vertexShader, final String fragmentShader) {
+        if (!isSupported()) {
+            return 0;
+        }
+        File file = getFile(vertexShader, fragmentShader);
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        int program = 0;
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size <= HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Invalid header");
+            }
+            int binaryFormat = buffer.getInt(4);
+            buffer.position(HEADER_SIZE);
+
+            program = GLES20.glCreateProgram();
+            GLES30.glProgramBinary(program, binaryFormat, buffer.slice(), (int) size - HEADER_SIZE);
+            int[] link = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, link, 0);
+            if (link[0] <= 0) {
+                throw new IOException("Binary rejected by the driver");
+            }
+            return program;
+        } catch (IOException e) {
+            Log.d(TAG, "Compiling from source: " + e.getMessage());
+            if (program != 0) {
+                GLES20.glDeleteProgram(program);
+            }
+            file.delete();
+            // A failed glProgramBinary call leaves an error behind.
+            GLES20.glGetError();
+            return 0;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the binary of a program linked from source. The binary is read
+     * back on the calling GL thread, the file written in the background.
+     *
+     * @param program the linked program
+     * @param vertexShader the vertex shader source it was linked from
+     * @param fragmentShader the fragment shader source it was linked from
+     */
+    public void saveProgram(final int program, final String vertexShader,
+                            final String fragmentShader) {
+        if (program == 0 || !isSupported()) {
+            return;
+        }
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            return;
+        }
+
+        final ByteBuffer binary = ByteBuffer.allocateDirect(HEADER_SIZE + length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        binary.position(HEADER_SIZE);
+        int[] binaryFormat = new int[1];
+        GLES30.glGetProgramBinary(program, length, values, 0, binaryFormat, 0, binary.slice());
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || values[0] <= 0) {
+            return;
+        }
+        binary.putInt(0, MAGIC);
+        binary.putInt(4, binaryFormat[0]);
+        binary.limit(HEADER_SIZE + values[0]);
+        binary.position(0);
+
+        final File file = getFile(vertexShader, fragmentShader);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(file, binary);
+            }
+        });
+    }
+
+    /**
+     * Deletes all stored binaries.
+     */
+    public void clear() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private void writeFile(final File file, final ByteBuffer binary) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            FileChannel channel = output.getChannel();
+            while (binary.hasRemaining()) {
+                channel.write(binary);
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static boolean isSupported() {
+        if (!OpenGlUtils.isGLES3Context()) {
+            return false;
+        }
+        int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    private File getFile(final String vertexShader, final String fragmentShader) {
+        StringBuilder key = new StringBuilder();
+        key.append(GLES20.glGetString(GLES20.GL_RENDERER)).append('\0')
+                .append(GLES20.glGetString(GLES20.GL_VERSION)).append('\0')
+                .append(vertexShader).append('\0')
+                .append(fragmentShader);
+        return new File(mDirectory, hash(key.toString()) + ".bin");
+    }
+
+    private static String hash(final String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
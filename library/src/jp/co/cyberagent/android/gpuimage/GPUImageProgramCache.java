@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.GLES20;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Process-wide cache of linked programs keyed by their vertex and fragment
+ * shader source, so filters with the same shaders compile them only once.
+ * Programs are reference counted; a program nobody uses stays linked until
+ * more than {@link #setMaxIdlePrograms(int) the allowed number} of idle
+ * programs exist, then the least recently released one is deleted.
+ * <br>
+ * Programs belong to an EGL context, so every context has its own cache,
+ * unless it shares objects with another one, see
+ * {@link #shareWith(EGLContext)}. {@link #acquire(String, String)} has to be
+ * called on the thread owning the context. A context that was created
+ * without going through {@link #onContextCreated()} may get the handle of a
+ * destroyed one; pools of destroyed contexts are dropped once a new context
+ * uses the cache.
+ */
+public class GPUImageProgramCache {
+    public static final int DEFAULT_MAX_IDLE_PROGRAMS = 32;
+
+    private static GPUImageProgramCache sInstance;
+
+    private final Map<EGLContext, Pool> mPools = new HashMap<EGLContext, Pool>();
+    private int mMaxIdlePrograms = DEFAULT_MAX_IDLE_PROGRAMS;
+    private GPUImageProgramBinaryCache mBinaryCache;
+    private long mHitCount;
+    private long mMissCount;
+    private long mCompileTimeNanos;
+    private final int[] mQueryValue = new int[1];
+
+    public static synchronized GPUImageProgramCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new GPUImageProgramCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Gets the program for the given shaders in the current EGL context,
+     * compiling and linking it if it is not cached yet. Every call has to be
+     * matched by a call to {@link #release(Program)}.
+     *
+     * @param vertexShader the vertex shader source
+     * @param fragmentShader the fragment shader source
+     * @return the program, whose id is 0 if it failed to compile or link
+     */
+    public Program acquire(final String vertexShader, final String fragmentShader) {
+        Key key = new Key(vertexShader, fragmentShader);
+        Pool pool;
+        GPUImageProgramBinaryCache binaryCache;
+        synchronized (this) {
+            pool = getCurrentPool();
+            Program program = pool.programs.get(key);
+            if (program != null) {
+                mHitCount++;
+                if (program.mReferenceCount++ == 0) {
+                    pool.idle.remove(program);
+                }
+                return program;
+            }
+            binaryCache = mBinaryCache;
+        }
+
+        // Compile without holding the lock, so other contexts are not blocked
+        // by it. A context sharing the pool may be compiling the same program.
+        long start = System.nanoTime();
+        int id = 0;
+        if (binaryCache != null) {
+            id = binaryCache.loadProgram(vertexShader, fragmentShader);
+        }
+        if (id == 0) {
+            id = OpenGlUtils.loadProgram(vertexShader, fragmentShader);
+            if (binaryCache != null) {
+                binaryCache.saveProgram(id, vertexShader, fragmentShader);
+            }
+        }
+        long compileTime = System.nanoTime() - start;
+
+        synchronized (this) {
+            mMissCount++;
+            mCompileTimeNanos += compileTime;
+            Program program = pool.programs.get(key);
+            if (program != null && id != 0) {
+                GLES20.glDeleteProgram(id);
+                if (program.mReferenceCount++ == 0) {
+                    pool.idle.remove(program);
+                }
+                return program;
+            }
+            program = new Program(pool, key, id, compileTime);
+            program.mReferenceCount = 1;
+            if (id != 0) {
+                pool.programs.put(key, program);
+            }
+            return program;
+        }
+    }
+
+    /**
+     * Releases a program returned by {@link #acquire(String, String)}. The
+     * program stays linked for later use until it gets evicted.
+     *
+     * @param program the program to release
+     */
+    public synchronized void release(final Program program) {
+        if (program.mReferenceCount <= 0) {
+            throw new IllegalStateException("Program released more often than acquired");
+        }
+        if (--program.mReferenceCount > 0 || program.mId == 0) {
+            return;
+        }
+        program.mOwner = null;
+        Pool pool = program.mPool;
+        if (!mPools.containsValue(pool)) {
+            // The context is gone, and the program with it.
+            return;
+        }
+        pool.idle.add(program);
+        if (mPools.get(EGL14.eglGetCurrentContext()) == pool) {
+            trim(pool, mMaxIdlePrograms);
+        }
+    }
+
+    /**
+     * Sets a cache for program binaries which is tried before compiling a
+     * program from source, and which stores the binaries of programs that
+     * had to be compiled.
+     *
+     * @param binaryCache the binary cache, or null to always compile
+     */
+    public synchronized void setBinaryCache(final GPUImageProgramBinaryCache binaryCache) {
+        mBinaryCache = binaryCache;
+    }
+
+    /**
+     * Sets how many unused programs each context keeps linked.
+     *
+     * @param maxIdlePrograms the number of idle programs to keep
+     */
+    public synchronized void setMaxIdlePrograms(final int maxIdlePrograms) {
+        mMaxIdlePrograms = maxIdlePrograms;
+    }
+
+    /**
+     * Deletes all unused programs of the current EGL context.
+     */
+    public synchronized void purgeIdlePrograms() {
+        Pool pool = mPools.get(EGL14.eglGetCurrentContext());
+        if (pool != null) {
+            trim(pool, 0);
+        }
+    }
+
+    /**
+     * Makes the current EGL context use the programs of another context it
+     * was created to share objects with. Has to be called before the current
+     * context acquires any program.
+     *
+     * @param sharedContext the context whose programs to use
+     */
+    public synchronized void shareWith(final EGLContext sharedContext) {
+        Pool pool = mPools.get(sharedContext);
+        if (pool == null) {
+            pool = new Pool(sharedContext);
+            mPools.put(sharedContext, pool);
+        }
+        mPools.put(EGL14.eglGetCurrentContext(), pool);
+    }
+
+    /**
+     * Forgets about the pool of the current EGL context without deleting
+     * anything. Call it right after creating a context: GLSurfaceView
+     * destroys its context on pause without telling the renderer, and the
+     * new context may get the same handle, which would otherwise hand it the
+     * programs of the destroyed one.
+     */
+    public synchronized void onContextCreated() {
+        mPools.remove(EGL14.eglGetCurrentContext());
+        dropStalePools();
+    }
+
+    /**
+     * Deletes all unused programs of the current EGL context and forgets
+     * about the context. Call it before destroying a context. Programs
+     * shared with another context are left alone.
+     */
+    public synchronized void releaseCurrentContext() {
+        Pool pool = mPools.remove(EGL14.eglGetCurrentContext());
+        if (pool != null && !mPools.containsValue(pool)) {
+            trim(pool, 0);
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Gets the time spent compiling and linking programs for cache misses.
+     *
+     * @return the time in nanoseconds
+     */
+    public synchronized long getCompileTimeNanos() {
+        return mCompileTimeNanos;
+    }
+
+    private Pool getCurrentPool() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        Pool pool = mPools.get(context);
+        if (pool == null) {
+            dropStalePools();
+            pool = new Pool(context);
+            mPools.put(context, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Forgets about the contexts which have been destroyed. Their programs
+     * went with them, so there is nothing to delete.
+     */
+    private void dropStalePools() {
+        EGLDisplay display = EGL14.eglGetCurrentDisplay();
+        if (display == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        Iterator<EGLContext> iterator = mPools.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!EGL14.eglQueryContext(display, iterator.next(), EGL14.EGL_CONFIG_ID,
+                    mQueryValue, 0)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void trim(final Pool pool, final int maxIdlePrograms) {
+        Iterator<Program> iterator = pool.idle.iterator();
+        while (pool.idle.size() > maxIdlePrograms && iterator.hasNext()) {
+            Program program = iterator.next();
+            iterator.remove();
+            pool.programs.remove(program.mKey);
+            GLES20.glDeleteProgram(program.mId);
+        }
+    }
+
+    /**
+     * A linked program shared by all filters using the same shaders.
+     */
+    public static class Program {
+        private final Pool mPool;
+        private final Key mKey;
+        private final int mId;
+        private final long mCompileTimeNanos;
+        private int mReferenceCount;
+        private Object mOwner;
+
+        private Program(final Pool pool, final Key key, final int id, final long compileTimeNanos) {
+            mPool = pool;
+            mKey = key;
+            mId = id;
+            mCompileTimeNanos = compileTimeNanos;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Gets how long compiling and linking the program took.
+         *
+         * @return the time in nanoseconds
+         */
+        public long getCompileTimeNanos() {
+            return mCompileTimeNanos;
+        }
+
+        /**
+         * Marks the given user as the last one having set uniforms on the
+         * program. Uniform values are part of the program, so a user sharing
+         * it has to set all of its uniforms again when this returns true.
+         * Has to be called on the GL thread.
+         *
+         * @param user the user about to draw with the program
+         * @return true if the program was last used by someone else
+         */
+        public boolean claim(final Object user) {
+            if (mOwner == user) {
+                return false;
+            }
+            mOwner = user;
+            return true;
+        }
+    }
+
+    private static class Pool {
+        final EGLContext context;
+        final Map<Key, Program> programs = new HashMap<Key, Program>();
+        /** Unused programs, least recently released first. */
+        final LinkedHashSet<Program> idle = new LinkedHashSet<Program>();
+
+        Pool(EGLContext context) {
+            this.context = context;
+        }
+    }
+
+    private static class Key {
+        final String vertexShader;
+        final String fragmentShader;
+        final int hash;
+
+        Key(String vertexShader, String fragmentShader) {
+            this.vertexShader = vertexShader;
+            this.fragmentShader = fragmentShader;
+            hash = 31 * vertexShader.hashCode() + fragmentShader.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && vertexShader.equals(key.vertexShader)
+                    && fragmentShader.equals(key.fragmentShader);
+        }
+    }
+}
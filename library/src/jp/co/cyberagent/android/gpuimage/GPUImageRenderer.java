@@ -18,7 +18,6 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
@@ -30,6 +29,7 @@ import android.opengl.Matrix;
 import android.view.Surface;
 
 import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilterGroup;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -39,8 +39,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
@@ -61,35 +59,56 @@ public class GPUImageRenderer implements Renderer {
     private int mGLTextureId = NO_IMAGE;
     private SurfaceTexture mSurfaceTexture = null;
     private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLFlippedCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
+    private final FloatBuffer mGLFlipCubeBuffer;
+    private final FloatBuffer mGLFlipTextureBuffer;
     private IntBuffer mGLRgbBuffer;
 
     private int mOutputWidth;
     private int mOutputHeight;
     private int mImageWidth;
     private int mImageHeight;
-    private int mAddedPadding;
-
-    private final Queue<Runnable> mRunOnDraw;
-    private final Queue<Runnable> mRunOnDrawEnd;
+    /** Holds the image of {@link #setImageBitmap(Bitmap)}, bottom row first. */
+    private GPUImageFramebuffer mImageFramebuffer;
+    private GPUImageFilter mImageFlipFilter;
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+
+    private final GPUImageTaskQueue mRunOnDraw;
+    private final GPUImageTaskQueue mRunOnDrawEnd;
     private Rotation mRotation;
     private boolean mFlipHorizontal;
     private boolean mFlipVertical;
     private GPUImage.ScaleType mScaleType = GPUImage.ScaleType.CENTER_CROP;
+    private GPUImageShaderWarmUp mShaderWarmUp;
+    private boolean mFlipOutputVertically;
 
     public GPUImageRenderer(final GPUImageFilter filter) {
         mFilter = filter;
-        mRunOnDraw = new LinkedList<Runnable>();
-        mRunOnDrawEnd = new LinkedList<Runnable>();
+        mRunOnDraw = new GPUImageTaskQueue();
+        mRunOnDrawEnd = new GPUImageTaskQueue();
 
         mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
         mGLCubeBuffer.put(CUBE).position(0);
+        mGLFlippedCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
 
         mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
+        mGLFlipCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLFlipCubeBuffer.put(CUBE).position(0);
+        float[] flipTextureCords = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLFlipTextureBuffer = ByteBuffer.allocateDirect(flipTextureCords.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLFlipTextureBuffer.put(flipTextureCords).position(0);
         setRotation(Rotation.NORMAL, false, false);
 
         Matrix.setIdentityM(mSTMatrix, 0);
@@ -99,6 +118,18 @@ public class GPUImageRenderer implements Renderer {
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
         GLES20.glClearColor(0, 0, 0, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        // This is a new context, even if it got the handle of a lost one.
+        GPUImageProgramCache.getInstance().onContextCreated();
+        GPUImageFramebufferCache.getInstance().onContextCreated();
+        GPUImageTextureCache.getInstance().onContextCreated();
+        // Objects of a lost context are gone with it.
+        mImageFramebuffer = null;
+        mImageFlipFilter = null;
+        mGLTextureId = NO_IMAGE;
+        if (mShaderWarmUp != null) {
+            mShaderWarmUp.stop();
+            mShaderWarmUp.start();
+        }
         mFilter.init();
     }
 
@@ -126,17 +157,43 @@ public class GPUImageRenderer implements Renderer {
         }
 
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        runAll(mRunOnDraw);
-        mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
-        runAll(mRunOnDrawEnd);
+        mRunOnDraw.runAll();
+        FloatBuffer cubeBuffer = mGLCubeBuffer;
+        if (mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).setFlipOutputVertically(mFlipOutputVertically);
+        } else if (mFlipOutputVertically) {
+            cubeBuffer = TextureRotationUtil.flipVertically(mGLCubeBuffer, mGLFlippedCubeBuffer);
+        }
+        mFilter.onDraw(mGLTextureId, cubeBuffer, mGLTextureBuffer);
+        mRunOnDrawEnd.runAll();
     }
 
-    private void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
-        }
+    /**
+     * Limits how long the tasks posted with runOnDraw may run per frame. Tasks
+     * over the budget are deferred to the next frame, in order.
+     *
+     * @param budgetNanos the budget in nanoseconds, 0 (the default) for no limit
+     */
+    public void setRunOnDrawTimeBudget(final long budgetNanos) {
+        mRunOnDraw.setTimeBudgetNanos(budgetNanos);
+    }
+
+    /**
+     * Gets the number of tasks waiting to run on the GL thread.
+     *
+     * @return the queue depth
+     */
+    public int getPendingTaskCount() {
+        return mRunOnDraw.size() + mRunOnDrawEnd.size();
+    }
+
+    /**
+     * Gets how long the queued tasks took to run in the last frame.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getLastTaskRunTimeNanos() {
+        return mRunOnDraw.getLastRunTimeNanos() + mRunOnDrawEnd.getLastRunTimeNanos();
     }
 
     public void setUpSurfaceTexture(final Camera camera) {
@@ -223,14 +280,37 @@ public class GPUImageRenderer implements Renderer {
         });
     }
 
+    /**
+     * Sets a warm-up compiling filter programs in the background on a context
+     * sharing objects with this renderer's one. Filters warmed up before they
+     * are passed to {@link #setFilter(GPUImageFilter)} initialize without
+     * compiling.
+     *
+     * @param warmUp the warm-up to start for this renderer's context
+     */
+    public void setShaderWarmUp(final GPUImageShaderWarmUp warmUp) {
+        mShaderWarmUp = warmUp;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                warmUp.start();
+            }
+        });
+    }
+
     public void deleteImage() {
         runOnDraw(new Runnable() {
 
             @Override
             public void run() {
-                GLES20.glDeleteTextures(1, new int[]{
-                        mGLTextureId
-                }, 0);
+                if (mImageFramebuffer != null) {
+                    mImageFramebuffer.unlock();
+                    mImageFramebuffer = null;
+                }
+                if (mImageFlipFilter != null) {
+                    mImageFlipFilter.destroy();
+                    mImageFlipFilter = null;
+                }
                 mGLTextureId = NO_IMAGE;
             }
         });
@@ -249,30 +329,54 @@ public class GPUImageRenderer implements Renderer {
 
             @Override
             public void run() {
-                Bitmap resizedBitmap = null;
-                if (bitmap.getWidth() % 2 == 1) {
-                    resizedBitmap = Bitmap.createBitmap(bitmap.getWidth() + 1, bitmap.getHeight(),
-                            Bitmap.Config.ARGB_8888);
-                    Canvas can = new Canvas(resizedBitmap);
-                    can.drawARGB(0x00, 0x00, 0x00, 0x00);
-                    can.drawBitmap(bitmap, 0, 0, null);
-                    mAddedPadding = 1;
-                } else {
-                    mAddedPadding = 0;
-                }
-
-                mGLTextureId = OpenGlUtils.loadTexture(
-                        resizedBitmap != null ? resizedBitmap : bitmap, mGLTextureId, recycle);
-                if (resizedBitmap != null) {
-                    resizedBitmap.recycle();
-                }
-                mImageWidth = bitmap.getWidth();
-                mImageHeight = bitmap.getHeight();
+                int width = bitmap.getWidth();
+                int height = bitmap.getHeight();
+                int uploaded = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, recycle);
+                flipImage(uploaded, width, height);
+                // Only the flipped image is kept, so the bitmap takes up
+                // GPU memory once while it is shown.
+                GLES20.glDeleteTextures(1, new int[]{
+                        uploaded
+                }, 0);
+                mImageWidth = width;
+                mImageHeight = height;
                 adjustImageScaling();
             }
         });
     }
 
+    /**
+     * Draws an uploaded bitmap, which holds its top row at t = 0, upside down
+     * into the image framebuffer. Filters then see the image bottom row first
+     * like every other input, at the cost of one draw per upload instead of a
+     * flipped copy of the bitmap in memory. The framebuffer is kept for the
+     * next bitmap of the same size.
+     */
+    private void flipImage(final int textureId, final int width, final int height) {
+        if (mImageFramebuffer != null && (mImageFramebuffer.getWidth() != width
+                || mImageFramebuffer.getHeight() != height)) {
+            mImageFramebuffer.unlock();
+            mImageFramebuffer = null;
+        }
+        if (mImageFramebuffer == null) {
+            mImageFramebuffer = GPUImageFramebufferCache.getInstance().fetchFramebuffer(width, height);
+        }
+        if (mImageFlipFilter == null) {
+            mImageFlipFilter = new GPUImageFilter();
+            mImageFlipFilter.init();
+        }
+
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        mImageFramebuffer.bind();
+        GLES20.glViewport(0, 0, width, height);
+        mImageFlipFilter.onDraw(textureId, mGLFlipCubeBuffer, mGLFlipTextureBuffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2],
+                mSavedViewport[3]);
+        mGLTextureId = mImageFramebuffer.getTextureId();
+    }
+
     public void setScaleType(GPUImage.ScaleType scaleType) {
         mScaleType = scaleType;
     }
@@ -361,15 +465,19 @@ public class GPUImageRenderer implements Renderer {
         return mFlipVertical;
     }
 
+    /**
+     * Draws the output upside down, so glReadPixels returns its rows top
+     * down. Only the last pass is flipped, filters see the image as usual.
+     */
+    void setFlipOutputVertically(final boolean flip) {
+        mFlipOutputVertically = flip;
+    }
+
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.add(runnable);
-        }
+        mRunOnDraw.add(runnable);
     }
 
     protected void runOnDrawEnd(final Runnable runnable) {
-        synchronized (mRunOnDrawEnd) {
-            mRunOnDrawEnd.add(runnable);
-        }
+        mRunOnDrawEnd.add(runnable);
     }
 }
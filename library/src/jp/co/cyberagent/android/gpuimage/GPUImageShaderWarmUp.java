@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageBakedLookupFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilterGroup;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFusedFilter;
+
+/**
+ * Compiles the programs of filters in the background, on a pbuffer context
+ * sharing objects with a render context, and puts them into
+ * {@link GPUImageProgramCache}. Initializing a warmed up filter on the render
+ * thread then only has to look the programs up.
+ * <br>
+ * Filters can be queued at any time; compiling starts once {@link #start()}
+ * has been called on the render thread. Queued filters with a higher
+ * priority compile first.
+ * <br>
+ * Compiled programs are held by the warm-up, so the idle limit of the cache
+ * cannot evict them before their filter is initialized. Release them with
+ * {@link #release(Future)} once the filter is initialized or not needed
+ * anymore, or all at once with {@link #releaseAll()}.
+ */
+public class GPUImageShaderWarmUp {
+    private static final String TAG = "GPUImageShaderWarmUp";
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
+    private final PriorityBlockingQueue<WarmUpTask> mQueue = new PriorityBlockingQueue<WarmUpTask>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final List<WarmUpTask> mTasks = new ArrayList<WarmUpTask>();
+    private WorkerThread mThread;
+
+    /**
+     * Starts compiling queued filters on a context sharing objects with the
+     * current one. Has to be called on the thread owning the render context,
+     * for example in {@link GPUImageRenderer#onSurfaceCreated}. Calling it
+     * again for a new render context moves the warm-up over to it.
+     */
+    public synchronized void start() {
+        android.opengl.EGLContext sharedContext = EGL14.eglGetCurrentContext();
+        if (mThread != null) {
+            if (mThread.mSharedContext.equals(sharedContext)) {
+                return;
+            }
+            mThread.quit();
+        }
+        EGL10 egl = (EGL10) EGLContext.getEGL();
+        int[] clientVersion = new int[1];
+        EGL14.eglQueryContext(EGL14.eglGetCurrentDisplay(), sharedContext,
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion, 0);
+        mThread = new WorkerThread(egl.eglGetCurrentContext(), sharedContext,
+                Math.max(2, clientVersion[0]));
+        mThread.start();
+    }
+
+    /**
+     * Stops the background thread and destroys its context. Queued filters
+     * stay queued until the next {@link #start()}.
+     */
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Queues the programs of a filter for compilation. The filter itself is
+     * not initialized, so it can be in use elsewhere.
+     *
+     * @param filter the filter
+     * @param priority the priority, higher compiles first
+     * @return a future completing with the filter once its programs are cached
+     */
+    public Future<GPUImageFilter> warmUp(final GPUImageFilter filter, final int priority) {
+        return enqueue(new Callable<GPUImageFilter>() {
+            @Override
+            public GPUImageFilter call() throws Exception {
+                return filter;
+            }
+        }, priority);
+    }
+
+    /**
+     * Queues the programs of a filter class for compilation. The class needs
+     * a constructor without arguments; filters configured through their
+     * constructor should be passed as instances.
+     *
+     * @param filterClass the filter class
+     * @param priority the priority, higher compiles first
+     * @return a future completing with the instance that was compiled
+     */
+    public Future<GPUImageFilter> warmUp(final Class<? extends GPUImageFilter> filterClass,
+                                         final int priority) {
+        return enqueue(new Callable<GPUImageFilter>() {
+            @Override
+            public GPUImageFilter call() throws Exception {
+                return filterClass.newInstance();
+            }
+        }, priority);
+    }
+
+    /**
+     * Queues several filters with the same priority, in list order.
+     *
+     * @param filters the filters
+     * @param priority the priority, higher compiles first
+     * @return one future per filter
+     */
+    public List<Future<GPUImageFilter>> warmUp(final List<? extends GPUImageFilter> filters,
+                                               final int priority) {
+        List<Future<GPUImageFilter>> futures = new ArrayList<Future<GPUImageFilter>>(filters.size());
+        for (GPUImageFilter filter : filters) {
+            futures.add(warmUp(filter, priority));
+        }
+        return futures;
+    }
+
+    /**
+     * Changes the priority of a queued filter, for example when the user
+     * hovers over it.
+     *
+     * @param future a future returned by this warm-up
+     * @param priority the new priority
+     * @return false if the filter is not queued anymore
+     */
+    public boolean setPriority(final Future<GPUImageFilter> future, final int priority) {
+        if (!(future instanceof WarmUpTask)) {
+            return false;
+        }
+        WarmUpTask task = (WarmUpTask) future;
+        if (!mQueue.remove(task)) {
+            return false;
+        }
+        task.mPriority = priority;
+        mQueue.add(task);
+        return true;
+    }
+
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Releases the programs compiled for a filter, leaving them to the idle
+     * limit of {@link GPUImageProgramCache} unless the filter uses them. A
+     * filter still queued is removed from the queue.
+     *
+     * @param future a future returned by this warm-up
+     * @return false if the programs have been released already
+     */
+    public boolean release(final Future<GPUImageFilter> future) {
+        if (!(future instanceof WarmUpTask)) {
+            return false;
+        }
+        WarmUpTask task = (WarmUpTask) future;
+        synchronized (mTasks) {
+            if (!mTasks.remove(task)) {
+                return false;
+            }
+        }
+        mQueue.remove(task);
+        task.cancel(false);
+        task.mPrograms.release();
+        return true;
+    }
+
+    /**
+     * Releases the programs of every filter, see {@link #release(Future)}.
+     */
+    public void releaseAll() {
+        List<WarmUpTask> tasks;
+        synchronized (mTasks) {
+            tasks = new ArrayList<WarmUpTask>(mTasks);
+        }
+        for (WarmUpTask task : tasks) {
+            release(task);
+        }
+    }
+
+    private Future<GPUImageFilter> enqueue(final Callable<GPUImageFilter> source,
+                                           final int priority) {
+        final HeldPrograms programs = new HeldPrograms();
+        WarmUpTask task = new WarmUpTask(new Callable<GPUImageFilter>() {
+            @Override
+            public GPUImageFilter call() throws Exception {
+                GPUImageFilter filter = source.call();
+                compile(filter, programs);
+                return filter;
+            }
+        }, programs, priority, mSequence.getAndIncrement());
+        synchronized (mTasks) {
+            mTasks.add(task);
+        }
+        mQueue.add(task);
+        return task;
+    }
+
+    private static void compile(final GPUImageFilter filter, final HeldPrograms programs) {
+        GPUImageProgramCache cache = GPUImageProgramCache.getInstance();
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        collectFilters(filter, filters);
+        for (GPUImageFilter f : filters) {
+            programs.hold(cache.acquire(f.getVertexShader(), f.getFragmentShader()));
+        }
+        // Make sure the programs are linked before the render context uses them.
+        GLES20.glFinish();
+    }
+
+    private static void collectFilters(final GPUImageFilter filter,
+                                       final List<GPUImageFilter> filters) {
+        filters.add(filter);
+        if (filter instanceof GPUImageFilterGroup) {
+            GPUImageFilterGroup group = (GPUImageFilterGroup) filter;
+            for (GPUImageFilter member : group.getFilters()) {
+                collectFilters(member, filters);
+            }
+            if (group.getRenderPasses() != null) {
+                for (GPUImageFilter pass : group.getRenderPasses()) {
+                    if (pass instanceof GPUImageFusedFilter) {
+                        filters.add(pass);
+                    } else if (pass instanceof GPUImageBakedLookupFilter) {
+                        // The lookup itself, and the pass drawing the table
+                        // the baked filters start from.
+                        filters.add(pass);
+                        filters.add(new GPUImageFilter(GPUImageFilter.NO_FILTER_VERTEX_SHADER,
+                                GPUImageBakedLookupFilter.IDENTITY_TABLE_FRAGMENT_SHADER));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The programs compiled for one filter, referenced until released.
+     */
+    private static class HeldPrograms {
+        private final List<GPUImageProgramCache.Program> mPrograms =
+                new ArrayList<GPUImageProgramCache.Program>();
+        private boolean mReleased;
+
+        synchronized void hold(final GPUImageProgramCache.Program program) {
+            if (mReleased) {
+                GPUImageProgramCache.getInstance().release(program);
+            } else {
+                mPrograms.add(program);
+            }
+        }
+
+        synchronized void release() {
+            mReleased = true;
+            GPUImageProgramCache cache = GPUImageProgramCache.getInstance();
+            for (GPUImageProgramCache.Program program : mPrograms) {
+                cache.release(program);
+            }
+            mPrograms.clear();
+        }
+    }
+
+    private static class WarmUpTask extends FutureTask<GPUImageFilter>
+            implements Comparable<WarmUpTask> {
+        private final HeldPrograms mPrograms;
+        private final long mSequence;
+        private volatile int mPriority;
+
+        WarmUpTask(Callable<GPUImageFilter> callable, HeldPrograms programs, int priority,
+                   long sequence) {
+            super(callable);
+            mPrograms = programs;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(WarmUpTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private class WorkerThread extends Thread {
+        private final EGLContext mShareContext;
+        private final android.opengl.EGLContext mSharedContext;
+        private final int mClientVersion;
+        private volatile boolean mQuit;
+
+        WorkerThread(EGLContext shareContext, android.opengl.EGLContext sharedContext,
+                     int clientVersion) {
+            super(TAG);
+            mShareContext = shareContext;
+            mSharedContext = sharedContext;
+            mClientVersion = clientVersion;
+        }
+
+        void quit() {
+            mQuit = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            PixelBuffer buffer = new PixelBuffer(1, 1, mShareContext, mClientVersion);
+            GPUImageProgramCache.getInstance().shareWith(mSharedContext);
+            try {
+                while (!mQuit) {
+                    WarmUpTask task = mQueue.take();
+                    if (mQuit) {
+                        // Leave it for the next worker.
+                        mQueue.add(task);
+                        break;
+                    }
+                    task.run();
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Stopped");
+            } finally {
+                buffer.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queue of tasks posted from any thread and run on the GL thread. Posting
+ * never blocks: tasks are pushed onto a lock-free stack, and the GL thread
+ * takes the whole stack at once and runs it in posting order without holding
+ * any lock, so a slow task does not block threads posting new ones.
+ * <br>
+ * An optional time budget limits how long {@link #runAll()} runs tasks per
+ * call; whatever is left runs first on the next call.
+ */
+public class GPUImageTaskQueue {
+    private final AtomicReference<Node> mPosted = new AtomicReference<Node>();
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    // Only touched by the thread calling runAll().
+    private Node mPending;
+    private Node mPendingTail;
+
+    private volatile long mTimeBudgetNanos;
+    private volatile long mLastRunTimeNanos;
+    private volatile long mMaxRunTimeNanos;
+
+    /**
+     * Posts a task. Can be called from any thread.
+     *
+     * @param task the task to run
+     */
+    public void add(final Runnable task) {
+        Node node = new Node(task);
+        Node head;
+        do {
+            head = mPosted.get();
+            node.next = head;
+        } while (!mPosted.compareAndSet(head, node));
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * Runs the posted tasks in the order they were posted. Has to be called
+     * from a single thread. With a time budget set at least one task runs and
+     * the remaining ones are kept for the next call once the budget is used.
+     */
+    public void runAll() {
+        long start = System.nanoTime();
+        takePosted();
+
+        long budget = mTimeBudgetNanos;
+        while (mPending != null) {
+            Node node = mPending;
+            mPending = node.next;
+            if (mPending == null) {
+                mPendingTail = null;
+            }
+            node.next = null;
+            mSize.decrementAndGet();
+            node.task.run();
+
+            if (budget > 0 && System.nanoTime() - start >= budget) {
+                break;
+            }
+            if (mPending == null) {
+                // Pick up tasks posted by the tasks that just ran.
+                takePosted();
+            }
+        }
+
+        long time = System.nanoTime() - start;
+        mLastRunTimeNanos = time;
+        if (time > mMaxRunTimeNanos) {
+            mMaxRunTimeNanos = time;
+        }
+    }
+
+    /**
+     * Moves the posted tasks behind the pending ones, reversing the stack
+     * into posting order.
+     */
+    private void takePosted() {
+        Node posted = mPosted.getAndSet(null);
+        if (posted == null) {
+            return;
+        }
+        Node tail = posted;
+        Node reversed = null;
+        while (posted != null) {
+            Node next = posted.next;
+            posted.next = reversed;
+            reversed = posted;
+            posted = next;
+        }
+        if (mPendingTail == null) {
+            mPending = reversed;
+        } else {
+            mPendingTail.next = reversed;
+        }
+        mPendingTail = tail;
+    }
+
+    /**
+     * Sets how long {@link #runAll()} may run tasks before deferring the
+     * rest to its next call.
+     *
+     * @param budgetNanos the budget in nanoseconds, 0 to run all tasks
+     */
+    public void setTimeBudgetNanos(final long budgetNanos) {
+        mTimeBudgetNanos = budgetNanos;
+    }
+
+    public long getTimeBudgetNanos() {
+        return mTimeBudgetNanos;
+    }
+
+    /**
+     * Gets the number of tasks posted but not run yet.
+     *
+     * @return the queue depth
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    public boolean isEmpty() {
+        return mSize.get() == 0;
+    }
+
+    /**
+     * Gets how long the last {@link #runAll()} took.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getLastRunTimeNanos() {
+        return mLastRunTimeNanos;
+    }
+
+    /**
+     * Gets the longest time a single {@link #runAll()} took.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getMaxRunTimeNanos() {
+        return mMaxRunTimeNanos;
+    }
+
+    private static class Node {
+        final Runnable task;
+        Node next;
+
+        Node(Runnable task) {
+            this.task = task;
+        }
+    }
+}
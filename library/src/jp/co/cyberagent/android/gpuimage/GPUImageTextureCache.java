@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide cache of read-only input textures, like the second image of a
+ * {@link jp.co.cyberagent.android.gpuimage.filter.GPUImageTwoInputFilter},
+ * lookup tables and tone curves. Textures are keyed by their content, so
+ * filters using the same image share one texture even when the image was
+ * decoded more than once. The hash of a bitmap is remembered for the bitmap
+ * until its pixels change, so passing the same bitmap again costs no hashing.
+ * <br>
+ * Textures are reference counted; a texture nobody uses stays resident for
+ * later use until the resident bytes exceed {@link #setMaxBytes(long)}, then
+ * the least recently released ones are deleted. Textures belong to an EGL
+ * context, so every context has its own pool and {@link #acquire(Bitmap)}
+ * has to be called on the thread owning the context.
+ * <br>
+ * Hashing and uploading happen outside the lock of the cache, so a large
+ * bitmap does not hold up other contexts. Bitmaps are keyed by two
+ * independent 64 bit hashes, RGBA pixels are compared byte by byte on a hit.
+ */
+public class GPUImageTextureCache {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long MIX_SEED = 0x9e3779b97f4a7c15L;
+    private static final long MIX_MULTIPLIER = 0xbf58476d1ce4e5b9L;
+
+    private static GPUImageTextureCache sInstance;
+
+    private final Map<EGLContext, Pool> mPools = new HashMap<EGLContext, Pool>();
+    private final Map<Bitmap, BitmapHash> mBitmapHashes = new WeakHashMap<Bitmap, BitmapHash>();
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mResidentBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private final int[] mQueryValue = new int[1];
+
+    public static synchronized GPUImageTextureCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new GPUImageTextureCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Gets a texture holding the bitmap in the current EGL context, uploading
+     * it if no texture with the same content is cached. The texture holds the
+     * top row of the bitmap at t = 0, see
+     * {@link OpenGlUtils#loadTexture(Bitmap, int, boolean)}. Every call has to
+     * be matched by a call to {@link #release(Texture)}.
+     *
+     * @param bitmap the bitmap, it is not recycled
+     * @return the texture, which must not be modified
+     */
+    public Texture acquire(final Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        BitmapHash hash = getHash(bitmap);
+        String key = "bitmap:" + width + "x" + height + ":" + bitmap.getConfig() + ":"
+                + Long.toHexString(hash.hash) + ":" + Long.toHexString(hash.check);
+        synchronized (this) {
+            Texture texture = reuse(getCurrentPool(), key);
+            if (texture != null) {
+                return texture;
+            }
+        }
+
+        int id = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+
+        synchronized (this) {
+            return addOrReuse(getCurrentPool(), key, id, width, height, null);
+        }
+    }
+
+    /**
+     * Gets a texture holding RGBA pixels in the current EGL context,
+     * uploading them if no texture with the same content is cached. Every
+     * call has to be matched by a call to {@link #release(Texture)}.
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param pixels the RGBA pixels, rows bottom up, 4 bytes per pixel
+     * @return the texture, which must not be modified
+     */
+    public Texture acquire(final int width, final int height, final byte[] pixels) {
+        String hashKey = "rgba:" + width + "x" + height + ":"
+                + Long.toHexString(hash(FNV_OFFSET_BASIS, pixels));
+        synchronized (this) {
+            Pool pool = getCurrentPool();
+            Texture texture = reuse(pool, resolveKey(pool, hashKey, pixels));
+            if (texture != null) {
+                return texture;
+            }
+        }
+
+        int[] id = new int[1];
+        GLES20.glGenTextures(1, id, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, id[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(pixels));
+
+        synchronized (this) {
+            Pool pool = getCurrentPool();
+            return addOrReuse(pool, resolveKey(pool, hashKey, pixels), id[0], width, height,
+                    pixels.clone());
+        }
+    }
+
+    /**
+     * Releases a texture returned by one of the acquire methods. The texture
+     * stays resident for later use until it gets evicted.
+     *
+     * @param texture the texture to release
+     */
+    public synchronized void release(final Texture texture) {
+        if (texture.mReferenceCount <= 0) {
+            throw new IllegalStateException("Texture released more often than acquired");
+        }
+        if (--texture.mReferenceCount > 0) {
+            return;
+        }
+        Pool pool = texture.mPool;
+        if (!mPools.containsValue(pool)) {
+            // The context is gone, and the texture with it.
+            mResidentBytes -= texture.getByteCount();
+            return;
+        }
+        pool.idle.add(texture);
+        pool.idleBytes += texture.getByteCount();
+        if (mPools.get(EGL14.eglGetCurrentContext()) == pool) {
+            trim(pool);
+        }
+    }
+
+    /**
+     * Sets the number of bytes textures may use before idle ones get
+     * evicted. Textures in use are never evicted.
+     *
+     * @param maxBytes the byte budget
+     */
+    public synchronized void setMaxBytes(final long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Deletes all idle textures of the current EGL context.
+     */
+    public synchronized void purgeIdleTextures() {
+        Pool pool = mPools.get(EGL14.eglGetCurrentContext());
+        if (pool != null) {
+            evict(pool, 0);
+        }
+    }
+
+    /**
+     * Forgets about the pool of the current EGL context without deleting
+     * anything. Call it right after creating a context: the new context may
+     * get the handle of a destroyed one, whose textures would otherwise be
+     * handed out.
+     */
+    public synchronized void onContextCreated() {
+        dropPool(mPools.remove(EGL14.eglGetCurrentContext()));
+        dropStalePools();
+    }
+
+    /**
+     * Deletes all idle textures of the current EGL context and forgets about
+     * the context. Call it before destroying a context.
+     */
+    public synchronized void releaseCurrentContext() {
+        Pool pool = mPools.remove(EGL14.eglGetCurrentContext());
+        if (pool != null) {
+            evict(pool, 0);
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Gets the bytes of all textures created by the cache which were not
+     * deleted yet, both in use and idle.
+     *
+     * @return the resident bytes
+     */
+    public synchronized long getResidentBytes() {
+        return mResidentBytes;
+    }
+
+    private Texture reuse(final Pool pool, final String key) {
+        Texture texture = pool.textures.get(key);
+        if (texture == null) {
+            return null;
+        }
+        mHitCount++;
+        if (texture.mReferenceCount++ == 0) {
+            pool.idle.remove(texture);
+            pool.idleBytes -= texture.getByteCount();
+        }
+        return texture;
+    }
+
+    /**
+     * Adds a texture uploaded without holding the lock, unless another thread
+     * of the context added the same content meanwhile.
+     */
+    private Texture addOrReuse(final Pool pool, final String key, final int id, final int width,
+                               final int height, final byte[] pixels) {
+        Texture texture = reuse(pool, key);
+        if (texture != null) {
+            GLES20.glDeleteTextures(1, new int[] {id}, 0);
+            return texture;
+        }
+        mMissCount++;
+        texture = new Texture(pool, key, id, width, height, pixels);
+        texture.mReferenceCount = 1;
+        pool.textures.put(key, texture);
+        mResidentBytes += texture.getByteCount();
+        trim(pool);
+        return texture;
+    }
+
+    /**
+     * Gets a key for the content, which is the hash key unless a texture of
+     * other content with the same hash exists. A collision then gets a key
+     * of its own instead of sharing the wrong texture.
+     */
+    private static String resolveKey(final Pool pool, final String hashKey, final byte[] pixels) {
+        String key = hashKey;
+        for (int i = 1; ; i++) {
+            Texture texture = pool.textures.get(key);
+            if (texture == null || Arrays.equals(texture.mPixels, pixels)) {
+                return key;
+            }
+            key = hashKey + "#" + i;
+        }
+    }
+
+    private BitmapHash getHash(final Bitmap bitmap) {
+        int generationId = bitmap.getGenerationId();
+        synchronized (mBitmapHashes) {
+            BitmapHash hash = mBitmapHashes.get(bitmap);
+            if (hash != null && hash.generationId == generationId) {
+                return hash;
+            }
+        }
+        // Row by row, so hashing does not need a copy of the whole bitmap.
+        int width = bitmap.getWidth();
+        int[] row = new int[width];
+        long value = FNV_OFFSET_BASIS;
+        long check = MIX_SEED;
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                value = hash(value, row[x]);
+                check = mix(check, row[x]);
+            }
+        }
+        BitmapHash hash = new BitmapHash(generationId, value, check);
+        synchronized (mBitmapHashes) {
+            mBitmapHashes.put(bitmap, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * A second hash independent of FNV, so a bitmap needs to collide with
+     * both to be mistaken for another one.
+     */
+    private static long mix(final long value, final int data) {
+        return Long.rotateLeft(value ^ (data * MIX_SEED), 31) * MIX_MULTIPLIER;
+    }
+
+    private static long hash(long value, final int data) {
+        for (int i = 0; i < 4; i++) {
+            value = (value ^ ((data >>> (i * 8)) & 0xff)) * FNV_PRIME;
+        }
+        return value;
+    }
+
+    private static long hash(long value, final byte[] data) {
+        for (byte b : data) {
+            value = (value ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return value;
+    }
+
+    private Pool getCurrentPool() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        Pool pool = mPools.get(context);
+        if (pool == null) {
+            dropStalePools();
+            pool = new Pool(context);
+            mPools.put(context, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Forgets about pools whose context has been destroyed. Their textures
+     * went with the context, so there is nothing to delete.
+     */
+    private void dropStalePools() {
+        EGLDisplay display = EGL14.eglGetCurrentDisplay();
+        if (display == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        Iterator<Pool> iterator = mPools.values().iterator();
+        while (iterator.hasNext()) {
+            Pool pool = iterator.next();
+            if (!EGL14.eglQueryContext(display, pool.context, EGL14.EGL_CONFIG_ID,
+                    mQueryValue, 0)) {
+                iterator.remove();
+                dropPool(pool);
+            }
+        }
+    }
+
+    /**
+     * Forgets about the idle textures of a pool whose context is gone. Those
+     * in use are subtracted when they are released.
+     */
+    private void dropPool(final Pool pool) {
+        if (pool != null) {
+            mResidentBytes -= pool.idleBytes;
+            pool.idleBytes = 0;
+            pool.idle.clear();
+        }
+    }
+
+    private void trim(final Pool pool) {
+        if (mResidentBytes > mMaxBytes) {
+            evict(pool, Math.max(0, pool.idleBytes - (mResidentBytes - mMaxBytes)));
+        }
+    }
+
+    private void evict(final Pool pool, final long idleBudget) {
+        Iterator<Texture> iterator = pool.idle.iterator();
+        while (pool.idleBytes > idleBudget && iterator.hasNext()) {
+            Texture texture = iterator.next();
+            iterator.remove();
+            pool.textures.remove(texture.mKey);
+            pool.idleBytes -= texture.getByteCount();
+            mResidentBytes -= texture.getByteCount();
+            mEvictionCount++;
+            GLES20.glDeleteTextures(1, new int[] {texture.mId}, 0);
+        }
+    }
+
+    /**
+     * A texture shared by all filters using the same image.
+     */
+    public static class Texture {
+        private final Pool mPool;
+        private final String mKey;
+        private final int mId;
+        private final int mWidth;
+        private final int mHeight;
+        /** A copy of the RGBA pixels, or null for bitmaps. */
+        private final byte[] mPixels;
+        private int mReferenceCount;
+
+        private Texture(final Pool pool, final String key, final int id, final int width,
+                        final int height, final byte[] pixels) {
+            mPool = pool;
+            mKey = key;
+            mId = id;
+            mWidth = width;
+            mHeight = height;
+            mPixels = pixels;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Gets the approximate amount of GPU memory used by the texture.
+         *
+         * @return the size in bytes
+         */
+        public long getByteCount() {
+            return (long) mWidth * mHeight * 4;
+        }
+    }
+
+    private static class BitmapHash {
+        final int generationId;
+        final long hash;
+        final long check;
+
+        BitmapHash(final int generationId, final long hash, final long check) {
+            this.generationId = generationId;
+            this.hash = hash;
+            this.check = check;
+        }
+    }
+
+    private static class Pool {
+        final EGLContext context;
+        final Map<String, Texture> textures = new HashMap<String, Texture>();
+        /** Idle textures, least recently released first. */
+        final LinkedHashSet<Texture> idle = new LinkedHashSet<Texture>();
+        long idleBytes;
+
+        Pool(EGLContext context) {
+            this.context = context;
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.nio.IntBuffer;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.hardware.Camera.Size;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
@@ -34,9 +33,23 @@ public class OpenGlUtils {
         return loadTexture(img, usedTexId, true);
     }
 
+    /**
+     * Uploads a bitmap straight from its pixels, without copying or padding
+     * it. The top row of the bitmap ends up at texture coordinate t = 0, the
+     * other way round from what filters expect of their input.
+     * {@link GPUImageRenderer#setImageBitmap(Bitmap)} draws it once, upside
+     * down, into a framebuffer that filters read; other callers sample it
+     * with vertically flipped texture coordinates, like the second texture
+     * of {@link jp.co.cyberagent.android.gpuimage.filter.GPUImageTwoInputFilter}.
+     *
+     * @param img the bitmap
+     * @param usedTexId a texture of the bitmap's size to update, or {@link #NO_TEXTURE}
+     * @param recycle true to recycle the bitmap after uploading it
+     * @return the texture
+     */
     public static int loadTexture(final Bitmap img, final int usedTexId, final boolean recycle) {
-        Bitmap textureBitmap = createVerticalFlipBitmap(img);
-
+        // Rows of odd width RGB_565 or ALPHA_8 bitmaps are not 4 byte aligned.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, getUnpackAlignment(img.getRowBytes()));
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
@@ -50,22 +63,28 @@ public class OpenGlUtils {
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, img, 0);
         } else {
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
-            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, textureBitmap);
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, img);
             textures[0] = usedTexId;
         }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
         if (recycle) {
             img.recycle();
         }
         return textures[0];
     }
 
-    private static Bitmap createVerticalFlipBitmap(Bitmap src) {
-        Matrix flip = new Matrix();
-        flip.postScale(1f, -1f);
-        return Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), flip, true);
+    private static int getUnpackAlignment(final int rowBytes) {
+        if (rowBytes % 8 == 0) {
+            return 8;
+        } else if (rowBytes % 4 == 0) {
+            return 4;
+        } else if (rowBytes % 2 == 0) {
+            return 2;
+        }
+        return 1;
     }
 
     public static int loadTexture(final IntBuffer data, final Size size, final int usedTexId) {
@@ -144,6 +163,17 @@ public class OpenGlUtils {
         return iProgId;
     }
 
+    /**
+     * Checks whether the current context is an OpenGL ES 3.0 or newer one.
+     *
+     * @return true if GLES30 functions can be used
+     */
+    public static boolean isGLES3Context() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+    }
+
     public static float rnd(final float min, final float max) {
         float fRandNum = (float) Math.random();
         return min + (max - min) * fRandNum;
@@ -22,7 +22,8 @@ import static javax.microedition.khronos.egl.EGL10.EGL_WIDTH;
 import static javax.microedition.khronos.opengles.GL10.GL_RGBA;
 import static javax.microedition.khronos.opengles.GL10.GL_UNSIGNED_BYTE;
 
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -44,6 +45,7 @@ public class PixelBuffer {
     GLSurfaceView.Renderer mRenderer; // borrow this interface
     int mWidth, mHeight;
     Bitmap mBitmap;
+    ByteBuffer mPixels;
 
     EGL10 mEGL;
     EGLDisplay mEGLDisplay;
@@ -54,8 +56,23 @@ public class PixelBuffer {
     GL10 mGL;
 
     String mThreadOwner;
+    boolean mShared;
 
     public PixelBuffer(final int width, final int height) {
+        this(width, height, EGL_NO_CONTEXT, 2);
+    }
+
+    /**
+     * Creates a pbuffer context on the calling thread that shares textures
+     * and programs with the given context.
+     *
+     * @param width the pbuffer width
+     * @param height the pbuffer height
+     * @param shareContext the context to share objects with, or EGL_NO_CONTEXT
+     * @param clientVersion the OpenGL ES version of the context
+     */
+    public PixelBuffer(final int width, final int height, final EGLContext shareContext,
+                       final int clientVersion) {
         mWidth = width;
         mHeight = height;
 
@@ -76,10 +93,11 @@ public class PixelBuffer {
         // mEGLContext = mEGL.eglCreateContext(mEGLDisplay, mEGLConfig,
         // EGL_NO_CONTEXT, null);
         int[] attrib_list = {
-                EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL_CONTEXT_CLIENT_VERSION, clientVersion,
                 EGL10.EGL_NONE
         };
-        mEGLContext = mEGL.eglCreateContext(mEGLDisplay, mEGLConfig, EGL_NO_CONTEXT, attrib_list);
+        mEGLContext = mEGL.eglCreateContext(mEGLDisplay, mEGLConfig, shareContext, attrib_list);
+        mShared = shareContext != EGL_NO_CONTEXT;
 
         mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig, attribList);
         mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
@@ -140,6 +158,42 @@ public class PixelBuffer {
         mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
     }
 
+    /**
+     * Recreates the pbuffer surface for a new size, keeping the context and
+     * everything in it. Does nothing if the size did not change.
+     *
+     * @param width the new width
+     * @param height the new height
+     */
+    public void setSize(final int width, final int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        if (!Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "setSize: This thread does not own the OpenGL context.");
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        mPixels = null;
+        mBitmap = null;
+
+        int[] attribList = new int[] {
+                EGL_WIDTH, mWidth,
+                EGL_HEIGHT, mHeight,
+                EGL_NONE
+        };
+        mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
+                EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+        mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig, attribList);
+        mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
+
+        if (mRenderer != null) {
+            mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
+        }
+    }
+
     public void makeCurrent(){
         if (mEGLDisplay == EGL10.EGL_NO_DISPLAY) {
             // called makeCurrent() before create?
@@ -155,6 +209,17 @@ public class PixelBuffer {
     }
 
     public Bitmap getBitmap() {
+        return getBitmap(null);
+    }
+
+    /**
+     * Draws a frame and copies it into a bitmap.
+     *
+     * @param reuse a mutable ARGB_8888 bitmap of the buffer's size to copy the
+     *              frame into, or null to create a new one
+     * @return the bitmap holding the frame
+     */
+    public Bitmap getBitmap(final Bitmap reuse) {
         // Do we have a renderer?
         if (mRenderer == null) {
             Log.e(TAG, "getBitmap: Renderer was not set.");
@@ -167,14 +232,50 @@ public class PixelBuffer {
             return null;
         }
 
+        // Let GPUImageRenderer draw upside down, so the rows come back top down.
+        boolean flipped = mRenderer instanceof GPUImageRenderer;
+        if (flipped) {
+            ((GPUImageRenderer) mRenderer).setFlipOutputVertically(true);
+        }
         // Call the renderer draw routine (it seems that some filters do not
         // work if this is only called once)
         mRenderer.onDrawFrame(mGL);
         mRenderer.onDrawFrame(mGL);
-        convertToBitmap();
+        if (flipped) {
+            ((GPUImageRenderer) mRenderer).setFlipOutputVertically(false);
+        }
+        convertToBitmap(reuse, flipped);
         return mBitmap;
     }
 
+    /**
+     * Draws a frame and passes it to a frame reader, which in asynchronous
+     * mode returns before the GPU has finished the frame. The reader sees
+     * rows top down.
+     *
+     * @param reader the reader created on this buffer's thread
+     */
+    public void renderFrame(final GPUImageFrameReader reader) {
+        if (mRenderer == null) {
+            Log.e(TAG, "renderFrame: Renderer was not set.");
+            return;
+        }
+        if (!Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "renderFrame: This thread does not own the OpenGL context.");
+            return;
+        }
+
+        boolean flipped = mRenderer instanceof GPUImageRenderer;
+        if (flipped) {
+            ((GPUImageRenderer) mRenderer).setFlipOutputVertically(true);
+        }
+        mRenderer.onDrawFrame(mGL);
+        if (flipped) {
+            ((GPUImageRenderer) mRenderer).setFlipOutputVertically(false);
+        }
+        reader.readFrame();
+    }
+
     public void doDrawSimple() {
         // Do we have a renderer?
         if (mRenderer == null) {
@@ -195,14 +296,22 @@ public class PixelBuffer {
     }
 
     public void destroy() {
-        mRenderer.onDrawFrame(mGL);
-        mRenderer.onDrawFrame(mGL);
+        if (mRenderer != null) {
+            mRenderer.onDrawFrame(mGL);
+            mRenderer.onDrawFrame(mGL);
+        }
+        GPUImageFramebufferCache.getInstance().releaseCurrentContext();
+        GPUImageProgramCache.getInstance().releaseCurrentContext();
+        GPUImageTextureCache.getInstance().releaseCurrentContext();
         mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
                 EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
 
         mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
         mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
-        mEGL.eglTerminate(mEGLDisplay);
+        if (!mShared) {
+            // The display is still in use by the context shared with.
+            mEGL.eglTerminate(mEGLDisplay);
+        }
     }
 
     // Android-specific extension.
@@ -267,23 +376,57 @@ public class PixelBuffer {
                 attribute, value) ? value[0] : 0;
     }
 
-    private void convertToBitmap() {
-        int[] iat = new int[mWidth * mHeight];
-        IntBuffer ib = IntBuffer.allocate(mWidth * mHeight);
-        mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
-        int[] ia = ib.array();
-
-        // Convert upside down mirror-reversed image to right-side up normal
-        // image.
-        for (int i = 0; i < mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                iat[(mHeight - i - 1) * mWidth + j] = ia[i * mWidth + j];
-            }
+    private void convertToBitmap(final Bitmap reuse, final boolean topDown) {
+        if (mPixels == null) {
+            mPixels = ByteBuffer.allocateDirect(mWidth * mHeight * 4)
+                    .order(ByteOrder.nativeOrder());
+        }
+        mPixels.rewind();
+        mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, mPixels);
+
+        if (!topDown) {
+            // Convert upside down image to right-side up normal image.
+            flipRows(mPixels);
         }
-        
 
-        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
+        if (reuse != null && reuse.isMutable() && reuse.getWidth() == mWidth
+                && reuse.getHeight() == mHeight && reuse.getConfig() == Bitmap.Config.ARGB_8888) {
+            mBitmap = reuse;
+        } else {
+            mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        }
+        // RGBA bytes are the memory layout of ARGB_8888.
+        mPixels.rewind();
+        mBitmap.copyPixelsFromBuffer(mPixels);
+    }
+
+    private void flipRows(final ByteBuffer pixels) {
+        int stride = mWidth * 4;
+        byte[] top = new byte[stride];
+        byte[] bottom = new byte[stride];
+        for (int i = 0; i < mHeight / 2; i++) {
+            int topOffset = i * stride;
+            int bottomOffset = (mHeight - i - 1) * stride;
+            pixels.position(topOffset);
+            pixels.get(top);
+            pixels.position(bottomOffset);
+            pixels.get(bottom);
+            pixels.position(topOffset);
+            pixels.put(bottom);
+            pixels.position(bottomOffset);
+            pixels.put(top);
+        }
+        pixels.rewind();
+    }
+
+    /**
+     * Gets the largest pbuffer side the chosen config supports.
+     *
+     * @return the size in pixels, 0 if unknown
+     */
+    public int getMaxSurfaceSize() {
+        return Math.min(getConfigAttrib(mEGLConfig, EGL10.EGL_MAX_PBUFFER_WIDTH),
+                getConfigAttrib(mEGLConfig, EGL10.EGL_MAX_PBUFFER_HEIGHT));
     }
 
     public int getWidth() {
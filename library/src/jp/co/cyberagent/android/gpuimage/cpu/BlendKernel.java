@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A kernel combining each pixel with the second image of a
+ * {@code GPUImageTwoInputFilter}, which is stretched over the whole input.
+ */
+abstract class BlendKernel implements GPUImageCpuKernel {
+    private final int[] mOverlay;
+    private final int mOverlayWidth;
+    private final int mOverlayHeight;
+
+    /**
+     * @param overlay the premultiplied pixels of the second image
+     * @param overlayWidth the width of the second image
+     * @param overlayHeight the height of the second image
+     */
+    BlendKernel(final int[] overlay, final int overlayWidth, final int overlayHeight) {
+        mOverlay = overlay;
+        mOverlayWidth = overlayWidth;
+        mOverlayHeight = overlayHeight;
+    }
+
+    @Override
+    public void apply(final int[] input, final int[] output, final int width, final int height,
+                      final int top, final int bottom) {
+        float[] base = new float[4];
+        float[] overlay = new float[4];
+        float scaleX = (float) mOverlayWidth / width;
+        float scaleY = (float) mOverlayHeight / height;
+        for (int y = top; y < bottom; y++) {
+            float overlayY = (y + 0.5f) * scaleY - 0.5f;
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                CpuPixels.unpack(input[i], base);
+                CpuPixels.sample(mOverlay, mOverlayWidth, mOverlayHeight,
+                        (x + 0.5f) * scaleX - 0.5f, overlayY, overlay);
+                blend(base, overlay);
+                output[i] = CpuPixels.pack(base);
+            }
+        }
+    }
+
+    /**
+     * Blends one pixel.
+     *
+     * @param base the input color, receives the result
+     * @param overlay the color of the second image
+     */
+    abstract void blend(float[] base, float[] overlay);
+}
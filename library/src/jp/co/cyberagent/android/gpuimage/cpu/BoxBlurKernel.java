@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * Horizontal box blurs of each row, one after another, written transposed.
+ * Every box keeps running sums of the pixels in its window and moves them
+ * by adding the pixel entering and subtracting the one leaving, so the cost
+ * per pixel does not depend on the radius. Pixels beyond the edges repeat
+ * the edge pixel, like a texture clamped to the edge.
+ */
+class BoxBlurKernel extends TransposingRowKernel {
+    private final int[] mRadii;
+
+    /**
+     * @param radii the radius of each box in pixels, applied in order
+     */
+    BoxBlurKernel(final int... radii) {
+        mRadii = radii;
+    }
+
+    @Override
+    int getScratchSize(final int width) {
+        return mRadii.length > 1 ? 2 * width : 0;
+    }
+
+    @Override
+    void filterRow(final int[] input, final int inputOffset, final int[] output,
+                   final int outputOffset, final int width, final int[] scratch) {
+        int[] source = input;
+        int sourceOffset = inputOffset;
+        for (int i = 0; i < mRadii.length; i++) {
+            boolean last = i == mRadii.length - 1;
+            int[] target = last ? output : scratch;
+            int targetOffset = last ? outputOffset : (i & 1) * width;
+            box(source, sourceOffset, target, targetOffset, width, mRadii[i]);
+            source = target;
+            sourceOffset = targetOffset;
+        }
+    }
+
+    private static void box(final int[] source, final int sourceOffset, final int[] target,
+                            final int targetOffset, final int width, final int radius) {
+        int window = 2 * radius + 1;
+        // (sum * reciprocal) >>> 32 equals sum / window for every sum of the
+        // window, see GPUImageCpuBlur.MAX_RADIUS.
+        long reciprocal = ((1L << 32) + window - 1) / window;
+        int half = radius;
+        int last = width - 1;
+
+        int a = 0;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int i = -radius; i <= radius; i++) {
+            int pixel = source[sourceOffset + Math.max(0, Math.min(last, i))];
+            a += pixel >>> 24;
+            r += (pixel >> 16) & 0xff;
+            g += (pixel >> 8) & 0xff;
+            b += pixel & 0xff;
+        }
+        for (int x = 0; x < width; x++) {
+            target[targetOffset + x] = (int) (((a + half) * reciprocal) >>> 32) << 24
+                    | (int) (((r + half) * reciprocal) >>> 32) << 16
+                    | (int) (((g + half) * reciprocal) >>> 32) << 8
+                    | (int) (((b + half) * reciprocal) >>> 32);
+            int entering = source[sourceOffset + Math.min(last, x + radius + 1)];
+            int leaving = source[sourceOffset + Math.max(0, x - radius)];
+            a += (entering >>> 24) - (leaving >>> 24);
+            r += ((entering >> 16) & 0xff) - ((leaving >> 16) & 0xff);
+            g += ((entering >> 8) & 0xff) - ((leaving >> 8) & 0xff);
+            b += (entering & 0xff) - (leaving & 0xff);
+        }
+    }
+}
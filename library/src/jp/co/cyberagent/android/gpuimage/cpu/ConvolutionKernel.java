@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * The 3x3 convolution of {@code GPUImage3x3ConvolutionFilter}. Like the
+ * shader it names the samples after texture coordinates, which grow bottom
+ * up, so its "top" row lies below the pixel in the top down CPU image.
+ */
+class ConvolutionKernel implements GPUImageCpuKernel {
+    private final float[] mKernel;
+    private final float mStep;
+
+    /**
+     * @param kernel the 3x3 kernel, "top" row first
+     * @param step the distance of the samples in pixels
+     */
+    ConvolutionKernel(final float[] kernel, final float step) {
+        mKernel = kernel.clone();
+        mStep = step;
+    }
+
+    @Override
+    public void apply(final int[] input, final int[] output, final int width, final int height,
+                      final int top, final int bottom) {
+        float[] sample = new float[4];
+        float[] sum = new float[4];
+        for (int y = top; y < bottom; y++) {
+            for (int x = 0; x < width; x++) {
+                sum[0] = sum[1] = sum[2] = sum[3] = 0f;
+                for (int row = 0; row < 3; row++) {
+                    for (int column = 0; column < 3; column++) {
+                        float weight = mKernel[row * 3 + column];
+                        if (weight == 0f) {
+                            continue;
+                        }
+                        CpuPixels.sample(input, width, height, x + (column - 1) * mStep,
+                                y + (1 - row) * mStep, sample);
+                        for (int c = 0; c < 4; c++) {
+                            sum[c] += sample[c] * weight;
+                        }
+                    }
+                }
+                output[y * width + x] = CpuPixels.pack(sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Conversions between bitmaps, packed premultiplied ARGB pixels and the
+ * 0 to 1 floats the kernels compute with, rounded like an RGBA8 framebuffer.
+ */
+final class CpuPixels {
+    private CpuPixels() {
+    }
+
+    /**
+     * Gets the premultiplied pixels of a bitmap, as uploaded to a texture.
+     */
+    static int[] fromBitmap(final Bitmap bitmap) {
+        Bitmap source = bitmap;
+        if (source.getConfig() != Bitmap.Config.ARGB_8888) {
+            source = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        int count = source.getWidth() * source.getHeight();
+        ByteBuffer buffer = ByteBuffer.allocate(count * 4);
+        source.copyPixelsToBuffer(buffer);
+        if (source != bitmap) {
+            source.recycle();
+        }
+        // ARGB_8888 is stored as R, G, B, A bytes.
+        byte[] bytes = buffer.array();
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            int offset = i * 4;
+            pixels[i] = (bytes[offset + 3] & 0xff) << 24 | (bytes[offset] & 0xff) << 16
+                    | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff);
+        }
+        return pixels;
+    }
+
+    /**
+     * Writes premultiplied pixels into a mutable ARGB_8888 bitmap.
+     */
+    static void toBitmap(final int[] pixels, final Bitmap bitmap) {
+        byte[] bytes = new byte[pixels.length * 4];
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int offset = i * 4;
+            bytes[offset] = (byte) (pixel >> 16);
+            bytes[offset + 1] = (byte) (pixel >> 8);
+            bytes[offset + 2] = (byte) pixel;
+            bytes[offset + 3] = (byte) (pixel >>> 24);
+        }
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    static void unpack(final int pixel, final float[] rgba) {
+        rgba[0] = ((pixel >> 16) & 0xff) / 255f;
+        rgba[1] = ((pixel >> 8) & 0xff) / 255f;
+        rgba[2] = (pixel & 0xff) / 255f;
+        rgba[3] = (pixel >>> 24) / 255f;
+    }
+
+    static int pack(final float[] rgba) {
+        return toByte(rgba[3]) << 24 | toByte(rgba[0]) << 16 | toByte(rgba[1]) << 8
+                | toByte(rgba[2]);
+    }
+
+    static int toByte(final float value) {
+        if (!(value > 0f)) {
+            return 0;
+        }
+        return value >= 1f ? 255 : (int) (value * 255f + 0.5f);
+    }
+
+    /**
+     * Samples an image with bilinear filtering and clamping to the edge, like
+     * a GL_LINEAR texture. Coordinates are in pixels, a whole number hits the
+     * center of a pixel.
+     */
+    static void sample(final int[] pixels, final int width, final int height, final float x,
+                       final float y, final float[] rgba) {
+        float cx = Math.max(0f, Math.min(width - 1, x));
+        float cy = Math.max(0f, Math.min(height - 1, y));
+        int x0 = (int) cx;
+        int y0 = (int) cy;
+        int x1 = Math.min(x0 + 1, width - 1);
+        int y1 = Math.min(y0 + 1, height - 1);
+        float fx = cx - x0;
+        float fy = cy - y0;
+        int p00 = pixels[y0 * width + x0];
+        int p10 = pixels[y0 * width + x1];
+        int p01 = pixels[y1 * width + x0];
+        int p11 = pixels[y1 * width + x1];
+        for (int c = 0; c < 4; c++) {
+            int shift = c == 3 ? 24 : 16 - c * 8;
+            float top = lerp((p00 >>> shift) & 0xff, (p10 >>> shift) & 0xff, fx);
+            float bottom = lerp((p01 >>> shift) & 0xff, (p11 >>> shift) & 0xff, fx);
+            rgba[c] = lerp(top, bottom, fy) / 255f;
+        }
+    }
+
+    private static float lerp(final float a, final float b, final float f) {
+        return a + (b - a) * f;
+    }
+}
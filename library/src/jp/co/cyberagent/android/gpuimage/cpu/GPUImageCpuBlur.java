@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Blurs of any radius for {@link GPUImageCpuRenderer#render(List, int[], int, int)},
+ * at a cost per pixel independent of the radius. Unlike the shader blurs,
+ * which sample a fixed number of taps, these are meant for large radii, like
+ * backgrounds and thumbnails.
+ * <br>
+ * Both blurs are two passes which blur the rows and write them transposed,
+ * the second pass blurring the columns of the image and transposing it
+ * back. A Gaussian blur is approximated by three box blurs of sizes chosen
+ * to match its standard deviation.
+ */
+public final class GPUImageCpuBlur {
+    /** The largest radius the integer arithmetic of the passes is exact for. */
+    public static final int MAX_RADIUS = 2047;
+
+    private static final int GAUSSIAN_BOXES = 3;
+
+    private GPUImageCpuBlur() {
+    }
+
+    /**
+     * Creates the passes of a box blur, averaging 2 * radius + 1 pixels
+     * along each axis.
+     *
+     * @param radius the radius in pixels, 0 to {@link #MAX_RADIUS}
+     * @return the passes
+     */
+    public static List<GPUImageCpuKernel> box(final int radius) {
+        checkRadius(radius);
+        return passes(new int[] {radius});
+    }
+
+    /**
+     * Creates the passes of an approximate Gaussian blur.
+     *
+     * @param sigma the standard deviation in pixels
+     * @return the passes
+     */
+    public static List<GPUImageCpuKernel> gaussian(final float sigma) {
+        if (sigma < 0f) {
+            throw new IllegalArgumentException("sigma must not be negative");
+        }
+        int[] radii = getBoxRadii(sigma, GAUSSIAN_BOXES);
+        checkRadius(radii[radii.length - 1]);
+        return passes(radii);
+    }
+
+    /**
+     * Gets the radii of boxes whose repeated application has the variance of
+     * a Gaussian. The sizes are the odd widths around the ideal one, the
+     * smaller ones first, in the number matching the variance best.
+     */
+    static int[] getBoxRadii(final float sigma, final int boxes) {
+        double variance = 12.0 * sigma * sigma;
+        int lower = (int) Math.floor(Math.sqrt(variance / boxes + 1));
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        int lowerCount = (int) Math.round((variance - boxes * lower * lower - 4 * boxes * lower
+                - 3 * boxes) / (-4 * lower - 4));
+        lowerCount = Math.max(0, Math.min(boxes, lowerCount));
+        int[] radii = new int[boxes];
+        for (int i = 0; i < boxes; i++) {
+            radii[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    private static List<GPUImageCpuKernel> passes(final int[] radii) {
+        List<GPUImageCpuKernel> passes = new ArrayList<GPUImageCpuKernel>(2);
+        passes.add(new BoxBlurKernel(radii));
+        passes.add(new BoxBlurKernel(radii));
+        return passes;
+    }
+
+    private static void checkRadius(final int radius) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("radius must be 0 to " + MAX_RADIUS);
+        }
+    }
+}
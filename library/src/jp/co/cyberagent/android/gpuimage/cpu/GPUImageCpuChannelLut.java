@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import java.util.Arrays;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * A chain of filters which compute every channel from the same channel only,
+ * like brightness, levels or tone curves, compiled into one table per
+ * channel. Each filter rounds its output to 8 bits like the RGBA8
+ * framebuffer between two passes, so the tables give exactly the result of
+ * running the filters one by one, at the cost of four lookups per pixel.
+ * <br>
+ * {@link GPUImageCpuKernels#createKernels(GPUImageFilter, int, int)} compiles
+ * runs of such filters by itself, see
+ * {@link GPUImageCpuKernels#isSeparable(GPUImageFilter)}.
+ */
+public class GPUImageCpuChannelLut implements GPUImageCpuKernel {
+    private final byte[][] mTables;
+    private final int[] mRed = new int[256];
+    private final int[] mGreen = new int[256];
+    private final int[] mBlue = new int[256];
+    private final int[] mAlpha = new int[256];
+
+    private GPUImageCpuChannelLut(final byte[][] tables) {
+        mTables = tables;
+        // Entries shifted to their place in a pixel, so a pixel takes no
+        // shifts or masks on output.
+        for (int i = 0; i < 256; i++) {
+            mRed[i] = (tables[0][i] & 0xff) << 16;
+            mGreen[i] = (tables[1][i] & 0xff) << 8;
+            mBlue[i] = tables[2][i] & 0xff;
+            mAlpha[i] = (tables[3][i] & 0xff) << 24;
+        }
+    }
+
+    /**
+     * Compiles filters with their current parameters.
+     *
+     * @param filters the filters, in order
+     * @return the tables, or null if a filter has no kernels with its
+     *         current parameters
+     * @throws IllegalArgumentException if a filter is not separable
+     */
+    public static GPUImageCpuChannelLut compile(final List<? extends GPUImageFilter> filters) {
+        // Every filter maps a ramp of the 256 values in all channels.
+        int[] ramp = new int[256];
+        for (int i = 0; i < 256; i++) {
+            ramp[i] = i << 24 | i << 16 | i << 8 | i;
+        }
+        int[] mapped = new int[256];
+        for (GPUImageFilter filter : filters) {
+            if (!GPUImageCpuKernels.isSeparable(filter)) {
+                throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                        + " mixes channels");
+            }
+            List<GPUImageCpuKernel> kernels = GPUImageCpuKernels.createPasses(filter, 256, 1);
+            if (kernels == null) {
+                return null;
+            }
+            for (GPUImageCpuKernel kernel : kernels) {
+                kernel.apply(ramp, mapped, 256, 1, 0, 1);
+                int[] swap = ramp;
+                ramp = mapped;
+                mapped = swap;
+            }
+        }
+
+        byte[][] tables = new byte[4][256];
+        for (int i = 0; i < 256; i++) {
+            tables[0][i] = (byte) (ramp[i] >> 16);
+            tables[1][i] = (byte) (ramp[i] >> 8);
+            tables[2][i] = (byte) ramp[i];
+            tables[3][i] = (byte) (ramp[i] >>> 24);
+        }
+        return new GPUImageCpuChannelLut(tables);
+    }
+
+    /**
+     * Gets the table of a channel.
+     *
+     * @param channel 0 to 3 for red, green, blue and alpha
+     * @return the 256 output values, by input value
+     */
+    public byte[] getTable(final int channel) {
+        return Arrays.copyOf(mTables[channel], 256);
+    }
+
+    @Override
+    public void apply(final int[] input, final int[] output, final int width, final int height,
+                      final int top, final int bottom) {
+        int[] red = mRed;
+        int[] green = mGreen;
+        int[] blue = mBlue;
+        int[] alpha = mAlpha;
+        for (int i = top * width, end = bottom * width; i < end; i++) {
+            int pixel = input[i];
+            output[i] = alpha[pixel >>> 24] | red[(pixel >> 16) & 0xff]
+                    | green[(pixel >> 8) & 0xff] | blue[pixel & 0xff];
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * One render pass of a filter on the CPU, the counterpart of a fragment
+ * shader. Images are arrays of premultiplied ARGB pixels, rows top down,
+ * which is what the shaders see of a bitmap.
+ * <br>
+ * A pass may be split into bands of rows computed on different threads at
+ * the same time, so it must only read the input and only write the rows of
+ * the output it was given.
+ */
+public interface GPUImageCpuKernel {
+    /**
+     * Computes rows top to bottom - 1 of the output.
+     *
+     * @param input the input pixels, width * height
+     * @param output the output pixels, width * height
+     * @param width the image width
+     * @param height the image height
+     * @param top the first row to compute
+     * @param bottom the row after the last one to compute
+     */
+    void apply(int[] input, int[] output, int width, int height, int top, int bottom);
+}
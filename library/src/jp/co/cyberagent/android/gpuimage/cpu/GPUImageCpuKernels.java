@@ -0,0 +1,754 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImage3x3ConvolutionFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageAddBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageAlphaBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageBoxBlurFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageBrightnessFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageColorInvertFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageColorMatrixFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageContrastFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageDarkenBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageDifferenceBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageDilationFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageEmbossFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageExposureFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilterGroup;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageGammaFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageGaussianBlurFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageGrayscaleFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageLevelsFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageLightenBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageMultiplyBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageNormalBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageOpacityFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageOverlayBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImagePosterizeFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageRGBDilationFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageRGBFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageSaturationFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageScreenBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageSepiaFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageSubtractBlendFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageToneCurveFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageTwoInputFilter;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageTwoPassTextureSamplingFilter;
+
+/**
+ * Registry of the CPU kernels of filter classes. Kernels are looked up by the
+ * exact class of a filter, since a subclass usually changes the shader.
+ * Groups without a kernel of their own run the kernels of their filters.
+ * <br>
+ * The built-in kernels follow the shaders of point-wise, 3x3 convolution,
+ * blend, two-pass blur and dilation filters. They compute in floats and
+ * round each pass to 8 bits like an RGBA8 framebuffer, so they match the GPU
+ * to within one step per channel and pass, two for passes sampling between
+ * pixels.
+ */
+public final class GPUImageCpuKernels {
+    private static final float[] LUMINANCE = {0.2125f, 0.7154f, 0.0721f};
+    private static final Map<Class<? extends GPUImageFilter>, Factory> sFactories =
+            new HashMap<Class<? extends GPUImageFilter>, Factory>();
+    private static final Set<Class<? extends GPUImageFilter>> sSeparable =
+            new HashSet<Class<? extends GPUImageFilter>>();
+
+    public interface Factory {
+        /**
+         * Creates the passes of a filter, with its current parameters.
+         *
+         * @param filter the filter
+         * @param width the image width
+         * @param height the image height
+         * @return the kernels to run in order, or null if these parameters
+         *         are not supported
+         */
+        GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height);
+    }
+
+    private GPUImageCpuKernels() {
+    }
+
+    /**
+     * Registers the kernels of a filter class, replacing any registered
+     * before.
+     *
+     * @param filterClass the exact class of the filters
+     * @param factory creates the kernels of a filter
+     */
+    public static void register(final Class<? extends GPUImageFilter> filterClass,
+                                final Factory factory) {
+        synchronized (sFactories) {
+            sFactories.put(filterClass, factory);
+            sSeparable.remove(filterClass);
+        }
+    }
+
+    /**
+     * Registers the kernels of a filter class computing every channel from
+     * the same channel only, whatever its parameters, so that runs of such
+     * filters can be compiled into a {@link GPUImageCpuChannelLut}.
+     *
+     * @param filterClass the exact class of the filters
+     * @param factory creates the kernels of a filter
+     */
+    public static void registerSeparable(final Class<? extends GPUImageFilter> filterClass,
+                                         final Factory factory) {
+        synchronized (sFactories) {
+            sFactories.put(filterClass, factory);
+            sSeparable.add(filterClass);
+        }
+    }
+
+    /**
+     * Checks whether a filter was registered with
+     * {@link #registerSeparable(Class, Factory)}.
+     *
+     * @param filter the filter
+     * @return true if every channel depends on the same channel only
+     */
+    public static boolean isSeparable(final GPUImageFilter filter) {
+        synchronized (sFactories) {
+            return sSeparable.contains(filter.getClass());
+        }
+    }
+
+    /**
+     * Checks whether there are kernels for a filter, or for all filters of a
+     * group. Some parameters are still not supported, like a texel size set
+     * by hand or a missing second image, see
+     * {@link #createKernels(GPUImageFilter, int, int)}.
+     *
+     * @param filter the filter, or group of filters
+     * @return true if there are kernels for it
+     */
+    public static boolean isSupported(final GPUImageFilter filter) {
+        synchronized (sFactories) {
+            if (sFactories.containsKey(filter.getClass())) {
+                return true;
+            }
+        }
+        if (!(filter instanceof GPUImageFilterGroup)) {
+            return false;
+        }
+        for (GPUImageFilter member : ((GPUImageFilterGroup) filter).getFilters()) {
+            if (!isSupported(member)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the passes rendering a filter on the CPU. Consecutive separable
+     * filters are compiled into one {@link GPUImageCpuChannelLut}.
+     *
+     * @param filter the filter, or group of filters
+     * @param width the image width
+     * @param height the image height
+     * @return the kernels to run in order, or null if the filter or one of
+     *         the filters of a group has no kernel
+     */
+    public static List<GPUImageCpuKernel> createKernels(final GPUImageFilter filter,
+                                                        final int width, final int height) {
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        if (!addFilters(filter, filters)) {
+            return null;
+        }
+
+        List<GPUImageCpuKernel> kernels = new ArrayList<GPUImageCpuKernel>();
+        List<GPUImageFilter> separable = new ArrayList<GPUImageFilter>();
+        for (GPUImageFilter member : filters) {
+            if (isSeparable(member)) {
+                separable.add(member);
+                continue;
+            }
+            if (!addChannelLut(separable, kernels)) {
+                return null;
+            }
+            List<GPUImageCpuKernel> passes = createPasses(member, width, height);
+            if (passes == null) {
+                return null;
+            }
+            kernels.addAll(passes);
+        }
+        return addChannelLut(separable, kernels) ? kernels : null;
+    }
+
+    /**
+     * Creates the passes of a filter with a factory of its own, without
+     * compiling them.
+     */
+    static List<GPUImageCpuKernel> createPasses(final GPUImageFilter filter, final int width,
+                                                final int height) {
+        Factory factory;
+        synchronized (sFactories) {
+            factory = sFactories.get(filter.getClass());
+        }
+        GPUImageCpuKernel[] passes = factory != null ? factory.create(filter, width, height)
+                : null;
+        return passes != null ? Arrays.asList(passes) : null;
+    }
+
+    private static boolean addChannelLut(final List<GPUImageFilter> separable,
+                                         final List<GPUImageCpuKernel> kernels) {
+        if (separable.isEmpty()) {
+            return true;
+        }
+        GPUImageCpuChannelLut lut = GPUImageCpuChannelLut.compile(separable);
+        separable.clear();
+        if (lut == null) {
+            return false;
+        }
+        kernels.add(lut);
+        return true;
+    }
+
+    /**
+     * Adds a filter with a factory, or the filters of a group without one.
+     */
+    private static boolean addFilters(final GPUImageFilter filter,
+                                      final List<GPUImageFilter> filters) {
+        synchronized (sFactories) {
+            if (sFactories.containsKey(filter.getClass())) {
+                filters.add(filter);
+                return true;
+            }
+        }
+        if (!(filter instanceof GPUImageFilterGroup)) {
+            return false;
+        }
+        for (GPUImageFilter member : ((GPUImageFilterGroup) filter).getFilters()) {
+            if (!addFilters(member, filters)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static GPUImageCpuKernel[] pass(final GPUImageCpuKernel kernel) {
+        return new GPUImageCpuKernel[] {kernel};
+    }
+
+    private static float luminance(final float[] rgba) {
+        return rgba[0] * LUMINANCE[0] + rgba[1] * LUMINANCE[1] + rgba[2] * LUMINANCE[2];
+    }
+
+    static {
+        registerSeparable(GPUImageFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                if (!GPUImageFilter.NO_FILTER_FRAGMENT_SHADER.equals(filter.getFragmentShader())) {
+                    // A filter created with shaders of its own.
+                    return null;
+                }
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageBrightnessFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final float brightness = ((GPUImageBrightnessFilter) filter).getBrightness();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            rgba[c] += brightness;
+                        }
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageContrastFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final float contrast = ((GPUImageContrastFilter) filter).getContrast();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            rgba[c] = (rgba[c] - 0.5f) * contrast + 0.5f;
+                        }
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageExposureFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final float factor = (float) Math.pow(2.0,
+                        ((GPUImageExposureFilter) filter).getExposure());
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            rgba[c] *= factor;
+                        }
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageGammaFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final double gamma = ((GPUImageGammaFilter) filter).getGamma();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            rgba[c] = (float) Math.pow(rgba[c], gamma);
+                        }
+                    }
+                });
+            }
+        });
+        register(GPUImageSaturationFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final float saturation = ((GPUImageSaturationFilter) filter).getSaturation();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        float luminance = luminance(rgba);
+                        for (int c = 0; c < 3; c++) {
+                            rgba[c] = luminance + (rgba[c] - luminance) * saturation;
+                        }
+                    }
+                });
+            }
+        });
+        register(GPUImageGrayscaleFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        rgba[0] = rgba[1] = rgba[2] = luminance(rgba);
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageColorInvertFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            rgba[c] = 1f - rgba[c];
+                        }
+                    }
+                });
+            }
+        });
+        Factory colorMatrix = new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImageColorMatrixFilter colorMatrixFilter = (GPUImageColorMatrixFilter) filter;
+                final float intensity = colorMatrixFilter.getIntensity();
+                final float[] matrix = colorMatrixFilter.getColorMatrix().clone();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        // color * matrix of a column major mat4
+                        float r = rgba[0];
+                        float g = rgba[1];
+                        float b = rgba[2];
+                        float a = rgba[3];
+                        for (int j = 0; j < 4; j++) {
+                            int column = j * 4;
+                            float value = r * matrix[column] + g * matrix[column + 1]
+                                    + b * matrix[column + 2] + a * matrix[column + 3];
+                            rgba[j] = intensity * value + (1f - intensity) * rgba[j];
+                        }
+                    }
+                });
+            }
+        };
+        register(GPUImageColorMatrixFilter.class, colorMatrix);
+        register(GPUImageSepiaFilter.class, colorMatrix);
+        registerSeparable(GPUImageOpacityFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final float opacity = ((GPUImageOpacityFilter) filter).getOpacity();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        rgba[3] *= opacity;
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageRGBFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImageRGBFilter rgbFilter = (GPUImageRGBFilter) filter;
+                final float red = rgbFilter.getRed();
+                final float green = rgbFilter.getGreen();
+                final float blue = rgbFilter.getBlue();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        rgba[0] *= red;
+                        rgba[1] *= green;
+                        rgba[2] *= blue;
+                        rgba[3] = 1f;
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImagePosterizeFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final float levels = ((GPUImagePosterizeFilter) filter).getColorLevels();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 4; c++) {
+                            rgba[c] = (float) Math.floor(rgba[c] * levels + 0.5f) / levels;
+                        }
+                    }
+                });
+            }
+        });
+
+        registerSeparable(GPUImageLevelsFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImageLevelsFilter levels = (GPUImageLevelsFilter) filter;
+                final float[] minimum = levels.getLevelMinimum();
+                final float[] middle = levels.getLevelMiddle();
+                final float[] maximum = levels.getLevelMaximum();
+                final float[] minOutput = levels.getMinOutput();
+                final float[] maxOutput = levels.getMaxOutput();
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            float level = Math.min(Math.max(rgba[c] - minimum[c], 0f)
+                                    / (maximum[c] - minimum[c]), 1f);
+                            float value = (float) Math.pow(level, 1.0 / middle[c]);
+                            rgba[c] = minOutput[c] + (maxOutput[c] - minOutput[c]) * value;
+                        }
+                    }
+                });
+            }
+        });
+        registerSeparable(GPUImageToneCurveFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                final byte[] curve = ((GPUImageToneCurveFilter) filter).getToneCurve();
+                if (curve == null) {
+                    return null;
+                }
+                return pass(new PointKernel() {
+                    @Override
+                    void apply(float[] rgba) {
+                        for (int c = 0; c < 3; c++) {
+                            // The 256 texel wide curve texture, sampled linearly.
+                            float x = Math.max(0f, Math.min(255f, rgba[c] * 256f - 0.5f));
+                            int low = (int) x;
+                            int high = Math.min(low + 1, 255);
+                            float lowValue = curve[low * 4 + c] & 0xff;
+                            float highValue = curve[high * 4 + c] & 0xff;
+                            rgba[c] = (lowValue + (highValue - lowValue) * (x - low)) / 255f;
+                        }
+                    }
+                });
+            }
+        });
+        register(GPUImage3x3ConvolutionFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImage3x3ConvolutionFilter convolution = (GPUImage3x3ConvolutionFilter) filter;
+                if (convolution.getSamplingRadius() < 0) {
+                    // Texel size set by hand instead of the line size.
+                    return null;
+                }
+                return pass(new ConvolutionKernel(convolution.getConvolutionKernel(),
+                        convolution.getLineSize()));
+            }
+        });
+        register(GPUImageEmbossFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImageEmbossFilter emboss = (GPUImageEmbossFilter) filter;
+                if (emboss.getSamplingRadius() < 0) {
+                    return null;
+                }
+                // The kernel is only set once the filter is initialized.
+                float intensity = emboss.getIntensity();
+                return pass(new ConvolutionKernel(new float[] {
+                        intensity * (-2.0f), -intensity, 0.0f,
+                        -intensity, 1.0f, intensity,
+                        0.0f, intensity, intensity * 2.0f,
+                }, emboss.getLineSize()));
+            }
+        });
+
+        register(GPUImageGaussianBlurFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImageTwoPassTextureSamplingFilter blur = (GPUImageTwoPassTextureSamplingFilter) filter;
+                float[] offsets = {-4, -3, -2, -1, 0, 1, 2, 3, 4};
+                float[] weights = {0.05f, 0.09f, 0.12f, 0.15f, 0.18f, 0.15f, 0.12f, 0.09f, 0.05f};
+                // The vertex shader swaps the texel offsets: the first pass
+                // blurs vertically by a step of the horizontal texel offset.
+                float first = blur.getHorizontalTexelOffsetRatio() * height / width;
+                float second = blur.getVerticalTexelOffsetRatio() * width / height;
+                return new GPUImageCpuKernel[] {
+                        new SeparableKernel(offsets, weights, 0f, first, false),
+                        new SeparableKernel(offsets, weights, second, 0f, false)
+                };
+            }
+        });
+        register(GPUImageBoxBlurFilter.class, new Factory() {
+            @Override
+            public GPUImageCpuKernel[] create(GPUImageFilter filter, int width, int height) {
+                GPUImageTwoPassTextureSamplingFilter blur = (GPUImageTwoPassTextureSamplingFilter) filter;
+                float[] offsets = {-3.5f, -1.5f, 0f, 1.5f, 3.5f};
+                float[] weights = {0.2f, 0.2f, 0.2f, 0.2f, 0.2f};
+                return new GPUImageCpuKernel[] {
+                        new SeparableKernel(offsets, weights,
+                                blur.getHorizontalTexelOffsetRatio(), 0f, true),
+                        new SeparableKernel(offsets, weights,
+                                0f, blur.getVerticalTexelOffsetRatio(), true)
+                };
+            }
+        });
+        register(GPUImageDilationFilter.class, new DilationFactory(true));
+        register(GPUImageRGBDilationFilter.class, new DilationFactory(false));
+
+        registerBlends();
+    }
+
+    private static class DilationFactory implements Factory {
+        private final boolean mLuminance;
+
+        DilationFactory(final boolean luminance) {
+            mLuminance = luminance;
+        }
+
+        @Override
+        public GPUImageCpuKernel[] create(final GPUImageFilter filter, final int width,
+                                          final int height) {
+            GPUImageTwoPassTextureSamplingFilter dilation = (GPUImageTwoPassTextureSamplingFilter) filter;
+            // Other ratios sample between pixels.
+            if (dilation.getHorizontalTexelOffsetRatio() != 1f
+                    || dilation.getVerticalTexelOffsetRatio() != 1f) {
+                return null;
+            }
+            List<GPUImageCpuKernel> passes =
+                    GPUImageCpuMorphology.dilate(filter.getSamplingRadius(), mLuminance);
+            return passes.toArray(new GPUImageCpuKernel[passes.size()]);
+        }
+    }
+
+    private abstract static class BlendFactory implements Factory {
+        @Override
+        public GPUImageCpuKernel[] create(final GPUImageFilter filter, final int width,
+                                          final int height) {
+            Bitmap bitmap = ((GPUImageTwoInputFilter) filter).getBitmap();
+            if (bitmap == null || bitmap.isRecycled()) {
+                return null;
+            }
+            return pass(create(filter, CpuPixels.fromBitmap(bitmap), bitmap.getWidth(),
+                    bitmap.getHeight()));
+        }
+
+        abstract BlendKernel create(GPUImageFilter filter, int[] overlay, int overlayWidth,
+                                    int overlayHeight);
+    }
+
+    private static void registerBlends() {
+        register(GPUImageNormalBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        for (int c = 0; c < 3; c++) {
+                            base[c] = overlay[c] + base[c] * base[3] * (1f - overlay[3]);
+                        }
+                        base[3] = overlay[3] + base[3] * (1f - overlay[3]);
+                    }
+                };
+            }
+        });
+        register(GPUImageMultiplyBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        float baseAlpha = base[3];
+                        float overlayAlpha = overlay[3];
+                        for (int c = 0; c < 4; c++) {
+                            base[c] = overlay[c] * base[c] + overlay[c] * (1f - baseAlpha)
+                                    + base[c] * (1f - overlayAlpha);
+                        }
+                    }
+                };
+            }
+        });
+        register(GPUImageScreenBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        for (int c = 0; c < 4; c++) {
+                            base[c] = 1f - (1f - overlay[c]) * (1f - base[c]);
+                        }
+                    }
+                };
+            }
+        });
+        register(GPUImageAddBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        float baseAlpha = base[3];
+                        float overlayAlpha = overlay[3];
+                        for (int c = 0; c < 3; c++) {
+                            if (overlay[c] * baseAlpha + base[c] * overlayAlpha
+                                    >= overlayAlpha * baseAlpha) {
+                                base[c] = overlayAlpha * baseAlpha + overlay[c] * (1f - baseAlpha)
+                                        + base[c] * (1f - overlayAlpha);
+                            } else {
+                                base[c] = overlay[c] + base[c];
+                            }
+                        }
+                        base[3] = overlayAlpha + baseAlpha - overlayAlpha * baseAlpha;
+                    }
+                };
+            }
+        });
+        register(GPUImageAlphaBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                final float mix = ((GPUImageAlphaBlendFilter) filter).getMix();
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        float amount = overlay[3] * mix;
+                        for (int c = 0; c < 3; c++) {
+                            base[c] += (overlay[c] - base[c]) * amount;
+                        }
+                    }
+                };
+            }
+        });
+        register(GPUImageDarkenBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        float baseAlpha = base[3];
+                        float overlayAlpha = overlay[3];
+                        for (int c = 0; c < 3; c++) {
+                            base[c] = Math.min(overlay[c] * baseAlpha, base[c] * overlayAlpha)
+                                    + overlay[c] * (1f - baseAlpha) + base[c] * (1f - overlayAlpha);
+                        }
+                        base[3] = 1f;
+                    }
+                };
+            }
+        });
+        register(GPUImageLightenBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        for (int c = 0; c < 4; c++) {
+                            base[c] = Math.max(base[c], overlay[c]);
+                        }
+                    }
+                };
+            }
+        });
+        register(GPUImageDifferenceBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        for (int c = 0; c < 3; c++) {
+                            base[c] = Math.abs(overlay[c] - base[c]);
+                        }
+                    }
+                };
+            }
+        });
+        register(GPUImageSubtractBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        for (int c = 0; c < 3; c++) {
+                            base[c] -= overlay[c];
+                        }
+                    }
+                };
+            }
+        });
+        register(GPUImageOverlayBlendFilter.class, new BlendFactory() {
+            @Override
+            BlendKernel create(GPUImageFilter filter, int[] overlay, int width, int height) {
+                return new BlendKernel(overlay, width, height) {
+                    @Override
+                    void blend(float[] base, float[] overlay) {
+                        float baseAlpha = base[3];
+                        float overlayAlpha = overlay[3];
+                        for (int c = 0; c < 3; c++) {
+                            float value = overlay[c] * (1f - baseAlpha) + base[c] * (1f - overlayAlpha);
+                            if (2f * base[c] < baseAlpha) {
+                                value += 2f * overlay[c] * base[c];
+                            } else {
+                                value += overlayAlpha * baseAlpha
+                                        - 2f * (baseAlpha - base[c]) * (overlayAlpha - overlay[c]);
+                            }
+                            base[c] = value;
+                        }
+                        base[3] = 1f;
+                    }
+                };
+            }
+        });
+    }
+}
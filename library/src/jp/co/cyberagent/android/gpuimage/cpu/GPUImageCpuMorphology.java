@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dilation and erosion over square neighborhoods of any radius for
+ * {@link GPUImageCpuRenderer#render(List, int[], int, int)}, at a cost per
+ * pixel independent of the radius. The shader filters
+ * {@code GPUImageDilationFilter} and {@code GPUImageRGBDilationFilter} stop
+ * at radius 4; these are meant for larger ones, like cleaning up masks.
+ * <br>
+ * In luminance mode the red channel of the image is used and the result is
+ * an opaque gray, like {@code GPUImageDilationFilter}, which expects a gray
+ * or thresholded image. Otherwise every channel, alpha included, is taken on
+ * its own, like {@code GPUImageRGBDilationFilter}.
+ */
+public final class GPUImageCpuMorphology {
+    private GPUImageCpuMorphology() {
+    }
+
+    /**
+     * Creates the passes setting every pixel to the maximum of its
+     * neighborhood, which grows bright features.
+     *
+     * @param radius the distance in pixels the neighborhood extends out
+     * @param luminance true for the red channel only, false for every channel
+     * @return the passes
+     */
+    public static List<GPUImageCpuKernel> dilate(final int radius, final boolean luminance) {
+        List<GPUImageCpuKernel> passes = new ArrayList<GPUImageCpuKernel>(2);
+        addPasses(passes, radius, true, luminance);
+        return passes;
+    }
+
+    /**
+     * Creates the passes setting every pixel to the minimum of its
+     * neighborhood, which grows dark features.
+     *
+     * @param radius the distance in pixels the neighborhood extends out
+     * @param luminance true for the red channel only, false for every channel
+     * @return the passes
+     */
+    public static List<GPUImageCpuKernel> erode(final int radius, final boolean luminance) {
+        List<GPUImageCpuKernel> passes = new ArrayList<GPUImageCpuKernel>(2);
+        addPasses(passes, radius, false, luminance);
+        return passes;
+    }
+
+    /**
+     * Creates the passes of an erosion followed by a dilation, which removes
+     * bright features smaller than the neighborhood.
+     *
+     * @param radius the distance in pixels the neighborhood extends out
+     * @param luminance true for the red channel only, false for every channel
+     * @return the passes
+     */
+    public static List<GPUImageCpuKernel> open(final int radius, final boolean luminance) {
+        List<GPUImageCpuKernel> passes = new ArrayList<GPUImageCpuKernel>(4);
+        addPasses(passes, radius, false, luminance);
+        addPasses(passes, radius, true, luminance);
+        return passes;
+    }
+
+    /**
+     * Creates the passes of a dilation followed by an erosion, which fills
+     * dark holes smaller than the neighborhood.
+     *
+     * @param radius the distance in pixels the neighborhood extends out
+     * @param luminance true for the red channel only, false for every channel
+     * @return the passes
+     */
+    public static List<GPUImageCpuKernel> close(final int radius, final boolean luminance) {
+        List<GPUImageCpuKernel> passes = new ArrayList<GPUImageCpuKernel>(4);
+        addPasses(passes, radius, true, luminance);
+        addPasses(passes, radius, false, luminance);
+        return passes;
+    }
+
+    private static void addPasses(final List<GPUImageCpuKernel> passes, final int radius,
+                                  final boolean dilate, final boolean luminance) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius must not be negative");
+        }
+        // The first pass handles the rows, the second the columns.
+        passes.add(new MorphologyKernel(radius, dilate, luminance));
+        passes.add(new MorphologyKernel(radius, dilate, luminance));
+    }
+}
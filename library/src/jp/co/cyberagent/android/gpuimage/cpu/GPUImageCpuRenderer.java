@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * Renders filters on the CPU with the kernels of {@link GPUImageCpuKernels},
+ * for machines and devices without a usable GPU and as a reference for the
+ * GPU output. No OpenGL context is needed; filters do not have to be
+ * initialized.
+ * <br>
+ * Every pass is split into bands of rows, one task per band, which run on a
+ * fixed pool of threads. There are a few bands per thread so that threads
+ * finishing early pick up remaining work.
+ */
+public class GPUImageCpuRenderer {
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final ExecutorService mExecutor;
+    private final int mThreadCount;
+
+    /**
+     * Creates a renderer using one thread per core.
+     */
+    public GPUImageCpuRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a renderer using the given number of threads.
+     *
+     * @param threadCount the number of threads, 1 renders on the calling thread
+     */
+    public GPUImageCpuRenderer(final int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+        if (mThreadCount == 1) {
+            mExecutor = null;
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GPUImageCpuRenderer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Applies a filter to a bitmap.
+     *
+     * @param filter the filter, or group of filters
+     * @param bitmap the input, it is not recycled
+     * @return a new ARGB_8888 bitmap of the input's size
+     * @throws UnsupportedOperationException if there are no kernels for the
+     *         filter with its current parameters
+     */
+    public Bitmap render(final GPUImageFilter filter, final Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = CpuPixels.fromBitmap(bitmap);
+        render(filter, pixels, width, height);
+        Bitmap output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        CpuPixels.toBitmap(pixels, output);
+        return output;
+    }
+
+    /**
+     * Applies a filter to premultiplied ARGB pixels, rows top down.
+     *
+     * @param filter the filter, or group of filters
+     * @param pixels the pixels, replaced by the result
+     * @param width the image width
+     * @param height the image height
+     * @throws UnsupportedOperationException if there are no kernels for the
+     *         filter with its current parameters
+     */
+    public void render(final GPUImageFilter filter, final int[] pixels, final int width,
+                       final int height) {
+        List<GPUImageCpuKernel> kernels = GPUImageCpuKernels.createKernels(filter, width, height);
+        if (kernels == null) {
+            throw new UnsupportedOperationException("No CPU kernels for "
+                    + filter.getClass().getSimpleName());
+        }
+        render(kernels, pixels, width, height);
+    }
+
+    /**
+     * Runs passes on premultiplied ARGB pixels, rows top down, like the ones
+     * of {@link GPUImageCpuBlur}.
+     *
+     * @param kernels the passes, in order
+     * @param pixels the pixels, replaced by the result
+     * @param width the image width
+     * @param height the image height
+     * @throws IllegalArgumentException if the passes transpose the image an
+     *         odd number of times
+     */
+    public void render(final List<GPUImageCpuKernel> kernels, final int[] pixels,
+                       final int width, final int height) {
+        boolean transposed = false;
+        for (GPUImageCpuKernel kernel : kernels) {
+            transposed ^= kernel instanceof GPUImageCpuTransposingKernel;
+        }
+        if (transposed) {
+            throw new IllegalArgumentException("Passes leave the image transposed");
+        }
+
+        int[] input = pixels;
+        int[] output = new int[pixels.length];
+        int passWidth = width;
+        int passHeight = height;
+        for (GPUImageCpuKernel kernel : kernels) {
+            apply(kernel, input, output, passWidth, passHeight);
+            if (kernel instanceof GPUImageCpuTransposingKernel) {
+                int swap = passWidth;
+                passWidth = passHeight;
+                passHeight = swap;
+            }
+            int[] swap = input;
+            input = output;
+            output = swap;
+        }
+        if (input != pixels) {
+            System.arraycopy(input, 0, pixels, 0, pixels.length);
+        }
+    }
+
+    /**
+     * Stops the threads. Renders in progress complete first.
+     */
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private void apply(final GPUImageCpuKernel kernel, final int[] input, final int[] output,
+                       final int width, final int height) {
+        int bands = Math.min(mThreadCount * BANDS_PER_THREAD,
+                Math.max(1, height / MIN_BAND_ROWS));
+        if (mExecutor == null || bands == 1) {
+            kernel.apply(input, output, width, height, 0, height);
+            return;
+        }
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>(bands);
+        for (int band = 0; band < bands; band++) {
+            final int top = height * band / bands;
+            final int bottom = height * (band + 1) / bands;
+            results.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    kernel.apply(input, output, width, height, top, bottom);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> result : results) {
+                result.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A pass which writes its result transposed, an image of height * width
+ * pixels whose rows are the columns of the result. Running a row pass twice
+ * this way covers both axes while reading and writing memory in order.
+ * <br>
+ * Rows top to bottom - 1 of the input are written to the columns with the
+ * same indices of the output. The renderer swaps width and height for the
+ * passes after it, and a list of passes has to transpose an even number of
+ * times.
+ */
+public interface GPUImageCpuTransposingKernel extends GPUImageCpuKernel {
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * The maximum or minimum of each row over a window, written transposed,
+ * with the van Herk/Gil-Werman algorithm. The row is cut into blocks of the
+ * window size; every window spans the end of one block and the start of the
+ * next, so its extreme is the larger of a running extreme from the block end
+ * backwards and one from the block start forwards. That is three comparisons
+ * per pixel, whatever the radius. Pixels beyond the edges repeat the edge
+ * pixel, like a texture clamped to the edge.
+ * <br>
+ * Erosion takes the maximum of the inverted values, so both share one loop.
+ */
+class MorphologyKernel extends TransposingRowKernel {
+    private final int mRadius;
+    private final boolean mDilate;
+    private final boolean mLuminance;
+
+    /**
+     * @param radius the radius of the window in pixels
+     * @param dilate true for the maximum, false for the minimum
+     * @param luminance true to use the red channel and write it as an
+     *        opaque gray, like {@code GPUImageDilationFilter}, false for
+     *        every channel on its own, like {@code GPUImageRGBDilationFilter}
+     */
+    MorphologyKernel(final int radius, final boolean dilate, final boolean luminance) {
+        mRadius = radius;
+        mDilate = dilate;
+        mLuminance = luminance;
+    }
+
+    @Override
+    int getScratchSize(final int width) {
+        // The padded row, its forward and its backward running extremes.
+        return 3 * (width + 2 * mRadius);
+    }
+
+    @Override
+    void filterRow(final int[] input, final int inputOffset, final int[] output,
+                   final int outputOffset, final int width, final int[] scratch) {
+        int length = width + 2 * mRadius;
+        int forward = length;
+        int backward = 2 * length;
+        int window = 2 * mRadius + 1;
+        int flip = mDilate ? 0 : 0xff;
+        int last = width - 1;
+
+        if (mLuminance) {
+            for (int x = 0; x < width; x++) {
+                output[outputOffset + x] = 0xff000000;
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                output[outputOffset + x] = 0;
+            }
+        }
+        for (int shift = mLuminance ? 16 : 0; shift < 32; shift += 8) {
+            for (int i = 0; i < length; i++) {
+                int x = Math.max(0, Math.min(last, i - mRadius));
+                scratch[i] = ((input[inputOffset + x] >>> shift) & 0xff) ^ flip;
+            }
+
+            for (int start = 0; start < length; start += window) {
+                int end = Math.min(start + window, length) - 1;
+                scratch[forward + start] = scratch[start];
+                for (int i = start + 1; i <= end; i++) {
+                    scratch[forward + i] = Math.max(scratch[forward + i - 1], scratch[i]);
+                }
+                scratch[backward + end] = scratch[end];
+                for (int i = end - 1; i >= start; i--) {
+                    scratch[backward + i] = Math.max(scratch[backward + i + 1], scratch[i]);
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                int value = Math.max(scratch[backward + x], scratch[forward + x + 2 * mRadius]) ^ flip;
+                if (mLuminance) {
+                    output[outputOffset + x] |= value << 16 | value << 8 | value;
+                } else {
+                    output[outputOffset + x] |= value << shift;
+                }
+            }
+            if (mLuminance) {
+                break;
+            }
+        }
+    }
+}
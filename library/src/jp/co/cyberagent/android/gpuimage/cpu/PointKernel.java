@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A kernel computing each pixel from the same pixel of the input only.
+ */
+abstract class PointKernel implements GPUImageCpuKernel {
+    @Override
+    public void apply(final int[] input, final int[] output, final int width, final int height,
+                      final int top, final int bottom) {
+        float[] rgba = new float[4];
+        for (int i = top * width, end = bottom * width; i < end; i++) {
+            CpuPixels.unpack(input[i], rgba);
+            apply(rgba);
+            output[i] = CpuPixels.pack(rgba);
+        }
+    }
+
+    /**
+     * Computes one pixel in place.
+     *
+     * @param rgba the premultiplied color, 0 to 1
+     */
+    abstract void apply(float[] rgba);
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * One pass of a separable blur: a weighted sum of samples along a line,
+ * like the passes of {@code GPUImageTwoPassTextureSamplingFilter}.
+ */
+class SeparableKernel implements GPUImageCpuKernel {
+    private final float[] mOffsets;
+    private final float[] mWeights;
+    private final float mStepX;
+    private final float mStepY;
+    private final boolean mBlurAlpha;
+
+    /**
+     * @param offsets the sample positions in steps from the pixel
+     * @param weights the weight of each sample
+     * @param stepX the horizontal length of one step in pixels
+     * @param stepY the vertical length of one step in pixels
+     * @param blurAlpha false to keep the alpha of the center pixel
+     */
+    SeparableKernel(final float[] offsets, final float[] weights, final float stepX,
+                    final float stepY, final boolean blurAlpha) {
+        mOffsets = offsets;
+        mWeights = weights;
+        mStepX = stepX;
+        mStepY = stepY;
+        mBlurAlpha = blurAlpha;
+    }
+
+    @Override
+    public void apply(final int[] input, final int[] output, final int width, final int height,
+                      final int top, final int bottom) {
+        float[] sample = new float[4];
+        float[] sum = new float[4];
+        for (int y = top; y < bottom; y++) {
+            for (int x = 0; x < width; x++) {
+                sum[0] = sum[1] = sum[2] = sum[3] = 0f;
+                for (int i = 0; i < mOffsets.length; i++) {
+                    CpuPixels.sample(input, width, height, x + mOffsets[i] * mStepX,
+                            y + mOffsets[i] * mStepY, sample);
+                    for (int c = 0; c < 4; c++) {
+                        sum[c] += sample[c] * mWeights[i];
+                    }
+                }
+                if (!mBlurAlpha) {
+                    sum[3] = (input[y * width + x] >>> 24) / 255f;
+                }
+                output[y * width + x] = CpuPixels.pack(sum);
+            }
+        }
+    }
+}
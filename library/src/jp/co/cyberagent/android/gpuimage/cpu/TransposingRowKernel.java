@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A pass filtering every row on its own and writing the result transposed.
+ * Rows are filtered into a block of a few rows, and the block is written as
+ * pieces of columns, so that the writes fill whole cache lines.
+ */
+abstract class TransposingRowKernel implements GPUImageCpuTransposingKernel {
+    private static final int BLOCK_ROWS = 16;
+
+    @Override
+    public void apply(final int[] input, final int[] output, final int width, final int height,
+                      final int top, final int bottom) {
+        int[] block = new int[BLOCK_ROWS * width];
+        int[] scratch = new int[getScratchSize(width)];
+        for (int y = top; y < bottom; y += BLOCK_ROWS) {
+            int rows = Math.min(BLOCK_ROWS, bottom - y);
+            for (int k = 0; k < rows; k++) {
+                filterRow(input, (y + k) * width, block, k * width, width, scratch);
+            }
+            for (int x = 0; x < width; x++) {
+                int offset = x * height + y;
+                for (int k = 0; k < rows; k++) {
+                    output[offset + k] = block[k * width + x];
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the scratch array passed to
+     * {@link #filterRow(int[], int, int[], int, int, int[])}.
+     */
+    abstract int getScratchSize(int width);
+
+    /**
+     * Filters one row.
+     *
+     * @param input the input pixels
+     * @param inputOffset the index of the first pixel of the row
+     * @param output the array to write the filtered row to
+     * @param outputOffset the index to write the first pixel to
+     * @param width the row length
+     * @param scratch an array to use while filtering, not shared between threads
+     */
+    abstract void filterRow(int[] input, int inputOffset, int[] output, int outputOffset,
+                            int width, int[] scratch);
+}
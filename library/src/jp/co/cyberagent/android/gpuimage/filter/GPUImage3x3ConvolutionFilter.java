@@ -101,4 +101,8 @@ public class GPUImage3x3ConvolutionFilter extends GPUImage3x3TextureSamplingFilt
         mConvolutionKernel = convolutionKernel;
         setUniformMatrix3f(mUniformConvolutionMatrix, mConvolutionKernel);
     }
+
+    public float[] getConvolutionKernel() {
+        return mConvolutionKernel;
+    }
 }
@@ -113,8 +113,18 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
         updateTexelValues();
     }
 
+    @Override
+    public int getSamplingRadius() {
+        // Texel sizes set directly are fractions of the image, not pixels.
+        return mHasOverriddenImageSizeFactor ? -1 : (int) Math.ceil(mLineSize);
+    }
+
     private void updateTexelValues() {
         setFloat(mUniformTexelWidthLocation, mTexelWidth);
         setFloat(mUniformTexelHeightLocation, mTexelHeight);
     }
+
+    public float getLineSize() {
+        return mLineSize;
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebuffer;
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebufferCache;
+import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+
+/**
+ * Draws a chain of color mapping filters, see
+ * {@link GPUImageFilter#isColorMapping()}, as a single lookup. The filters
+ * are drawn once over an image holding every color of the 64x64x64 table
+ * read by {@link GPUImageLookupFilter}, and the result is the table. The
+ * table is drawn again only when a parameter of one of the filters has
+ * changed since.
+ * <br>
+ * Colors between the entries of the table are interpolated, so the result
+ * can differ slightly from drawing the filters one by one, mostly for
+ * filters with steep curves.
+ * <br>
+ * Created by {@link GPUImageFilterGroup} when baking is enabled. The filters
+ * stay owned by the group, which initializes them and sets their size.
+ */
+public class GPUImageBakedLookupFilter extends GPUImageLookupFilter {
+    public static final int TABLE_SIZE = 512;
+
+    public static final String IDENTITY_TABLE_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    // 8x8 tiles of 64x64 texels, red across and green down a tile,\n" +
+            "    // blue by the tile.\n" +
+            "    highp vec2 texel = floor(gl_FragCoord.xy);\n" +
+            "    highp vec2 cell = mod(texel, 64.0);\n" +
+            "    highp vec2 tile = floor(texel / 64.0);\n" +
+            "    gl_FragColor = vec4(cell / 63.0, (tile.y * 8.0 + tile.x) / 63.0, 1.0);\n" +
+            "}";
+
+    private final List<GPUImageFilter> mFilters;
+    private final GPUImageFilter mIdentityFilter;
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private GPUImageFramebuffer mTable;
+    private int mBakeCount;
+
+    /**
+     * @param filters the color mapping filters, in order
+     */
+    public GPUImageBakedLookupFilter(final List<GPUImageFilter> filters) {
+        super();
+        for (GPUImageFilter filter : filters) {
+            if (!filter.isColorMapping()) {
+                throw new IllegalArgumentException(filter.getClass().getSimpleName()
+                        + " does not only map colors");
+            }
+        }
+        mFilters = new ArrayList<GPUImageFilter>(filters);
+        mIdentityFilter = new GPUImageFilter(NO_FILTER_VERTEX_SHADER,
+                IDENTITY_TABLE_FRAGMENT_SHADER);
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(TEXTURE_NO_ROTATION).position(0);
+    }
+
+    /**
+     * Gets the baked filters.
+     *
+     * @return the filters, in order
+     */
+    public List<GPUImageFilter> getFilters() {
+        return Collections.unmodifiableList(mFilters);
+    }
+
+    /**
+     * Gets how many times the table has been drawn, for checking that it is
+     * only drawn again when a parameter changes.
+     *
+     * @return the number of bakes since the filter was created
+     */
+    public int getBakeCount() {
+        return mBakeCount;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mIdentityFilter.init();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mIdentityFilter.destroy();
+        if (mTable != null) {
+            mTable.unlock();
+            mTable = null;
+        }
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (isInitialized() && (mTable == null || hasChangedFilters())) {
+            bake();
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    private boolean hasChangedFilters() {
+        for (GPUImageFilter filter : mFilters) {
+            if (filter.hasPendingOnDrawTasks()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressLint("WrongCall")
+    private void bake() {
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        GLES20.glViewport(0, 0, TABLE_SIZE, TABLE_SIZE);
+
+        GPUImageFramebufferCache cache = GPUImageFramebufferCache.getInstance();
+        GPUImageFramebuffer input = cache.fetchFramebuffer(TABLE_SIZE, TABLE_SIZE);
+        input.bind();
+        mIdentityFilter.onDraw(OpenGlUtils.NO_TEXTURE, mGLCubeBuffer, mGLTextureBuffer);
+        for (GPUImageFilter filter : mFilters) {
+            GPUImageFramebuffer output = cache.fetchFramebuffer(TABLE_SIZE, TABLE_SIZE);
+            output.bind();
+            filter.onDraw(input.getTextureId(), mGLCubeBuffer, mGLTextureBuffer);
+            input.unlock();
+            input = output;
+        }
+
+        if (mTable != null) {
+            mTable.unlock();
+        }
+        mTable = input;
+        mFilterSourceTexture2 = mTable.getTextureId();
+        mBakeCount++;
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2],
+                mSavedViewport[3]);
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
+}
@@ -110,4 +110,10 @@ public class GPUImageBoxBlurFilter extends GPUImageTwoPassTextureSamplingFilter
     public float getHorizontalTexelOffsetRatio() {
         return blurSize;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The outer samples sit 3.5 texels out, between two pixels.
+        return (int) Math.ceil(3.5f * blurSize);
+    }
 }
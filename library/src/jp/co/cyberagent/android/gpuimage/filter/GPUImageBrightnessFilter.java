@@ -63,4 +63,13 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         mBrightness = brightness;
         setFloat(mBrightnessLocation, mBrightness);
     }
+
+    public float getBrightness() {
+        return mBrightness;
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
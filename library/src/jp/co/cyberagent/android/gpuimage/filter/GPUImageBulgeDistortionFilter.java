@@ -127,4 +127,10 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
         mCenter = center;
         setPoint(mCenterLocation, center);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The effect is placed relative to the whole image.
+        return -1;
+    }
 }
@@ -194,4 +194,9 @@ public class GPUImageColorBalanceFilter extends GPUImageFilter {
         this.preserveLuminosity = preserveLuminosity;
         setInteger(mPreserveLuminosityLocation, preserveLuminosity ? 1: 0);
     }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
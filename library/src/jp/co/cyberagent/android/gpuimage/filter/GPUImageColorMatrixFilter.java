@@ -81,4 +81,25 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         mColorMatrix = colorMatrix;
         setUniformMatrix4f(mColorMatrixLocation, colorMatrix);
     }
+
+    public float getIntensity() {
+        return mIntensity;
+    }
+
+    public float[] getColorMatrix() {
+        return mColorMatrix;
+    }
+
+    /**
+     * Checks whether the current matrix keeps the alpha and computes the
+     * color without it.
+     */
+    @Override
+    public boolean isColorMapping() {
+        // The color is multiplied as a row vector, so column i of the
+        // matrix, elements 4 * i to 4 * i + 3, gives channel i.
+        float[] matrix = mColorMatrix;
+        return matrix != null && matrix[3] == 0 && matrix[7] == 0 && matrix[11] == 0
+                && matrix[12] == 0 && matrix[13] == 0 && matrix[14] == 0 && matrix[15] == 1;
+    }
 }
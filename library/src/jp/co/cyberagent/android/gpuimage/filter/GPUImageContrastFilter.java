@@ -65,4 +65,13 @@ public class GPUImageContrastFilter extends GPUImageFilter {
         mContrast = contrast;
         setFloat(mContrastLocation, mContrast);
     }
+
+    public float getContrast() {
+        return mContrast;
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
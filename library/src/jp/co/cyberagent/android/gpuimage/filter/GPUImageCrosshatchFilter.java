@@ -127,4 +127,10 @@ public class GPUImageCrosshatchFilter extends GPUImageFilter {
         mLineWidth = lineWidth;
         setFloat(mLineWidthLocation, mLineWidth);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The effect is placed relative to the whole image.
+        return -1;
+    }
 }
@@ -63,4 +63,13 @@ public class GPUImageExposureFilter extends GPUImageFilter {
         mExposure = exposure;
         setFloat(mExposureLocation, mExposure);
     }
+
+    public float getExposure() {
+        return mExposure;
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.nio.FloatBuffer;
 import java.util.LinkedList;
 
+import jp.co.cyberagent.android.gpuimage.GPUImageProgramCache;
 import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
 
 public class GPUImageFilter {
@@ -50,8 +51,10 @@ public class GPUImageFilter {
             "}";
 
     private final LinkedList<Runnable> mRunOnDraw;
+    private final GPUImageUniformStore mUniforms;
     private final String mVertexShader;
     private final String mFragmentShader;
+    private GPUImageProgramCache.Program mProgram;
     protected int mGLProgId;
     protected int mGLAttribPosition;
     protected int mGLUniformTexture;
@@ -66,6 +69,7 @@ public class GPUImageFilter {
 
     public GPUImageFilter(final String vertexShader, final String fragmentShader) {
         mRunOnDraw = new LinkedList<Runnable>();
+        mUniforms = new GPUImageUniformStore();
         mVertexShader = vertexShader;
         mFragmentShader = fragmentShader;
     }
@@ -77,7 +81,8 @@ public class GPUImageFilter {
     }
 
     public void onInit() {
-        mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
+        mProgram = GPUImageProgramCache.getInstance().acquire(mVertexShader, mFragmentShader);
+        mGLProgId = mProgram.getId();
         mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
         mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
         mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
@@ -91,7 +96,11 @@ public class GPUImageFilter {
 
     public final void destroy() {
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        if (mProgram != null) {
+            GPUImageProgramCache.getInstance().release(mProgram);
+            mProgram = null;
+        }
+        mUniforms.clear();
         onDestroy();
     }
 
@@ -143,6 +152,26 @@ public class GPUImageFilter {
                 mRunOnDraw.removeFirst().run();
             }
         }
+        if (mProgram != null && mProgram.claim(this)) {
+            onProgramReclaimed();
+        }
+        mUniforms.flush();
+    }
+
+    /**
+     * Called before drawing when another filter with the same shaders, and
+     * therefore the same cached program, has set its uniforms since this
+     * filter last drew. The values set through the setters are uploaded
+     * again.
+     */
+    protected void onProgramReclaimed() {
+        mUniforms.invalidate();
+    }
+
+    protected boolean hasPendingOnDrawTasks() {
+        synchronized (mRunOnDraw) {
+            return !mRunOnDraw.isEmpty() || mUniforms.isDirty();
+        }
     }
 
     public boolean isInitialized() {
@@ -161,6 +190,39 @@ public class GPUImageFilter {
         return mGLProgId;
     }
 
+    /**
+     * Gets how far, in output pixels, the filter samples its input around a
+     * pixel. Tiled rendering pads each tile by this much.
+     *
+     * @return the radius, or -1 if the output depends on the position in the
+     *         image and the image cannot be rendered in tiles
+     */
+    public int getSamplingRadius() {
+        return 0;
+    }
+
+    /**
+     * Checks whether the filter maps the color of every pixel to a new color
+     * depending on nothing else, neither the position nor the neighbors, and
+     * keeps the alpha. A run of such filters can be baked into one color
+     * lookup table, see {@link GPUImageFilterGroup#setBakingEnabled(boolean)}.
+     *
+     * @return true if the filter only maps colors
+     */
+    public boolean isColorMapping() {
+        return getClass() == GPUImageFilter.class
+                && NO_FILTER_VERTEX_SHADER.equals(mVertexShader)
+                && NO_FILTER_FRAGMENT_SHADER.equals(mFragmentShader);
+    }
+
+    public String getVertexShader() {
+        return mVertexShader;
+    }
+
+    public String getFragmentShader() {
+        return mFragmentShader;
+    }
+
     public int getAttribPosition() {
         return mGLAttribPosition;
     }
@@ -173,91 +235,45 @@ public class GPUImageFilter {
         return mGLUniformTexture;
     }
 
+    /*
+     * The setters below only record the latest value of each uniform, it is
+     * uploaded with the pending tasks before the next draw.
+     */
+
     protected void setInteger(final int location, final int intValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1i(location, intValue);
-            }
-        });
+        mUniforms.setInt(location, intValue);
     }
 
     protected void setFloat(final int location, final float floatValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1f(location, floatValue);
-            }
-        });
+        mUniforms.setFloat(location, floatValue);
     }
 
     protected void setFloatVec2(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GLES20.GL_FLOAT_VEC2, arrayValue, 1);
     }
 
     protected void setFloatVec3(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GLES20.GL_FLOAT_VEC3, arrayValue, 1);
     }
 
     protected void setFloatVec4(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GLES20.GL_FLOAT_VEC4, arrayValue, 1);
     }
 
     protected void setFloatArray(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, GLES20.GL_FLOAT, arrayValue, arrayValue.length);
     }
 
     protected void setPoint(final int location, final PointF point) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                float[] vec2 = new float[2];
-                vec2[0] = point.x;
-                vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
-            }
-        });
+        mUniforms.setFloatVec2(location, point.x, point.y);
     }
 
     protected void setUniformMatrix3f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, GLES20.GL_FLOAT_MAT3, matrix, 1);
     }
 
     protected void setUniformMatrix4f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, GLES20.GL_FLOAT_MAT4, matrix, 1);
     }
 
     protected void runOnDraw(final Runnable runnable) {
@@ -19,6 +19,8 @@ package jp.co.cyberagent.android.gpuimage.filter;
 import android.annotation.SuppressLint;
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebuffer;
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebufferCache;
 import jp.co.cyberagent.android.gpuimage.Rotation;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
@@ -39,11 +41,18 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
     protected List<GPUImageFilter> mFilters;
     protected List<GPUImageFilter> mMergedFilters;
-    private int[] mFrameBuffers;
-    private int[] mFrameBufferTextures;
+    protected List<GPUImageFilter> mRenderPasses;
+    private boolean mFusionEnabled = true;
+    private boolean mBakingEnabled;
+    private GPUImageFramebuffer[] mFrameBuffers;
+    private int[] mPassFrameBuffers;
+    private long mFrameBufferBytes;
+    private long mPeakFrameBufferBytes;
 
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
+    private final FloatBuffer mGLFlippedCubeBuffer;
+    private boolean mFlipOutputVertically;
 
     /**
      * Instantiates a new GPUImageFilterGroup with no filters.
@@ -69,6 +78,9 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                 .order(ByteOrder.nativeOrder())
                 .asFloatBuffer();
         mGLCubeBuffer.put(CUBE).position(0);
+        mGLFlippedCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
 
         mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
                 .order(ByteOrder.nativeOrder())
@@ -94,6 +106,7 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         for (GPUImageFilter filter : mFilters) {
             filter.init();
         }
+        initFusedFilters();
     }
 
     /*
@@ -103,6 +116,7 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onDestroy() {
         destroyFramebuffers();
+        destroyFusedFilters(mRenderPasses);
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
@@ -110,14 +124,53 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     }
 
     private void destroyFramebuffers() {
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
-        }
         if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
+            for (GPUImageFramebuffer frameBuffer : mFrameBuffers) {
+                frameBuffer.unlock();
+            }
             mFrameBuffers = null;
         }
+        mPassFrameBuffers = null;
+        mFrameBufferBytes = 0;
+    }
+
+    /**
+     * Assigns a framebuffer to the output of every pass but the last one and
+     * returns the number of framebuffers needed. An output is live from the
+     * pass writing it until the last pass reading it, after which its
+     * framebuffer is free for the next output. As every pass only reads the
+     * output of the pass before it, a chain of any length needs at most two
+     * framebuffers.
+     *
+     * @param passCount the number of render passes
+     * @param assignment receives the framebuffer index for each written output
+     * @return the number of framebuffers to allocate
+     */
+    private static int assignFrameBuffers(final int passCount, final int[] assignment) {
+        int outputs = passCount - 1;
+        int[] lastReader = new int[outputs];
+        for (int i = 0; i < outputs; i++) {
+            lastReader[i] = i + 1;
+        }
+
+        int[] freeUntil = new int[outputs];
+        int count = 0;
+        for (int i = 0; i < outputs; i++) {
+            int frameBuffer = -1;
+            for (int j = 0; j < count; j++) {
+                // Free once the last reader has drawn, i.e. before the current pass.
+                if (freeUntil[j] < i) {
+                    frameBuffer = j;
+                    break;
+                }
+            }
+            if (frameBuffer == -1) {
+                frameBuffer = count++;
+            }
+            assignment[i] = frameBuffer;
+            freeUntil[frameBuffer] = lastReader[i];
+        }
+        return count;
     }
 
     /*
@@ -138,36 +191,23 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             mFilters.get(i).onOutputSizeChanged(width, height);
         }
 
-        if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
-            mFrameBuffers = new int[size - 1];
-            mFrameBufferTextures = new int[size - 1];
-
-            int [] curBindingFrameBufferId = new int[1];
-            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, curBindingFrameBufferId, 0);
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, curBindingFrameBufferId[0]);
+        if (mRenderPasses != null && mRenderPasses.size() > 0) {
+            for (GPUImageFilter pass : mRenderPasses) {
+                if (isGeneratedPass(pass)) {
+                    pass.onOutputSizeChanged(width, height);
+                }
             }
+            size = mRenderPasses.size();
+            mPassFrameBuffers = new int[size - 1];
+            int count = assignFrameBuffers(size, mPassFrameBuffers);
+            mFrameBuffers = new GPUImageFramebuffer[count];
+            mFrameBufferBytes = 0;
+            GPUImageFramebufferCache cache = GPUImageFramebufferCache.getInstance();
+            for (int i = 0; i < count; i++) {
+                mFrameBuffers[i] = cache.fetchFramebuffer(width, height);
+                mFrameBufferBytes += mFrameBuffers[i].getByteCount();
+            }
+            mPeakFrameBufferBytes = Math.max(mPeakFrameBufferBytes, mFrameBufferBytes);
         }
     }
 
@@ -191,34 +231,40 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     final public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        if (!isInitialized() || mFrameBuffers == null) {
             return;
         }
-        if (mMergedFilters != null) {
-            int size = mMergedFilters.size();
+        if (mRenderPasses != null) {
+            int size = mRenderPasses.size();
             int previousTexture = textureId;
 
             int [] curBindingFrameBufferId = new int[1];
             GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, curBindingFrameBufferId, 0);
 
             for (int i = 0; i < size; i++) {
-                GPUImageFilter filter = mMergedFilters.get(i);
+                GPUImageFilter filter = mRenderPasses.get(i);
                 boolean isNotLast = i < size - 1;
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                    mFrameBuffers[mPassFrameBuffers[i]].bind();
                     GLES20.glClearColor(0, 0, 0, 0);
+                    // Framebuffers are shared between passes, drop what the previous user left.
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
                 }
 
+                FloatBuffer cube = i == 0 ? cubeBuffer : mGLCubeBuffer;
+                if (!isNotLast && mFlipOutputVertically) {
+                    cube = TextureRotationUtil.flipVertically(cube, mGLFlippedCubeBuffer);
+                }
                 if (i == 0) {
-                    filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
+                    filter.onDraw(previousTexture, cube, textureBuffer);
                 } else {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
+                    filter.onDraw(previousTexture, cube, mGLTextureBuffer);
                 }
 
 
                 GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, curBindingFrameBufferId[0]);
                 if( isNotLast ) {
-                    previousTexture = mFrameBufferTextures[i];
+                    previousTexture = mFrameBuffers[mPassFrameBuffers[i]].getTextureId();
                 }
             }
         }
@@ -237,6 +283,127 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         return mMergedFilters;
     }
 
+    /**
+     * Gets the passes which are actually drawn. Runs of point-wise filters in
+     * {@link #getMergedFilters()} are replaced by a {@link GPUImageFusedFilter},
+     * whose {@link GPUImageFusedFilter#getFragmentShader()} returns the
+     * generated program. With baking enabled, leading color mapping filters
+     * are replaced by a {@link GPUImageBakedLookupFilter}.
+     *
+     * @return the render passes
+     */
+    public List<GPUImageFilter> getRenderPasses() {
+        return mRenderPasses;
+    }
+
+    /**
+     * Gets the sum of the sampling radii of the filters, since every pass
+     * samples the output of the previous one.
+     *
+     * @return the combined radius, or -1 if a filter cannot be tiled
+     */
+    @Override
+    public int getSamplingRadius() {
+        int radius = 0;
+        for (GPUImageFilter filter : mFilters) {
+            int filterRadius = filter.getSamplingRadius();
+            if (filterRadius < 0) {
+                return -1;
+            }
+            radius += filterRadius;
+        }
+        return radius;
+    }
+
+    /**
+     * Checks whether every filter of the group only maps colors.
+     *
+     * @return true if all filters only map colors
+     */
+    @Override
+    public boolean isColorMapping() {
+        for (GPUImageFilter filter : mFilters) {
+            if (!filter.isColorMapping()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of bytes currently allocated for intermediate
+     * framebuffer textures of this group.
+     *
+     * @return the allocated bytes
+     */
+    public long getFrameBufferBytes() {
+        return mFrameBufferBytes;
+    }
+
+    /**
+     * Gets the highest number of bytes this group has allocated at once for
+     * intermediate framebuffer textures.
+     *
+     * @return the peak allocated bytes
+     */
+    public long getPeakFrameBufferBytes() {
+        return mPeakFrameBufferBytes;
+    }
+
+    /**
+     * Draws the last pass upside down, for reading the output back with
+     * glReadPixels in top down row order.
+     *
+     * @param flip true to flip the output
+     */
+    public void setFlipOutputVertically(final boolean flip) {
+        mFlipOutputVertically = flip;
+    }
+
+    /**
+     * Enables or disables combining consecutive point-wise filters into a
+     * single pass. Enabled by default.
+     *
+     * @param enabled true to fuse point-wise filters
+     */
+    public void setFusionEnabled(final boolean enabled) {
+        if (mFusionEnabled != enabled) {
+            mFusionEnabled = enabled;
+            updateMergedFilters();
+        }
+    }
+
+    public boolean isFusionEnabled() {
+        return mFusionEnabled;
+    }
+
+    /**
+     * Enables or disables baking the filters at the start of the group which
+     * only map colors, see {@link GPUImageFilter#isColorMapping()}, into a
+     * single {@link GPUImageBakedLookupFilter}. The table is drawn again
+     * whenever a parameter of a baked filter changes, so baking pays off for
+     * chains which are drawn over many frames with the same parameters.
+     * Disabled by default, as colors are interpolated between 64 levels per
+     * channel.
+     * <br>
+     * Which filters only map colors is decided when the passes are built,
+     * i.e. when filters are added or this is called. A
+     * {@link GPUImageColorMatrixFilter} given a matrix changing the alpha
+     * afterwards is still drawn from the table.
+     *
+     * @param enabled true to bake color mapping filters
+     */
+    public void setBakingEnabled(final boolean enabled) {
+        if (mBakingEnabled != enabled) {
+            mBakingEnabled = enabled;
+            updateMergedFilters();
+        }
+    }
+
+    public boolean isBakingEnabled() {
+        return mBakingEnabled;
+    }
+
     public void updateMergedFilters() {
         if (mFilters == null) {
             return;
@@ -260,5 +427,94 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             }
             mMergedFilters.add(filter);
         }
+
+        updateRenderPasses();
+    }
+
+    private void updateRenderPasses() {
+        final List<GPUImageFilter> oldPasses = mRenderPasses;
+        List<GPUImageFilter> passes = new ArrayList<GPUImageFilter>(mMergedFilters.size());
+        int size = mMergedFilters.size();
+        int i = 0;
+        if (mBakingEnabled) {
+            int end = 0;
+            while (end < size && mMergedFilters.get(end).isColorMapping()) {
+                end++;
+            }
+            // A single filter is cheaper to draw than to bake.
+            if (end > 1) {
+                passes.add(new GPUImageBakedLookupFilter(mMergedFilters.subList(0, end)));
+                i = end;
+            }
+        }
+        while (i < size) {
+            int end = i;
+            if (mFusionEnabled) {
+                while (end < size && GPUImageFusedFilter.isFusable(mMergedFilters.get(end))
+                        && (end == i || i > 0
+                        || !GPUImageFusedFilter.usesTextureCoordinate(mMergedFilters.get(end)))) {
+                    end++;
+                }
+            }
+            if (end - i > 1) {
+                passes.add(new GPUImageFusedFilter(mMergedFilters.subList(i, end)));
+                i = end;
+            } else {
+                passes.add(mMergedFilters.get(i));
+                i++;
+            }
+        }
+        mRenderPasses = passes;
+
+        if (isInitialized()) {
+            runOnDraw(new Runnable() {
+                @Override
+                public void run() {
+                    destroyFusedFilters(oldPasses);
+                    initFusedFilters();
+                    onOutputSizeChanged(getOutputWidth(), getOutputHeight());
+                }
+            });
+        }
+    }
+
+    private void initFusedFilters() {
+        if (mRenderPasses == null) {
+            return;
+        }
+        List<GPUImageFilter> passes = new ArrayList<GPUImageFilter>(mRenderPasses.size());
+        for (GPUImageFilter pass : mRenderPasses) {
+            if (pass instanceof GPUImageBakedLookupFilter && !pass.isInitialized()) {
+                pass.init();
+            } else if (pass instanceof GPUImageFusedFilter) {
+                GPUImageFusedFilter fused = (GPUImageFusedFilter) pass;
+                if (!fused.isInitialized()) {
+                    fused.init();
+                }
+                if (!fused.isValid()) {
+                    // The generated program did not compile, draw the filters one by one.
+                    fused.destroy();
+                    passes.addAll(fused.getFilters());
+                    continue;
+                }
+            }
+            passes.add(pass);
+        }
+        mRenderPasses = passes;
+    }
+
+    private void destroyFusedFilters(final List<GPUImageFilter> passes) {
+        if (passes == null) {
+            return;
+        }
+        for (GPUImageFilter pass : passes) {
+            if (isGeneratedPass(pass) && pass.isInitialized()) {
+                pass.destroy();
+            }
+        }
+    }
+
+    private static boolean isGeneratedPass(final GPUImageFilter pass) {
+        return pass instanceof GPUImageFusedFilter || pass instanceof GPUImageBakedLookupFilter;
     }
 }
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Renders a run of point-wise filters in a single pass. The fragment shaders
+ * of the filters are rewritten into functions with namespaced identifiers and
+ * chained in one generated program. The filters themselves stay initialized so
+ * their setters keep working; their uniform values are copied into the fused
+ * program before drawing.
+ * <br>
+ * Instances are created by {@link GPUImageFilterGroup} when it finds a run of
+ * filters that {@link #isFusable(GPUImageFilter)} accepts.
+ */
+public class GPUImageFusedFilter extends GPUImageFilter {
+    private static final String STAGE_PREFIX = "stage";
+
+    private static final Pattern MAIN_PATTERN =
+            Pattern.compile("\\bvoid\\s+main\\s*\\(\\s*(void)?\\s*\\)\\s*\\{");
+    private static final Pattern SAMPLE_PATTERN =
+            Pattern.compile("texture2D\\s*\\(\\s*inputImageTexture\\s*,\\s*textureCoordinate\\s*\\)");
+    private static final Pattern COORDINATE_VARYING_PATTERN =
+            Pattern.compile("varying\\s+(\\w+\\s+)?vec2\\s+textureCoordinate");
+    private static final Pattern INPUT_SAMPLER_PATTERN =
+            Pattern.compile("uniform\\s+(\\w+\\s+)?sampler2D\\s+inputImageTexture");
+    private static final Pattern IDENTIFIER_PATTERN =
+            Pattern.compile("(?<![A-Za-z0-9_.])[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern FRAG_COLOR_PATTERN = Pattern.compile("\\bgl_FragColor\\b");
+
+    private static final Set<String> FORBIDDEN_TOKENS = new HashSet<String>(Arrays.asList(
+            "discard", "return", "gl_FragCoord", "gl_FragData", "gl_PointCoord", "gl_FrontFacing",
+            "texture2DProj", "texture2DLod", "texture2DProjLod", "textureCube", "textureCubeLod",
+            "attribute", "samplerCube", "samplerExternalOES"
+    ));
+
+    private static final Set<String> RESERVED_IDENTIFIERS = new HashSet<String>(Arrays.asList(
+            // keywords and types
+            "attribute", "const", "uniform", "varying", "break", "continue", "do", "for", "while",
+            "if", "else", "in", "out", "inout", "float", "int", "void", "bool", "true", "false",
+            "lowp", "mediump", "highp", "precision", "invariant", "discard", "return", "struct",
+            "mat2", "mat3", "mat4", "vec2", "vec3", "vec4", "ivec2", "ivec3", "ivec4",
+            "bvec2", "bvec3", "bvec4", "sampler2D", "samplerCube",
+            // built-in functions
+            "radians", "degrees", "sin", "cos", "tan", "asin", "acos", "atan", "pow", "exp",
+            "log", "exp2", "log2", "sqrt", "inversesqrt", "abs", "sign", "floor", "ceil", "fract",
+            "mod", "min", "max", "clamp", "mix", "step", "smoothstep", "length", "distance",
+            "dot", "cross", "normalize", "faceforward", "reflect", "refract", "matrixCompMult",
+            "lessThan", "lessThanEqual", "greaterThan", "greaterThanEqual", "equal", "notEqual",
+            "any", "all", "not", "texture2D",
+            // shared inputs of every stage
+            "inputImageTexture", "textureCoordinate"
+    ));
+
+    private final List<GPUImageFilter> mFilters;
+
+    private int[] mSourceLocations;
+    private int[] mTargetLocations;
+    private int[] mUniformTypes;
+    private int[] mFilterUniformOffsets;
+    private final float[] mFloatValues = new float[16];
+    private final int[] mIntValues = new int[4];
+    private boolean mCopyAllUniforms;
+
+    /**
+     * Instantiates a fused pass for the given filters. All filters must be
+     * accepted by {@link #isFusable(GPUImageFilter)}.
+     *
+     * @param filters the point-wise filters, in drawing order
+     */
+    public GPUImageFusedFilter(final List<GPUImageFilter> filters) {
+        super(NO_FILTER_VERTEX_SHADER, createFragmentShader(filters));
+        mFilters = Collections.unmodifiableList(new ArrayList<GPUImageFilter>(filters));
+    }
+
+    /**
+     * Returns whether the given filter can take part in a fused pass: it uses
+     * the default vertex shader, does not customize drawing and its fragment
+     * shader samples only inputImageTexture at textureCoordinate.
+     *
+     * @param filter the filter to check
+     * @return true if the filter can be fused
+     */
+    public static boolean isFusable(final GPUImageFilter filter) {
+        if (filter == null || filter instanceof GPUImageFilterGroup
+                || filter instanceof GPUImageFusedFilter) {
+            return false;
+        }
+        if (!NO_FILTER_VERTEX_SHADER.equals(filter.getVertexShader())
+                || overridesDrawing(filter.getClass())) {
+            return false;
+        }
+        return createStage(filter.getFragmentShader(), STAGE_PREFIX + "0_") != null;
+    }
+
+    /**
+     * Returns whether the filter's output depends on textureCoordinate itself
+     * and not only on the sampled color, e.g. a vignette. Such filters can not
+     * be fused behind the first filter of a group, since only that one sees
+     * the caller's texture coordinates.
+     *
+     * @param filter a filter accepted by {@link #isFusable(GPUImageFilter)}
+     * @return true if the filter reads textureCoordinate
+     */
+    public static boolean usesTextureCoordinate(final GPUImageFilter filter) {
+        Stage stage = createStage(filter.getFragmentShader(), STAGE_PREFIX + "0_");
+        return stage != null && stage.usesCoordinate;
+    }
+
+    /**
+     * Gets the filters rendered by this pass.
+     *
+     * @return the fused filters, in drawing order
+     */
+    public List<GPUImageFilter> getFilters() {
+        return mFilters;
+    }
+
+    /**
+     * Returns whether the generated program compiled and linked. Invalid
+     * passes are replaced by their filters by {@link GPUImageFilterGroup}.
+     *
+     * @return true if the fused program can be used
+     */
+    public boolean isValid() {
+        return isInitialized() && getProgram() != 0;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        if (getProgram() == 0) {
+            return;
+        }
+
+        List<int[]> bindings = new ArrayList<int[]>();
+        mFilterUniformOffsets = new int[mFilters.size() + 1];
+        int[] count = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        for (int i = 0; i < mFilters.size(); i++) {
+            mFilterUniformOffsets[i] = bindings.size();
+            int program = mFilters.get(i).getProgram();
+            GLES20.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+            for (int index = 0; index < count[0]; index++) {
+                String name = GLES20.glGetActiveUniform(program, index, size, 0, type, 0);
+                if (type[0] == GLES20.GL_SAMPLER_2D) {
+                    continue;
+                }
+                if (name.endsWith("[0]")) {
+                    name = name.substring(0, name.length() - 3);
+                }
+                for (int element = 0; element < size[0]; element++) {
+                    String elementName = size[0] > 1 ? name + "[" + element + "]" : name;
+                    int source = GLES20.glGetUniformLocation(program, elementName);
+                    int target = GLES20.glGetUniformLocation(getProgram(),
+                            STAGE_PREFIX + i + "_" + elementName);
+                    if (source != -1 && target != -1) {
+                        bindings.add(new int[] {source, target, type[0]});
+                    }
+                }
+            }
+        }
+        mFilterUniformOffsets[mFilters.size()] = bindings.size();
+
+        mSourceLocations = new int[bindings.size()];
+        mTargetLocations = new int[bindings.size()];
+        mUniformTypes = new int[bindings.size()];
+        for (int i = 0; i < bindings.size(); i++) {
+            mSourceLocations[i] = bindings.get(i)[0];
+            mTargetLocations[i] = bindings.get(i)[1];
+            mUniformTypes[i] = bindings.get(i)[2];
+        }
+        mCopyAllUniforms = true;
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        for (GPUImageFilter filter : mFilters) {
+            filter.onOutputSizeChanged(width, height);
+        }
+    }
+
+    @Override
+    public void updateTextureSTMatrix(float[] stMatrix) {
+        super.updateTextureSTMatrix(stMatrix);
+        for (GPUImageFilter filter : mFilters) {
+            filter.updateTextureSTMatrix(stMatrix);
+        }
+    }
+
+    @Override
+    protected void onProgramReclaimed() {
+        super.onProgramReclaimed();
+        mCopyAllUniforms = true;
+    }
+
+    @Override
+    protected void runPendingOnDrawTasks() {
+        super.runPendingOnDrawTasks();
+        if (!isValid() || mSourceLocations == null) {
+            return;
+        }
+
+        boolean switchedProgram = false;
+        for (int i = 0; i < mFilters.size(); i++) {
+            GPUImageFilter filter = mFilters.get(i);
+            if (!mCopyAllUniforms && !filter.hasPendingOnDrawTasks()) {
+                continue;
+            }
+            // The filter's setters target its own program, so let them run there first.
+            GLES20.glUseProgram(filter.getProgram());
+            filter.runPendingOnDrawTasks();
+            GLES20.glUseProgram(getProgram());
+            switchedProgram = true;
+            copyUniforms(filter.getProgram(), mFilterUniformOffsets[i], mFilterUniformOffsets[i + 1]);
+        }
+        mCopyAllUniforms = false;
+        if (switchedProgram) {
+            GLES20.glUseProgram(getProgram());
+        }
+    }
+
+    private void copyUniforms(final int sourceProgram, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            int target = mTargetLocations[i];
+            switch (mUniformTypes[i]) {
+                case GLES20.GL_FLOAT:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniform1fv(target, 1, mFloatValues, 0);
+                    break;
+                case GLES20.GL_FLOAT_VEC2:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniform2fv(target, 1, mFloatValues, 0);
+                    break;
+                case GLES20.GL_FLOAT_VEC3:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniform3fv(target, 1, mFloatValues, 0);
+                    break;
+                case GLES20.GL_FLOAT_VEC4:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniform4fv(target, 1, mFloatValues, 0);
+                    break;
+                case GLES20.GL_FLOAT_MAT2:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniformMatrix2fv(target, 1, false, mFloatValues, 0);
+                    break;
+                case GLES20.GL_FLOAT_MAT3:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniformMatrix3fv(target, 1, false, mFloatValues, 0);
+                    break;
+                case GLES20.GL_FLOAT_MAT4:
+                    GLES20.glGetUniformfv(sourceProgram, mSourceLocations[i], mFloatValues, 0);
+                    GLES20.glUniformMatrix4fv(target, 1, false, mFloatValues, 0);
+                    break;
+                case GLES20.GL_INT:
+                case GLES20.GL_BOOL:
+                    GLES20.glGetUniformiv(sourceProgram, mSourceLocations[i], mIntValues, 0);
+                    GLES20.glUniform1iv(target, 1, mIntValues, 0);
+                    break;
+                case GLES20.GL_INT_VEC2:
+                case GLES20.GL_BOOL_VEC2:
+                    GLES20.glGetUniformiv(sourceProgram, mSourceLocations[i], mIntValues, 0);
+                    GLES20.glUniform2iv(target, 1, mIntValues, 0);
+                    break;
+                case GLES20.GL_INT_VEC3:
+                case GLES20.GL_BOOL_VEC3:
+                    GLES20.glGetUniformiv(sourceProgram, mSourceLocations[i], mIntValues, 0);
+                    GLES20.glUniform3iv(target, 1, mIntValues, 0);
+                    break;
+                case GLES20.GL_INT_VEC4:
+                case GLES20.GL_BOOL_VEC4:
+                    GLES20.glGetUniformiv(sourceProgram, mSourceLocations[i], mIntValues, 0);
+                    GLES20.glUniform4iv(target, 1, mIntValues, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static String createFragmentShader(final List<GPUImageFilter> filters) {
+        StringBuilder shader = new StringBuilder();
+        shader.append("#ifdef GL_FRAGMENT_PRECISION_HIGH\n")
+                .append("precision highp float;\n")
+                .append("#else\n")
+                .append("precision mediump float;\n")
+                .append("#endif\n")
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("\n")
+                .append("uniform sampler2D inputImageTexture;\n");
+
+        for (int i = 0; i < filters.size(); i++) {
+            String prefix = STAGE_PREFIX + i + "_";
+            Stage stage = createStage(filters.get(i).getFragmentShader(), prefix);
+            if (stage == null) {
+                throw new IllegalArgumentException(filters.get(i).getClass().getSimpleName()
+                        + " can not be fused");
+            }
+            shader.append("\n// ").append(filters.get(i).getClass().getSimpleName()).append("\n")
+                    .append(stage.globals)
+                    .append("vec4 ").append(prefix).append("apply(vec4 ")
+                    .append(prefix).append("inputColor)\n")
+                    .append("{\n")
+                    .append(stage.precision)
+                    .append("vec4 ").append(prefix).append("fragColor;\n")
+                    .append(stage.body).append("\n")
+                    .append("return ").append(prefix).append("fragColor;\n")
+                    .append("}\n");
+        }
+
+        shader.append("\nvoid main()\n")
+                .append("{\n")
+                .append("    vec4 color = texture2D(inputImageTexture, textureCoordinate);\n");
+        for (int i = 0; i < filters.size(); i++) {
+            // Separate passes clamp when writing to the framebuffer, so do the same between stages.
+            shader.append("    color = ").append(STAGE_PREFIX).append(i).append("_apply(")
+                    .append(i == 0 ? "color" : "clamp(color, 0.0, 1.0)").append(");\n");
+        }
+        shader.append("    gl_FragColor = color;\n")
+                .append("}\n");
+        return shader.toString();
+    }
+
+    private static boolean overridesDrawing(Class<?> filterClass) {
+        while (filterClass != null && filterClass != GPUImageFilter.class) {
+            try {
+                filterClass.getDeclaredMethod("onDraw", int.class, FloatBuffer.class, FloatBuffer.class);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+            try {
+                filterClass.getDeclaredMethod("onDrawArraysPre");
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+            try {
+                filterClass.getDeclaredMethod("runPendingOnDrawTasks");
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+            filterClass = filterClass.getSuperclass();
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites a fragment shader into the parts of a fused stage, or returns
+     * null if the shader does anything other than transforming the color
+     * sampled at textureCoordinate.
+     */
+    private static Stage createStage(final String fragmentShader, final String prefix) {
+        if (fragmentShader == null) {
+            return null;
+        }
+        String source = stripComments(fragmentShader);
+        if (source.indexOf('#') != -1) {
+            return null;
+        }
+
+        Matcher main = MAIN_PATTERN.matcher(source);
+        if (!main.find()) {
+            return null;
+        }
+        int bodyStart = main.end();
+        int bodyEnd = findClosingBrace(source, bodyStart);
+        if (bodyEnd == -1) {
+            return null;
+        }
+        String body = source.substring(bodyStart, bodyEnd);
+        String globalSource = source.substring(0, main.start()) + "\n" + source.substring(bodyEnd + 1);
+        if (containsForbiddenToken(body)) {
+            return null;
+        }
+
+        StringBuilder precision = new StringBuilder();
+        StringBuilder globals = new StringBuilder();
+        for (String statement : splitStatements(globalSource)) {
+            if (statement.startsWith("precision")) {
+                precision.append(statement).append('\n');
+            } else if (statement.startsWith("varying")) {
+                if (!COORDINATE_VARYING_PATTERN.matcher(statement).lookingAt()) {
+                    return null;
+                }
+            } else if (statement.contains("sampler")) {
+                if (!INPUT_SAMPLER_PATTERN.matcher(statement).lookingAt()) {
+                    return null;
+                }
+            } else if (statement.contains("gl_FragColor") || statement.contains("texture2D")
+                    || statement.contains("inputImageTexture")) {
+                return null;
+            } else {
+                globals.append(rename(statement, prefix)).append('\n');
+            }
+        }
+        for (String statement : splitStatements(globals.toString())) {
+            // Helper functions may return, the main body may not.
+            String withoutReturn = statement.replaceAll("\\breturn\\b", "");
+            if (containsForbiddenToken(withoutReturn)) {
+                return null;
+            }
+        }
+
+        String renamedBody = rename(body, prefix);
+        Matcher sample = SAMPLE_PATTERN.matcher(renamedBody);
+        renamedBody = sample.replaceAll(prefix + "inputColor");
+        if (renamedBody.contains("texture2D") || renamedBody.contains("inputImageTexture")) {
+            return null;
+        }
+        renamedBody = FRAG_COLOR_PATTERN.matcher(renamedBody).replaceAll(prefix + "fragColor");
+        boolean usesCoordinate = renamedBody.contains("textureCoordinate")
+                || globals.indexOf("textureCoordinate") != -1;
+
+        return new Stage(globals.toString(), precision.toString(), renamedBody, usesCoordinate);
+    }
+
+    private static boolean containsForbiddenToken(final String source) {
+        Matcher identifier = IDENTIFIER_PATTERN.matcher(source);
+        while (identifier.find()) {
+            if (FORBIDDEN_TOKENS.contains(identifier.group())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String rename(final String source, final String prefix) {
+        Matcher identifier = IDENTIFIER_PATTERN.matcher(source);
+        StringBuffer renamed = new StringBuffer();
+        while (identifier.find()) {
+            String name = identifier.group();
+            if (RESERVED_IDENTIFIERS.contains(name) || name.startsWith("gl_")) {
+                identifier.appendReplacement(renamed, name);
+            } else {
+                identifier.appendReplacement(renamed, prefix + name);
+            }
+        }
+        identifier.appendTail(renamed);
+        return renamed.toString();
+    }
+
+    private static List<String> splitStatements(final String source) {
+        List<String> statements = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            }
+            if (depth == 0 && (c == ';' || c == '}')) {
+                String statement = source.substring(start, i + 1).trim();
+                if (statement.length() > 1) {
+                    statements.add(statement);
+                }
+                start = i + 1;
+            }
+        }
+        return statements;
+    }
+
+    private static int findClosingBrace(final String source, final int from) {
+        int depth = 1;
+        for (int i = from; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String stripComments(final String source) {
+        return source.replaceAll("(?s)/\\*.*?\\*/", " ").replaceAll("//[^\\n]*", " ");
+    }
+
+    private static class Stage {
+        final String globals;
+        final String precision;
+        final String body;
+        final boolean usesCoordinate;
+
+        Stage(String globals, String precision, String body, boolean usesCoordinate) {
+            this.globals = globals;
+            this.precision = precision;
+            this.body = body;
+            this.usesCoordinate = usesCoordinate;
+        }
+    }
+}
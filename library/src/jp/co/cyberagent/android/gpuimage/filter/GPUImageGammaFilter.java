@@ -63,4 +63,13 @@ public class GPUImageGammaFilter extends GPUImageFilter {
         mGamma = gamma;
         setFloat(mGammaLocation, mGamma);
     }
+
+    public float getGamma() {
+        return mGamma;
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
@@ -99,6 +99,12 @@ public class GPUImageGaussianBlurFilter extends GPUImageTwoPassTextureSamplingFi
         return mBlurSize;
     }
 
+    @Override
+    public int getSamplingRadius() {
+        // Four samples on each side of the center.
+        return (int) Math.ceil(4 * mBlurSize);
+    }
+
     /**
      * A multiplier for the blur size, ranging from 0.0 on up, with a default of 1.0
      *
@@ -94,4 +94,10 @@ public class GPUImageHazeFilter extends GPUImageFilter {
         mSlope = slope;
         setFloat(mSlopeLocation, slope);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The effect is placed relative to the whole image.
+        return -1;
+    }
 }
@@ -83,4 +83,9 @@ public class GPUImageHighlightShadowFilter extends GPUImageFilter {
         mShadows = shadows;
         setFloat(mShadowsLocation, mShadows);
     }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
@@ -18,11 +18,21 @@ package jp.co.cyberagent.android.gpuimage.filter;
 
 import android.opengl.GLES20;
 
+import java.nio.FloatBuffer;
+
+import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
+
 /**
  * Kuwahara image abstraction, drawn from the work of Kyprianidis, et. al. in their publication
  * "Anisotropic Kuwahara Filtering on the GPU" within the GPU Pro collection. This produces an oil-painting-like
  * image, but it is extremely computationally expensive, so it can take seconds to render a frame on an iPad 2.
  * This might be best used for still images.
+ * <br>
+ * On OpenGL ES 3.0 contexts, radii above {@link #setSummedAreaTableThreshold(int)} are drawn with
+ * {@link GPUImageSummedAreaTableKuwaharaFilter}, whose cost does not grow with the radius. The
+ * filter falls back to sampling every texel when the tables would take more GPU memory than
+ * {@link #setSummedAreaTableMaxBytes(long)} allows, for example for large exports, or when the
+ * device cannot render into integer textures.
  */
 public class GPUImageKuwaharaFilter extends GPUImageFilter {
     public static final String KUWAHARA_FRAGMENT_SHADER = "" +
@@ -114,6 +124,14 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
             "}\n" +
             "}\n";
 
+    public static final int DEFAULT_SUMMED_AREA_TABLE_THRESHOLD = 4;
+    /** Enough for 1080p, about 66 MB, but not for photos of several megapixels. */
+    public static final long DEFAULT_SUMMED_AREA_TABLE_MAX_BYTES = 96L * 1024 * 1024;
+
+    private final GPUImageSummedAreaTableKuwaharaFilter mSummedAreaTableFilter;
+    private boolean mSummedAreaTableSupported;
+    private int mSummedAreaTableThreshold = DEFAULT_SUMMED_AREA_TABLE_THRESHOLD;
+    private long mSummedAreaTableMaxBytes = DEFAULT_SUMMED_AREA_TABLE_MAX_BYTES;
     private int mRadius;
     private int mRadiusLocation;
 
@@ -124,12 +142,40 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
     public GPUImageKuwaharaFilter(int radius) {
         super(NO_FILTER_VERTEX_SHADER, KUWAHARA_FRAGMENT_SHADER);
         mRadius = radius;
+        mSummedAreaTableFilter = new GPUImageSummedAreaTableKuwaharaFilter(radius);
     }
 
     @Override
     public void onInit() {
         super.onInit();
         mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+        mSummedAreaTableSupported = OpenGlUtils.isGLES3Context();
+        if (mSummedAreaTableSupported) {
+            mSummedAreaTableFilter.init();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        mSummedAreaTableFilter.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mSummedAreaTableFilter.onOutputSizeChanged(width, height);
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (mSummedAreaTableSupported && mRadius > mSummedAreaTableThreshold
+                && mSummedAreaTableFilter.canDrawTable(mSummedAreaTableMaxBytes)) {
+            mSummedAreaTableFilter.onDraw(textureId, cubeBuffer, textureBuffer);
+        } else {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+        }
     }
 
     @Override
@@ -138,6 +184,12 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
         setRadius(mRadius);
     }
 
+    @Override
+    public int getSamplingRadius() {
+        // The sampling step is a fixed fraction of the image, not a pixel.
+        return -1;
+    }
+
     /**
      * The radius to sample from when creating the brush-stroke effect, with a default of 3.
      * The larger the radius, the slower the filter.
@@ -147,5 +199,31 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
     public void setRadius(final int radius) {
         mRadius = radius;
         setInteger(mRadiusLocation, radius);
+        mSummedAreaTableFilter.setRadius(radius);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * Sets the largest radius drawn by sampling every texel of the quadrants. Larger radii use a
+     * summed-area table when the context supports it, which costs a fixed number of passes.
+     *
+     * @param threshold default 4, {@link Integer#MAX_VALUE} to always sample every texel
+     */
+    public void setSummedAreaTableThreshold(final int threshold) {
+        mSummedAreaTableThreshold = threshold;
+    }
+
+    /**
+     * Sets the GPU memory the summed-area tables may take, at
+     * {@link GPUImageSummedAreaTableKuwaharaFilter#TABLE_BYTES_PER_PIXEL} bytes per pixel. Larger
+     * outputs sample every texel instead, which is slower but needs no extra memory.
+     *
+     * @param maxBytes default {@link #DEFAULT_SUMMED_AREA_TABLE_MAX_BYTES}
+     */
+    public void setSummedAreaTableMaxBytes(final long maxBytes) {
+        mSummedAreaTableMaxBytes = maxBytes;
     }
 }
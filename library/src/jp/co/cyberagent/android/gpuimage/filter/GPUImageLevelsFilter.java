@@ -126,4 +126,29 @@ public class GPUImageLevelsFilter extends GPUImageFilter{
     public void setBlueMin(float min, float mid , float max ){
         setBlueMin(min, mid, max, 0, 1);
     }
+
+    public float[] getLevelMinimum() {
+        return mMin.clone();
+    }
+
+    public float[] getLevelMiddle() {
+        return mMid.clone();
+    }
+
+    public float[] getLevelMaximum() {
+        return mMax.clone();
+    }
+
+    public float[] getMinOutput() {
+        return mMinOutput.clone();
+    }
+
+    public float[] getMaxOutput() {
+        return mMaxOutput.clone();
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
@@ -16,7 +16,21 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageLookupTable;
+import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
+
+/**
+ * Maps colors through a 3D lookup table of N levels per channel, laid out
+ * as N tiles of N x N texels, see {@link GPUImageLookupTable}. The table is
+ * either an image, by default 512 x 512 with 8 x 8 tiles of 64 levels, or a
+ * {@link GPUImageLookupTable} read from a .cube or .3dl file, which keeps
+ * its own size instead of being resampled to 64 levels.
+ */
 public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
+    public static final int DEFAULT_LOOKUP_SIZE = 64;
 
     public static final String LOOKUP_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2; // TODO: This is not used\n" +
@@ -24,27 +38,26 @@ public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
             " uniform sampler2D inputImageTexture;\n" +
             " uniform sampler2D inputImageTexture2; // lookup texture\n" +
             " \n" +
+            " uniform highp float lookupSize;\n" +
+            " uniform highp vec2 lookupTiles;\n" +
+            " \n" +
             " void main()\n" +
             " {\n" +
             "     lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
             "     \n" +
-            "     mediump float blueColor = textureColor.b * 63.0;\n" +
+            "     highp float blueColor = textureColor.b * (lookupSize - 1.0);\n" +
             "     \n" +
-            "     mediump vec2 quad1;\n" +
-            "     quad1.y = floor(floor(blueColor) / 8.0);\n" +
-            "     quad1.x = floor(blueColor) - (quad1.y * 8.0);\n" +
+            "     highp vec2 quad1;\n" +
+            "     quad1.y = floor((floor(blueColor) + 0.5) / lookupTiles.x);\n" +
+            "     quad1.x = floor(blueColor) - (quad1.y * lookupTiles.x);\n" +
             "     \n" +
-            "     mediump vec2 quad2;\n" +
-            "     quad2.y = floor(ceil(blueColor) / 8.0);\n" +
-            "     quad2.x = ceil(blueColor) - (quad2.y * 8.0);\n" +
+            "     highp vec2 quad2;\n" +
+            "     quad2.y = floor((ceil(blueColor) + 0.5) / lookupTiles.x);\n" +
+            "     quad2.x = ceil(blueColor) - (quad2.y * lookupTiles.x);\n" +
             "     \n" +
-            "     highp vec2 texPos1;\n" +
-            "     texPos1.x = (quad1.x * 0.125) + 0.5/512.0 + ((0.125 - 1.0/512.0) * textureColor.r);\n" +
-            "     texPos1.y = (quad1.y * 0.125) + 0.5/512.0 + ((0.125 - 1.0/512.0) * textureColor.g);\n" +
-            "     \n" +
-            "     highp vec2 texPos2;\n" +
-            "     texPos2.x = (quad2.x * 0.125) + 0.5/512.0 + ((0.125 - 1.0/512.0) * textureColor.r);\n" +
-            "     texPos2.y = (quad2.y * 0.125) + 0.5/512.0 + ((0.125 - 1.0/512.0) * textureColor.g);\n" +
+            "     highp vec2 offset = (0.5 + textureColor.rg * (lookupSize - 1.0)) / (lookupTiles * lookupSize);\n" +
+            "     highp vec2 texPos1 = quad1 / lookupTiles + offset;\n" +
+            "     highp vec2 texPos2 = quad2 / lookupTiles + offset;\n" +
             "     \n" +
             "     lowp vec4 newColor1 = texture2D(inputImageTexture2, texPos1);\n" +
             "     lowp vec4 newColor2 = texture2D(inputImageTexture2, texPos2);\n" +
@@ -53,8 +66,149 @@ public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
             "     gl_FragColor = vec4(newColor.rgb, textureColor.w);\n" +
             " }";
 
+    private int mLookupSize = DEFAULT_LOOKUP_SIZE;
+    private float[] mLookupTiles = new float[] {8.0f, 8.0f};
+    private int mLookupSizeLocation;
+    private int mLookupTilesLocation;
+    private GPUImageLookupTable mTable;
+    private int mTableTexture = OpenGlUtils.NO_TEXTURE;
 
     public GPUImageLookupFilter() {
         super(LOOKUP_FRAGMENT_SHADER);
     }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mLookupSizeLocation = GLES20.glGetUniformLocation(getProgram(), "lookupSize");
+        mLookupTilesLocation = GLES20.glGetUniformLocation(getProgram(), "lookupTiles");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setLayout(mLookupSize, mLookupTiles[0], mLookupTiles[1]);
+        if (mTable != null) {
+            loadTable(mTable);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        deleteTableTexture();
+    }
+
+    /**
+     * Sets the number of levels per channel of lookup images given to
+     * {@link #setBitmap(Bitmap)}. The tiles fill the image in rows.
+     *
+     * @param size the levels per channel, 64 by default
+     */
+    public void setLookupSize(final int size) {
+        if (size < GPUImageLookupTable.MIN_SIZE || size > GPUImageLookupTable.MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        Bitmap bitmap = getBitmap();
+        if (mTable == null && bitmap != null) {
+            setLayout(size, bitmap.getWidth() / size, bitmap.getHeight() / size);
+        } else {
+            mLookupSize = size;
+        }
+    }
+
+    public int getLookupSize() {
+        return mLookupSize;
+    }
+
+    @Override
+    public void setBitmap(final Bitmap bitmap) {
+        if (bitmap != null && !bitmap.isRecycled()) {
+            mTable = null;
+            setLayout(mLookupSize, bitmap.getWidth() / mLookupSize,
+                    bitmap.getHeight() / mLookupSize);
+            runOnDraw(new Runnable() {
+                @Override
+                public void run() {
+                    deleteTableTexture();
+                }
+            });
+        }
+        super.setBitmap(bitmap);
+    }
+
+    /**
+     * Sets a lookup table of any size in place of a lookup image. The table
+     * data is uploaded as it is, without an intermediate bitmap.
+     *
+     * @param table the table, e.g. from
+     *              {@link jp.co.cyberagent.android.gpuimage.GPUImageLookupTableCache}
+     */
+    public void setLookupTable(final GPUImageLookupTable table) {
+        mTable = table;
+        // Drops the lookup image, so initializing again keeps the table.
+        super.setBitmap(null);
+        setLayout(table.getSize(), table.getTilesX(), table.getTilesY());
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                loadTable(table);
+            }
+        });
+    }
+
+    public GPUImageLookupTable getLookupTable() {
+        return mTable;
+    }
+
+    private void setLayout(final int size, final float tilesX, final float tilesY) {
+        mLookupSize = size;
+        mLookupTiles = new float[] {tilesX, tilesY};
+        setFloat(mLookupSizeLocation, size);
+        setFloatVec2(mLookupTilesLocation, mLookupTiles);
+    }
+
+    private void loadTable(final GPUImageLookupTable table) {
+        if (table != mTable) {
+            return;
+        }
+        // Texture unit 0 may hold the input, see GPUImageTwoInputFilter.
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+        if (mTableTexture == OpenGlUtils.NO_TEXTURE) {
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            mTableTexture = textures[0];
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTableTexture);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, table.getWidth(),
+                table.getHeight(), 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, table.getData());
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        mFilterSourceTexture2 = mTableTexture;
+    }
+
+    private void deleteTableTexture() {
+        if (mTableTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[] {mTableTexture}, 0);
+            mTableTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // The second image is a color table, not a part of the picture.
+        return 0;
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
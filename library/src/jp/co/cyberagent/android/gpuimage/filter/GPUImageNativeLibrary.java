@@ -24,4 +24,11 @@ public class GPUImageNativeLibrary {
     public static native void YUVtoRBGA(byte[] yuv, int width, int height, int[] out);
 
     public static native void YUVtoARBG(byte[] yuv, int width, int height, int[] out);
+
+    /**
+     * Reads pixels into the currently bound GL_PIXEL_PACK_BUFFER at the given
+     * byte offset. Needs an OpenGL ES 3.0 context.
+     */
+    public static native void readPixelsToPackBuffer(int x, int y, int width, int height,
+                                                     int format, int type, int offset);
 }
@@ -71,4 +71,10 @@ public class GPUImagePixelationFilter extends GPUImageFilter {
       mPixel = pixel;
       setFloat(mPixelLocation, mPixel);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The pixel grid starts at the image corner.
+        return -1;
+    }
 }
@@ -93,4 +93,16 @@ public class GPUImageRGBFilter extends GPUImageFilter {
             setFloat(mBlueLocation, mBlue);
         }
     }
+
+    public float getRed() {
+        return mRed;
+    }
+
+    public float getGreen() {
+        return mGreen;
+    }
+
+    public float getBlue() {
+        return mBlue;
+    }
 }
@@ -69,4 +69,13 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
         mSaturation = saturation;
         setFloat(mSaturationLocation, mSaturation);
     }
+
+    public float getSaturation() {
+        return mSaturation;
+    }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
@@ -124,4 +124,10 @@ public class GPUImageSphereRefractionFilter extends GPUImageFilter {
         mRadius = radius;
         setFloat(mRadiusLocation, radius);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The effect is placed relative to the whole image.
+        return -1;
+    }
 }
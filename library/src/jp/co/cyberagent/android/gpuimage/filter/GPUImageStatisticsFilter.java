@@ -0,0 +1,604 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageFrameReader;
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebuffer;
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebufferCache;
+import jp.co.cyberagent.android.gpuimage.GPUImageRenderer;
+
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+
+/**
+ * Passes its input through unchanged and measures the luminance of it on the
+ * GPU: mean, minimum, maximum and a 256 bin histogram. Put it anywhere in a
+ * {@link GPUImageFilterGroup} to measure the image at that point.
+ * <br>
+ * Mean, minimum and maximum come from repeated 4x4 reduction passes into
+ * small framebuffers, of which only the last few texels are read back. The
+ * histogram scatters one point per sample of a grid into a 256 pixel wide
+ * framebuffer with additive blending; samples are spread over rows and color
+ * channels so no 8 bit counter overflows. Devices without vertex texture
+ * fetch downsample the image to the sample grid and bin it on the CPU
+ * instead. The mean is approximate: blocks cut off at the right and top edge
+ * weigh as much as full ones.
+ * <br>
+ * Results are read back through {@link GPUImageFrameReader}. With pixel pack
+ * buffers they arrive one frame late, so the GPU never has to finish a frame
+ * before the next one is drawn; otherwise they are read right away.
+ */
+public class GPUImageStatisticsFilter extends GPUImageFilter {
+    private static final String LUMINANCE = "const highp vec3 W = vec3(0.2125, 0.7154, 0.0721);\n";
+
+    private static final String REDUCE_LUMINANCE_FRAGMENT_SHADER = reduceShader(
+            "float luminance = dot(texture2D(inputImageTexture, (position + 0.5) / inputSize).rgb, W);\n" +
+            "sum += luminance;\n" +
+            "minimum = min(minimum, luminance);\n" +
+            "maximum = max(maximum, luminance);\n");
+
+    private static final String REDUCE_STATISTICS_FRAGMENT_SHADER = reduceShader(
+            "vec3 value = texture2D(inputImageTexture, (position + 0.5) / inputSize).rgb;\n" +
+            "sum += value.r;\n" +
+            "minimum = min(minimum, value.g);\n" +
+            "maximum = max(maximum, value.b);\n");
+
+    private static final String HISTOGRAM_VERTEX_SHADER = "" +
+            "attribute vec4 sample;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform float rowCount;\n" +
+            "\n" +
+            "varying lowp vec4 channelMask;\n" +
+            "\n" +
+            LUMINANCE +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    float luminance = dot(texture2DLod(inputImageTexture, sample.xy, 0.0).rgb, W);\n" +
+            "    float bin = floor(clamp(luminance, 0.0, 1.0) * 255.0 + 0.5);\n" +
+            "    gl_Position = vec4((bin + 0.5) / 128.0 - 1.0, (sample.z + 0.5) / rowCount * 2.0 - 1.0, 0.0, 1.0);\n" +
+            "    gl_PointSize = 1.0;\n" +
+            "    channelMask = vec4(equal(vec4(sample.w), vec4(0.0, 1.0, 2.0, 3.0)));\n" +
+            "}";
+
+    private static final String HISTOGRAM_FRAGMENT_SHADER = "" +
+            "varying lowp vec4 channelMask;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = channelMask * (1.0 / 255.0);\n" +
+            "}";
+
+    private static final int BINS = 256;
+    /** Reduction stops once at most this many texels are left. */
+    private static final int MAX_READBACK_TEXELS = 64;
+    private static final int DEFAULT_SAMPLE_GRID = 64;
+    private static final int READBACK_BUFFERS = 2;
+
+    public interface OnStatisticsListener {
+        /**
+         * Called on the GL thread after the statistics were measured, one
+         * frame later where the readback is asynchronous.
+         *
+         * @param statistics the statistics
+         */
+        void onStatistics(Statistics statistics);
+    }
+
+    /**
+     * The luminance statistics of one frame, all values from 0 to 1.
+     */
+    public static class Statistics {
+        private final float mMean;
+        private final float mMin;
+        private final float mMax;
+        private final int[] mHistogram;
+        private final int mSampleCount;
+
+        Statistics(final float mean, final float min, final float max, final int[] histogram,
+                   final int sampleCount) {
+            mMean = mean;
+            mMin = min;
+            mMax = max;
+            mHistogram = histogram;
+            mSampleCount = sampleCount;
+        }
+
+        public float getMean() {
+            return mMean;
+        }
+
+        public float getMin() {
+            return mMin;
+        }
+
+        public float getMax() {
+            return mMax;
+        }
+
+        /**
+         * Gets the luminance histogram of the sampled pixels.
+         *
+         * @return a copy of the 256 bins
+         */
+        public int[] getHistogram() {
+            return mHistogram.clone();
+        }
+
+        /**
+         * Gets the number of pixels counted in the histogram.
+         *
+         * @return the sum of all bins
+         */
+        public int getSampleCount() {
+            return mSampleCount;
+        }
+    }
+
+    private final FloatBuffer mCubeBuffer;
+    private final FloatBuffer mTextureBuffer;
+    private final ReductionPass mFirstReduction = new ReductionPass(REDUCE_LUMINANCE_FRAGMENT_SHADER);
+    private final ReductionPass mNextReduction = new ReductionPass(REDUCE_STATISTICS_FRAGMENT_SHADER);
+    private final HistogramPass mHistogramPass = new HistogramPass();
+    private final GPUImageFilter mDownsamplePass = new GPUImageFilter();
+    private boolean mVertexTextureFetch;
+
+    private int mSampleGrid = DEFAULT_SAMPLE_GRID;
+    private int mHistogramRows;
+    private FloatBuffer mSamples;
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private final int[] mSavedBlendFunc = new int[4];
+
+    private GPUImageFrameReader mReductionReader;
+    private GPUImageFrameReader mHistogramReader;
+    private int mReductionReadWidth;
+    private int mReductionReadHeight;
+    private int mHistogramReadWidth;
+    private int mHistogramReadHeight;
+    private final float[] mLuminance = new float[3];
+    private long mLuminanceFrame = -1;
+    private final int[] mHistogram = new int[BINS];
+
+    private final GPUImageFrameReader.FrameConsumer mReductionConsumer =
+            new GPUImageFrameReader.FrameConsumer() {
+                @Override
+                public void onFrame(final ByteBuffer pixels, final int width, final int height,
+                                    final long frameIndex) {
+                    int count = width * height;
+                    int sum = 0;
+                    int min = 255;
+                    int max = 0;
+                    for (int i = 0; i < count; i++) {
+                        sum += pixels.get(i * 4) & 0xff;
+                        min = Math.min(min, pixels.get(i * 4 + 1) & 0xff);
+                        max = Math.max(max, pixels.get(i * 4 + 2) & 0xff);
+                    }
+                    mLuminance[0] = sum / (255f * count);
+                    mLuminance[1] = min / 255f;
+                    mLuminance[2] = max / 255f;
+                    mLuminanceFrame = frameIndex;
+                }
+            };
+
+    private final GPUImageFrameReader.FrameConsumer mHistogramConsumer =
+            new GPUImageFrameReader.FrameConsumer() {
+                @Override
+                public void onFrame(final ByteBuffer pixels, final int width, final int height,
+                                    final long frameIndex) {
+                    int samples = mVertexTextureFetch ? countScatteredHistogram(pixels, height)
+                            : binDownsampledHistogram(pixels, width * height);
+                    // Both readers are created together, so they hand over
+                    // the same measurement unless one was dropped.
+                    if (frameIndex == mLuminanceFrame) {
+                        publish(new Statistics(mLuminance[0], mLuminance[1], mLuminance[2],
+                                mHistogram.clone(), samples));
+                    }
+                }
+            };
+
+    private int mFrameInterval = 1;
+    private int mFrameCount;
+    private volatile Statistics mStatistics;
+    private OnStatisticsListener mListener;
+
+    public GPUImageStatisticsFilter() {
+        super(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
+        mCubeBuffer = ByteBuffer.allocateDirect(GPUImageRenderer.CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(GPUImageRenderer.CUBE).position(0);
+        mTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mTextureBuffer.put(TEXTURE_NO_ROTATION).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mFirstReduction.init();
+        mNextReduction.init();
+        int[] units = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS, units, 0);
+        mVertexTextureFetch = units[0] > 0;
+        if (mVertexTextureFetch) {
+            mHistogramPass.init();
+        } else {
+            mDownsamplePass.init();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyReaders();
+        mFirstReduction.destroy();
+        mNextReduction.destroy();
+        mHistogramPass.destroy();
+        mDownsamplePass.destroy();
+        super.onDestroy();
+    }
+
+    /**
+     * Sets the listener called on the GL thread with every measurement.
+     *
+     * @param listener the listener, or null
+     */
+    public void setOnStatisticsListener(final OnStatisticsListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Measures only every n-th frame, to save GPU time on live previews.
+     *
+     * @param interval the number of frames between measurements, 1 for all
+     */
+    public void setFrameInterval(final int interval) {
+        mFrameInterval = Math.max(1, interval);
+    }
+
+    /**
+     * Sets the size of the sample grid the histogram is built from, so it
+     * counts grid * grid pixels. Defaults to 64.
+     *
+     * @param grid the number of samples per side
+     */
+    public void setHistogramSampleGrid(final int grid) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mSampleGrid = Math.max(1, grid);
+                mSamples = null;
+            }
+        });
+    }
+
+    /**
+     * Gets the last measurement.
+     *
+     * @return the statistics, or null before the first frame was measured
+     */
+    public Statistics getStatistics() {
+        return mStatistics;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // The statistics cover the whole image, not one tile.
+        return -1;
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (isInitialized() && mOutputWidth > 0 && mOutputHeight > 0) {
+            if (mFrameCount++ % mFrameInterval == 0) {
+                runPendingOnDrawTasks();
+                GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+                GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+                if (mVertexTextureFetch && mSamples == null) {
+                    createSamples();
+                }
+                updateReaders();
+
+                reduce(textureId);
+                if (mVertexTextureFetch) {
+                    scatterHistogram(textureId);
+                } else {
+                    downsampleHistogram(textureId);
+                }
+
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+                GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2],
+                        mSavedViewport[3]);
+                // The previous measurement has had a frame to finish.
+                deliverStatistics(1);
+            } else {
+                deliverStatistics(0);
+            }
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    private void publish(final Statistics statistics) {
+        mStatistics = statistics;
+        if (mListener != null) {
+            mListener.onStatistics(statistics);
+        }
+    }
+
+    private void deliverStatistics(final int maxInFlight) {
+        if (mReductionReader != null) {
+            mReductionReader.deliverFrames(maxInFlight);
+            mHistogramReader.deliverFrames(maxInFlight);
+        }
+    }
+
+    /**
+     * Creates the readers for the sizes the passes of the current output
+     * size and sample grid read back, dropping measurements still in flight
+     * if a size changed.
+     */
+    private void updateReaders() {
+        int width = mOutputWidth;
+        int height = mOutputHeight;
+        do {
+            width = (width + 3) / 4;
+            height = (height + 3) / 4;
+        } while (width * height > MAX_READBACK_TEXELS);
+        int histogramWidth = mVertexTextureFetch ? BINS : mSampleGrid;
+        int histogramHeight = mVertexTextureFetch ? mHistogramRows : mSampleGrid;
+        if (mReductionReader != null && width == mReductionReadWidth
+                && height == mReductionReadHeight && histogramWidth == mHistogramReadWidth
+                && histogramHeight == mHistogramReadHeight) {
+            return;
+        }
+        destroyReaders();
+        mReductionReader = new GPUImageFrameReader(width, height, READBACK_BUFFERS,
+                mReductionConsumer);
+        mHistogramReader = new GPUImageFrameReader(histogramWidth, histogramHeight,
+                READBACK_BUFFERS, mHistogramConsumer);
+        mReductionReadWidth = width;
+        mReductionReadHeight = height;
+        mHistogramReadWidth = histogramWidth;
+        mHistogramReadHeight = histogramHeight;
+    }
+
+    private void destroyReaders() {
+        if (mReductionReader != null) {
+            mReductionReader.destroy();
+            mHistogramReader.destroy();
+            mReductionReader = null;
+            mHistogramReader = null;
+        }
+        mLuminanceFrame = -1;
+    }
+
+    private void reduce(final int textureId) {
+        GPUImageFramebufferCache cache = GPUImageFramebufferCache.getInstance();
+        int width = mOutputWidth;
+        int height = mOutputHeight;
+        int texture = textureId;
+        ReductionPass pass = mFirstReduction;
+        GPUImageFramebuffer previous = null;
+        do {
+            int reducedWidth = (width + 3) / 4;
+            int reducedHeight = (height + 3) / 4;
+            GPUImageFramebuffer framebuffer = cache.fetchFramebuffer(reducedWidth, reducedHeight,
+                    GLES20.GL_RGBA, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, GLES20.GL_NEAREST);
+            framebuffer.bind();
+            GLES20.glViewport(0, 0, reducedWidth, reducedHeight);
+            pass.setInputSize(width, height);
+            pass.onDraw(texture, mCubeBuffer, mTextureBuffer);
+            if (previous != null) {
+                previous.unlock();
+            }
+            previous = framebuffer;
+            texture = framebuffer.getTextureId();
+            width = reducedWidth;
+            height = reducedHeight;
+            pass = mNextReduction;
+        } while (width * height > MAX_READBACK_TEXELS);
+
+        mReductionReader.readFrame();
+        previous.unlock();
+    }
+
+    private void scatterHistogram(final int textureId) {
+        GPUImageFramebuffer framebuffer = GPUImageFramebufferCache.getInstance().fetchFramebuffer(
+                BINS, mHistogramRows, GLES20.GL_RGBA, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                GLES20.GL_NEAREST);
+        framebuffer.bind();
+        GLES20.glViewport(0, 0, BINS, mHistogramRows);
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        boolean blend = GLES20.glIsEnabled(GLES20.GL_BLEND);
+        int[] blendFunc = mSavedBlendFunc;
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_SRC_RGB, blendFunc, 0);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_DST_RGB, blendFunc, 1);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_SRC_ALPHA, blendFunc, 2);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_DST_ALPHA, blendFunc, 3);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+
+        mHistogramPass.drawPoints(textureId, mSamples, mSampleGrid * mSampleGrid, mHistogramRows);
+
+        GLES20.glBlendFuncSeparate(blendFunc[0], blendFunc[1], blendFunc[2], blendFunc[3]);
+        if (!blend) {
+            GLES20.glDisable(GLES20.GL_BLEND);
+        }
+
+        mHistogramReader.readFrame();
+        framebuffer.unlock();
+    }
+
+    private int countScatteredHistogram(final ByteBuffer pixels, final int rows) {
+        Arrays.fill(mHistogram, 0);
+        int samples = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int bin = 0; bin < BINS; bin++) {
+                int offset = (row * BINS + bin) * 4;
+                int count = (pixels.get(offset) & 0xff)
+                        + (pixels.get(offset + 1) & 0xff)
+                        + (pixels.get(offset + 2) & 0xff)
+                        + (pixels.get(offset + 3) & 0xff);
+                mHistogram[bin] += count;
+                samples += count;
+            }
+        }
+        return samples;
+    }
+
+    private void downsampleHistogram(final int textureId) {
+        int grid = mSampleGrid;
+        GPUImageFramebuffer framebuffer = GPUImageFramebufferCache.getInstance()
+                .fetchFramebuffer(grid, grid);
+        framebuffer.bind();
+        GLES20.glViewport(0, 0, grid, grid);
+        mDownsamplePass.onDraw(textureId, mCubeBuffer, mTextureBuffer);
+
+        mHistogramReader.readFrame();
+        framebuffer.unlock();
+    }
+
+    private int binDownsampledHistogram(final ByteBuffer pixels, final int count) {
+        Arrays.fill(mHistogram, 0);
+        for (int i = 0; i < count; i++) {
+            int r = pixels.get(i * 4) & 0xff;
+            int g = pixels.get(i * 4 + 1) & 0xff;
+            int b = pixels.get(i * 4 + 2) & 0xff;
+            mHistogram[Math.round(0.2125f * r + 0.7154f * g + 0.0721f * b)]++;
+        }
+        return count;
+    }
+
+    private void createSamples() {
+        int grid = mSampleGrid;
+        int count = grid * grid;
+        // Each row and channel of a bin counts at most 255 samples.
+        mHistogramRows = (count + 4 * 255 - 1) / (4 * 255);
+        int slots = 4 * mHistogramRows;
+        mSamples = ByteBuffer.allocateDirect(count * 4 * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        for (int i = 0; i < count; i++) {
+            int slot = i % slots;
+            mSamples.put((i % grid + 0.5f) / grid);
+            mSamples.put((i / grid + 0.5f) / grid);
+            mSamples.put(slot / 4);
+            mSamples.put(slot % 4);
+        }
+        mSamples.position(0);
+    }
+
+    private static String reduceShader(final String accumulate) {
+        return "" +
+                "precision highp float;\n" +
+                "\n" +
+                "uniform sampler2D inputImageTexture;\n" +
+                "uniform vec2 inputSize;\n" +
+                "\n" +
+                LUMINANCE +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    vec2 origin = floor(gl_FragCoord.xy) * 4.0;\n" +
+                "    float sum = 0.0;\n" +
+                "    float count = 0.0;\n" +
+                "    float minimum = 1.0;\n" +
+                "    float maximum = 0.0;\n" +
+                "    for (int y = 0; y < 4; y++) {\n" +
+                "        for (int x = 0; x < 4; x++) {\n" +
+                "            vec2 position = origin + vec2(float(x), float(y));\n" +
+                "            if (position.x < inputSize.x && position.y < inputSize.y) {\n" +
+                accumulate +
+                "                count += 1.0;\n" +
+                "            }\n" +
+                "        }\n" +
+                "    }\n" +
+                "    gl_FragColor = vec4(sum / count, minimum, maximum, 1.0);\n" +
+                "}";
+    }
+
+    private static class ReductionPass extends GPUImageFilter {
+        private int mInputSizeLocation;
+        private int mInputWidth;
+        private int mInputHeight;
+
+        ReductionPass(final String fragmentShader) {
+            super(NO_FILTER_VERTEX_SHADER, fragmentShader);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mInputSizeLocation = GLES20.glGetUniformLocation(getProgram(), "inputSize");
+        }
+
+        void setInputSize(final int width, final int height) {
+            mInputWidth = width;
+            mInputHeight = height;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            // Set with every draw, as the size changes between the passes.
+            GLES20.glUniform2f(mInputSizeLocation, mInputWidth, mInputHeight);
+        }
+    }
+
+    private static class HistogramPass extends GPUImageFilter {
+        private int mSampleLocation;
+        private int mRowCountLocation;
+
+        HistogramPass() {
+            super(HISTOGRAM_VERTEX_SHADER, HISTOGRAM_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mSampleLocation = GLES20.glGetAttribLocation(getProgram(), "sample");
+            mRowCountLocation = GLES20.glGetUniformLocation(getProgram(), "rowCount");
+        }
+
+        void drawPoints(final int textureId, final FloatBuffer samples, final int count,
+                        final int rows) {
+            setFloat(mRowCountLocation, rows);
+            GLES20.glUseProgram(getProgram());
+            runPendingOnDrawTasks();
+
+            samples.position(0);
+            GLES20.glVertexAttribPointer(mSampleLocation, 4, GLES20.GL_FLOAT, false, 0, samples);
+            GLES20.glEnableVertexAttribArray(mSampleLocation);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES20.glUniform1i(getUniformTexture(), 0);
+            GLES20.glDrawArrays(GLES20.GL_POINTS, 0, count);
+            GLES20.glDisableVertexAttribArray(mSampleLocation);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebuffer;
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebufferCache;
+import jp.co.cyberagent.android.gpuimage.GPUImageRenderer;
+
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+
+/**
+ * The Kuwahara filter of {@link GPUImageKuwaharaFilter}, computed from a
+ * summed-area table instead of sampling every texel of the four quadrants,
+ * so the cost per pixel does not depend on the radius. The table holds the
+ * running sums of the colors and of their squares, from which the mean and
+ * variance of any rectangle take four lookups.
+ * <br>
+ * The table is built with a few passes adding texels 1, 4, 16, ... apart,
+ * first along the rows and then along the columns, into 32-bit integer
+ * textures. Integer sums are exact, and since they wrap around, differences
+ * of them are still right for quadrants of up to {@link #MAX_EXTENT} pixels.
+ * This needs an OpenGL ES 3.0 context, framebuffers of 32-bit integer
+ * textures, and {@link #TABLE_BYTES_PER_PIXEL} bytes of GPU memory per pixel
+ * while drawing; see {@link #canDrawTable(long)}.
+ * <br>
+ * Quadrants are whole rectangles of pixels, spanning as many pixels as the
+ * samples of {@link GPUImageKuwaharaFilter} with the same radius are apart,
+ * and are cut off at the image edges.
+ */
+public class GPUImageSummedAreaTableKuwaharaFilter extends GPUImageFilter {
+    /** The largest quadrant extent in pixels the sums cannot overflow for. */
+    public static final int MAX_EXTENT = 146;
+    /** GPU memory taken by the two tables alive while one is summed into the other. */
+    public static final int TABLE_BYTES_PER_PIXEL = 32;
+
+    public static final String SUMMED_AREA_VERTEX_SHADER = "" +
+            "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "in vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "out vec2 textureCoordinate;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "}";
+
+    /** Writes the color in 0 to 255 and the sum of its squares. */
+    public static final String SQUARES_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "\n" +
+            "in vec2 textureCoordinate;\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "out uvec4 fragColor;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    uvec3 color = uvec3(texture(inputImageTexture, textureCoordinate).rgb * 255.0 + 0.5);\n" +
+            "    fragColor = uvec4(color, color.r * color.r + color.g * color.g + color.b * color.b);\n" +
+            "}";
+
+    /** Adds the three texels stride, 2 * stride and 3 * stride before. */
+    public static final String PREFIX_SUM_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "precision highp usampler2D;\n" +
+            "\n" +
+            "in vec2 textureCoordinate;\n" +
+            "uniform usampler2D inputImageTexture;\n" +
+            "uniform vec2 stride;\n" +
+            "\n" +
+            "out uvec4 fragColor;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    ivec2 size = textureSize(inputImageTexture, 0);\n" +
+            "    ivec2 texel = ivec2(textureCoordinate * vec2(size));\n" +
+            "    ivec2 offset = ivec2(stride);\n" +
+            "    uvec4 sum = texelFetch(inputImageTexture, texel, 0);\n" +
+            "    for (int i = 1; i < 4; i++) {\n" +
+            "        ivec2 previous = texel - offset * i;\n" +
+            "        if (previous.x >= 0 && previous.y >= 0) {\n" +
+            "            sum += texelFetch(inputImageTexture, previous, 0);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    fragColor = sum;\n" +
+            "}";
+
+    public static final String KUWAHARA_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "precision highp usampler2D;\n" +
+            "\n" +
+            "in vec2 textureCoordinate;\n" +
+            "uniform usampler2D inputImageTexture;\n" +
+            "uniform vec2 extent;\n" +
+            "\n" +
+            "out vec4 fragColor;\n" +
+            "\n" +
+            "uvec4 fetch(ivec2 texel)\n" +
+            "{\n" +
+            "    return texel.x < 0 || texel.y < 0 ? uvec4(0u)\n" +
+            "            : texelFetch(inputImageTexture, texel, 0);\n" +
+            "}\n" +
+            "\n" +
+            "float minSigma2 = 1e+2;\n" +
+            "vec3 result = vec3(0.0);\n" +
+            "\n" +
+            "void quadrant(ivec2 low, ivec2 high)\n" +
+            "{\n" +
+            "    uvec4 sum = fetch(high) - fetch(ivec2(low.x - 1, high.y))\n" +
+            "            - fetch(ivec2(high.x, low.y - 1)) + fetch(low - 1);\n" +
+            "    ivec2 size = high - low + 1;\n" +
+            "    float n = float(size.x * size.y);\n" +
+            "    vec3 m = vec3(sum.rgb) / (255.0 * n);\n" +
+            "    float sigma2 = abs(float(sum.a) / (65025.0 * n) - dot(m, m));\n" +
+            "    if (sigma2 < minSigma2) {\n" +
+            "        minSigma2 = sigma2;\n" +
+            "        result = m;\n" +
+            "    }\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    ivec2 size = textureSize(inputImageTexture, 0);\n" +
+            "    ivec2 texel = clamp(ivec2(textureCoordinate * vec2(size)), ivec2(0), size - 1);\n" +
+            "    ivec2 low = max(texel - ivec2(extent), ivec2(0));\n" +
+            "    ivec2 high = min(texel + ivec2(extent), size - 1);\n" +
+            "\n" +
+            "    quadrant(low, texel);\n" +
+            "    quadrant(ivec2(texel.x, low.y), ivec2(high.x, texel.y));\n" +
+            "    quadrant(texel, high);\n" +
+            "    quadrant(ivec2(low.x, texel.y), ivec2(texel.x, high.y));\n" +
+            "    fragColor = vec4(result, 1.0);\n" +
+            "}";
+
+    private final GPUImageFilter mSquaresPass =
+            new GPUImageFilter(SUMMED_AREA_VERTEX_SHADER, SQUARES_FRAGMENT_SHADER);
+    private final PrefixSumPass mPrefixSumPass = new PrefixSumPass();
+    private final FloatBuffer mCubeBuffer;
+    private final FloatBuffer mTextureBuffer;
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+
+    private int mRadius;
+    private int mExtentLocation;
+    /** Whether integer framebuffers are complete, null until checked. */
+    private Boolean mTableFramebufferComplete;
+
+    public GPUImageSummedAreaTableKuwaharaFilter() {
+        this(3);
+    }
+
+    public GPUImageSummedAreaTableKuwaharaFilter(int radius) {
+        super(SUMMED_AREA_VERTEX_SHADER, KUWAHARA_FRAGMENT_SHADER);
+        mRadius = radius;
+        mCubeBuffer = ByteBuffer.allocateDirect(GPUImageRenderer.CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(GPUImageRenderer.CUBE).position(0);
+        mTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mTextureBuffer.put(TEXTURE_NO_ROTATION).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mExtentLocation = GLES20.glGetUniformLocation(getProgram(), "extent");
+        mSquaresPass.init();
+        mPrefixSumPass.init();
+        mTableFramebufferComplete = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        mSquaresPass.destroy();
+        mPrefixSumPass.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // The extent is a fixed fraction of the image, not a number of pixels.
+        return -1;
+    }
+
+    /**
+     * The radius to sample from when creating the brush-stroke effect, with a default of 3.
+     * Unlike {@link GPUImageKuwaharaFilter#setRadius(int)}, larger radii cost no more.
+     *
+     * @param radius default 3
+     */
+    public void setRadius(final int radius) {
+        mRadius = radius;
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * Tells whether the table can be drawn at the current output size: the
+     * tables fit into the given budget and the context completes framebuffers
+     * of 32-bit integer textures. Has to be called on the GL thread after
+     * initializing; the framebuffer is checked once per context.
+     *
+     * @param maxBytes the GPU memory the tables may take
+     * @return false to draw with {@link GPUImageKuwaharaFilter} instead
+     */
+    public boolean canDrawTable(final long maxBytes) {
+        if (!isInitialized() || mOutputWidth <= 0 || mOutputHeight <= 0
+                || (long) mOutputWidth * mOutputHeight * TABLE_BYTES_PER_PIXEL > maxBytes) {
+            return false;
+        }
+        if (mTableFramebufferComplete == null) {
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+            GPUImageFramebuffer table = fetchTable();
+            table.bind();
+            mTableFramebufferComplete = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER)
+                    == GLES20.GL_FRAMEBUFFER_COMPLETE;
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+            table.unlock();
+        }
+        return mTableFramebufferComplete;
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (!isInitialized() || mOutputWidth <= 0 || mOutputHeight <= 0) {
+            return;
+        }
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+
+        GPUImageFramebuffer table = fetchTable();
+        table.bind();
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+        mSquaresPass.onDraw(textureId, mCubeBuffer, mTextureBuffer);
+        for (int stride = 1; stride < mOutputWidth; stride *= 4) {
+            table = addPrefixSums(table, stride, 0);
+        }
+        for (int stride = 1; stride < mOutputHeight; stride *= 4) {
+            table = addPrefixSums(table, 0, stride);
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2],
+                mSavedViewport[3]);
+        // The samples of GPUImageKuwaharaFilter are 1/768 and 1/1024 of the image apart.
+        setFloatVec2(mExtentLocation, new float[] {
+                Math.min(MAX_EXTENT, Math.round(mRadius * mOutputWidth / 768f)),
+                Math.min(MAX_EXTENT, Math.round(mRadius * mOutputHeight / 1024f))
+        });
+        super.onDraw(table.getTextureId(), cubeBuffer, textureBuffer);
+        table.unlock();
+    }
+
+    private GPUImageFramebuffer addPrefixSums(final GPUImageFramebuffer input, final int strideX,
+                                              final int strideY) {
+        GPUImageFramebuffer output = fetchTable();
+        output.bind();
+        mPrefixSumPass.setStride(strideX, strideY);
+        mPrefixSumPass.onDraw(input.getTextureId(), mCubeBuffer, mTextureBuffer);
+        input.unlock();
+        return output;
+    }
+
+    private GPUImageFramebuffer fetchTable() {
+        return GPUImageFramebufferCache.getInstance().fetchFramebuffer(mOutputWidth,
+                mOutputHeight, GLES30.GL_RGBA32UI, GLES30.GL_RGBA_INTEGER,
+                GLES20.GL_UNSIGNED_INT, GLES20.GL_NEAREST);
+    }
+
+    private static class PrefixSumPass extends GPUImageFilter {
+        private int mStrideLocation;
+
+        PrefixSumPass() {
+            super(SUMMED_AREA_VERTEX_SHADER, PREFIX_SUM_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mStrideLocation = GLES20.glGetUniformLocation(getProgram(), "stride");
+        }
+
+        void setStride(final int x, final int y) {
+            setFloatVec2(mStrideLocation, new float[] {
+                    x, y
+            });
+        }
+    }
+}
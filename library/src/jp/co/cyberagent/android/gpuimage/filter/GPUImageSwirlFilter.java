@@ -114,4 +114,10 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
         mCenter = center;
         setPoint(mCenterLocation, center);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The effect is placed relative to the whole image.
+        return -1;
+    }
 }
@@ -16,18 +16,33 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
-import android.graphics.Point;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import jp.co.cyberagent.android.gpuimage.GPUImageTextureCache;
 import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
 
+/**
+ * Maps the red, green and blue channels through curves given by control
+ * points, like the Curves dialog of Photoshop, whose .acv files can be
+ * loaded with {@link #setFromCurveFileInputStream(InputStream)}. Each curve
+ * is the natural cubic spline through its points; the composite curve is
+ * added to each channel's own.
+ * <br>
+ * Setting points computes the curve right away without allocating, and
+ * changes between two frames cost one texture update, so the points can
+ * follow a finger. Points set after the filter is initialized go to a
+ * texture of the filter's own, updated in place. Curves of .acv files, which
+ * are cached by content along with their curves, and curves set before
+ * initializing are shared through {@link GPUImageTextureCache}.
+ */
 public class GPUImageToneCurveFilter extends GPUImageFilter {
     public static final String TONE_CURVE_FRAGMENT_SHADER = "" +
             " varying highp vec2 textureCoordinate;\n" +
@@ -44,7 +59,24 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
             "     gl_FragColor = vec4(redCurveValue, greenCurveValue, blueCurveValue, textureColor.a);\n" +
             " }";
 
-    private int[] mToneCurveTexture = new int[]{OpenGlUtils.NO_TEXTURE};
+    // The curves in the order of .acv files.
+    private static final int RGB_COMPOSITE = 0;
+    private static final int RED = 1;
+    private static final int GREEN = 2;
+    private static final int BLUE = 3;
+
+    private static final int CURVE_FILE_CACHE_SIZE = 16;
+    private static final Map<Long, CurveFile> sCurveFiles =
+            new LinkedHashMap<Long, CurveFile>(CURVE_FILE_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, CurveFile> eldest) {
+                    return size() > CURVE_FILE_CACHE_SIZE;
+                }
+            };
+
+    private GPUImageTextureCache.Texture mToneCurveTexture;
+    private int mEditedToneCurveTexture = OpenGlUtils.NO_TEXTURE;
+    private int mToneCurveTextureId = OpenGlUtils.NO_TEXTURE;
     private int mToneCurveTextureUniformLocation;
 
     private PointF[] mRgbCompositeControlPoints;
@@ -52,11 +84,72 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
     private PointF[] mGreenControlPoints;
     private PointF[] mBlueControlPoints;
 
-    private ArrayList<Float> mRgbCompositeCurve;
-    private ArrayList<Float> mRedCurve;
-    private ArrayList<Float> mGreenCurve;
-    private ArrayList<Float> mBlueCurve;
-
+    // Guards the curves, which are set on the caller's thread and read on
+    // the GL thread.
+    private final Object mCurveLock = new Object();
+    private final ToneCurveSpline mSpline = new ToneCurveSpline();
+    private final float[][] mCurves = new float[4][ToneCurveSpline.LEVELS];
+    private final boolean[] mCurveValid = new boolean[4];
+    private final byte[] mToneCurveByteArray = new byte[ToneCurveSpline.LEVELS * 4];
+    private final ByteBuffer mToneCurveBuffer = ByteBuffer.allocateDirect(ToneCurveSpline.LEVELS * 4)
+            .order(ByteOrder.nativeOrder());
+    private boolean mToneCurveTexturePending;
+    private boolean mShareToneCurveTexture = true;
+    private final Runnable mUpdateToneCurveTexture = new Runnable() {
+        @Override
+        public void run() {
+            boolean valid;
+            boolean share;
+            synchronized (mCurveLock) {
+                mToneCurveTexturePending = false;
+                valid = fillToneCurve(mToneCurveByteArray);
+                share = mShareToneCurveTexture;
+            }
+            if (!valid) {
+                return;
+            }
+            GPUImageTextureCache cache = GPUImageTextureCache.getInstance();
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            if (share) {
+                // Filters with the same curves share one texture.
+                GPUImageTextureCache.Texture texture = cache.acquire(256 /*width*/, 1 /*height*/,
+                        mToneCurveByteArray);
+                if (mToneCurveTexture != null) {
+                    cache.release(mToneCurveTexture);
+                }
+                mToneCurveTexture = texture;
+                mToneCurveTextureId = texture.getId();
+                deleteEditedToneCurveTexture();
+            } else {
+                // Edited curves differ on every update; sharing them would
+                // leave a cached texture behind for each one.
+                mToneCurveBuffer.position(0);
+                mToneCurveBuffer.put(mToneCurveByteArray).position(0);
+                if (mEditedToneCurveTexture == OpenGlUtils.NO_TEXTURE) {
+                    int[] textures = new int[1];
+                    GLES20.glGenTextures(1, textures, 0);
+                    mEditedToneCurveTexture = textures[0];
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mEditedToneCurveTexture);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256, 1, 0,
+                            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mToneCurveBuffer);
+                } else {
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mEditedToneCurveTexture);
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 256, 1,
+                            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mToneCurveBuffer);
+                }
+                if (mToneCurveTexture != null) {
+                    cache.release(mToneCurveTexture);
+                    mToneCurveTexture = null;
+                }
+                mToneCurveTextureId = mEditedToneCurveTexture;
+            }
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+    };
 
     public GPUImageToneCurveFilter() {
         super(NO_FILTER_VERTEX_SHADER, TONE_CURVE_FRAGMENT_SHADER);
@@ -66,51 +159,134 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
         mRedControlPoints = defaultCurvePoints;
         mGreenControlPoints = defaultCurvePoints;
         mBlueControlPoints = defaultCurvePoints;
+        for (int i = 0; i < 4; i++) {
+            mCurveValid[i] = mSpline.evaluate(defaultCurvePoints, mCurves[i]);
+        }
     }
 
     @Override
     public void onInit() {
         super.onInit();
         mToneCurveTextureUniformLocation = GLES20.glGetUniformLocation(getProgram(), "toneCurveTexture");
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glGenTextures(1, mToneCurveTexture, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mToneCurveTexture != null) {
+            GPUImageTextureCache.getInstance().release(mToneCurveTexture);
+            mToneCurveTexture = null;
+        }
+        deleteEditedToneCurveTexture();
+        mToneCurveTextureId = OpenGlUtils.NO_TEXTURE;
+    }
+
+    private void deleteEditedToneCurveTexture() {
+        if (mEditedToneCurveTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{mEditedToneCurveTexture}, 0);
+            mEditedToneCurveTexture = OpenGlUtils.NO_TEXTURE;
+        }
     }
 
     @Override
     public void onInitialized() {
         super.onInitialized();
-        setRgbCompositeControlPoints(mRgbCompositeControlPoints);
-        setRedControlPoints(mRedControlPoints);
-        setGreenControlPoints(mGreenControlPoints);
-        setBlueControlPoints(mBlueControlPoints);
+        synchronized (mCurveLock) {
+            // An update queued before a destroy may never have run.
+            mToneCurveTexturePending = false;
+        }
+        updateToneCurveTexture();
     }
 
     @Override
     protected void onDrawArraysPre() {
-        if (mToneCurveTexture[0] != OpenGlUtils.NO_TEXTURE) {
+        if (mToneCurveTextureId != OpenGlUtils.NO_TEXTURE) {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTextureId);
             GLES20.glUniform1i(mToneCurveTextureUniformLocation, 3);
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         }
     }
 
+    /**
+     * Loads the curves of a Photoshop .acv file and closes the stream. A file
+     * loaded before, by any tone curve filter, is not parsed again and its
+     * curves are not computed again.
+     *
+     * @param input the .acv file
+     */
     public void setFromCurveFileInputStream(InputStream input) {
         try {
-            int version = readShort(input);
-            int totalCurves = readShort(input);
+            byte[] content = readFully(input);
+            input.close();
+
+            Long hash = hash(content);
+            CurveFile file;
+            synchronized (sCurveFiles) {
+                file = sCurveFiles.get(hash);
+            }
+            if (file == null || !Arrays.equals(file.content, content)) {
+                file = parseCurveFile(content);
+                synchronized (sCurveFiles) {
+                    sCurveFiles.put(hash, file);
+                }
+            }
+
+            mRgbCompositeControlPoints = file.points[RGB_COMPOSITE];
+            mRedControlPoints = file.points[RED];
+            mGreenControlPoints = file.points[GREEN];
+            mBlueControlPoints = file.points[BLUE];
+            synchronized (mCurveLock) {
+                mShareToneCurveTexture = true;
+                for (int i = 0; i < 4; i++) {
+                    System.arraycopy(file.curves[i], 0, mCurves[i], 0, ToneCurveSpline.LEVELS);
+                    mCurveValid[i] = file.valid[i];
+                }
+            }
+            updateToneCurveTexture();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static long hash(byte[] content) {
+        // 64 bit FNV-1a.
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : content) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static CurveFile parseCurveFile(byte[] content) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(content));
+        try {
+            int version = input.readShort();
+            int totalCurves = input.readShort();
+            if (totalCurves < 4) {
+                throw new IOException("Expected 4 curves, got " + totalCurves);
+            }
 
-            ArrayList<PointF[]> curves = new ArrayList<PointF[]>(totalCurves);
+            PointF[][] curves = new PointF[4][];
             float pointRate = 1.0f / 255;
 
-            for (int i = 0; i < totalCurves; i++) {
+            for (int i = 0; i < 4; i++) {
                 // 2 bytes, Count of points in the curve (short integer from 2...19)
-                short pointCount = readShort(input);
+                short pointCount = input.readShort();
+                if (pointCount < 0) {
+                    throw new IOException("Invalid point count " + pointCount);
+                }
 
                 PointF[] points = new PointF[pointCount];
 
@@ -119,250 +295,116 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
                 // the first number is the output value (vertical coordinate on the
                 // Curves dialog graph) and the second is the input value. All coordinates have range 0 to 255.
                 for (int j = 0; j < pointCount; j++) {
-                    short y = readShort(input);
-                    short x = readShort(input);
+                    short y = input.readShort();
+                    short x = input.readShort();
 
                     points[j] = new PointF(x * pointRate, y * pointRate);
                 }
 
-                curves.add(points);
+                curves[i] = points;
             }
-            input.close();
 
-            mRgbCompositeControlPoints = curves.get(0);
-            mRedControlPoints = curves.get(1);
-            mGreenControlPoints = curves.get(2);
-            mBlueControlPoints = curves.get(3);
-        } catch (IOException e) {
-            e.printStackTrace();
+            CurveFile file = new CurveFile(content, curves);
+            ToneCurveSpline spline = new ToneCurveSpline();
+            for (int i = 0; i < 4; i++) {
+                file.valid[i] = spline.evaluate(curves[i], file.curves[i]);
+            }
+            return file;
+        } catch (EOFException e) {
+            throw new IOException("Truncated curve file");
         }
     }
 
-    private short readShort(InputStream input) throws IOException {
-        return (short) (input.read() << 8 | input.read());
-    }
-
     public void setRgbCompositeControlPoints(PointF[] points) {
         mRgbCompositeControlPoints = points;
-        mRgbCompositeCurve = createSplineCurve(mRgbCompositeControlPoints);
-        updateToneCurveTexture();
+        setCurve(RGB_COMPOSITE, points);
     }
 
     public void setRedControlPoints(PointF[] points) {
         mRedControlPoints = points;
-        mRedCurve = createSplineCurve(mRedControlPoints);
-        updateToneCurveTexture();
+        setCurve(RED, points);
     }
 
     public void setGreenControlPoints(PointF[] points) {
         mGreenControlPoints = points;
-        mGreenCurve = createSplineCurve(mGreenControlPoints);
-        updateToneCurveTexture();
+        setCurve(GREEN, points);
     }
 
     public void setBlueControlPoints(PointF[] points) {
         mBlueControlPoints = points;
-        mBlueCurve = createSplineCurve(mBlueControlPoints);
-        updateToneCurveTexture();
+        setCurve(BLUE, points);
     }
 
-    private void updateToneCurveTexture() {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
-
-                if ((mRedCurve.size() >= 256) && (mGreenCurve.size() >= 256) && (mBlueCurve.size() >= 256) && (mRgbCompositeCurve.size() >= 256)) {
-                    byte[] toneCurveByteArray = new byte[256 * 4];
-                    for (int currentCurveIndex = 0; currentCurveIndex < 256; currentCurveIndex++) {
-                        // BGRA for upload to texture
-                        toneCurveByteArray[currentCurveIndex * 4 + 2] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mBlueCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 1] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mGreenCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mRedCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 3] = (byte) (255 & 0xff);
-                    }
-
-                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256 /*width*/, 1 /*height*/, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(toneCurveByteArray));
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-                }
-//        Buffer pixels!
-//        GLES20.glTexImage2D(int target,
-//            int level,
-//            int internalformat,
-//            int width,
-//            int height,
-//            int border,
-//            int format,
-//            int type,
-//            java.nio.Buffer pixels);
-            }
-        });
-    }
-
-    private ArrayList<Float> createSplineCurve(PointF[] points) {
-        if (points == null || points.length <= 0) {
-            return null;
-        }
-
-        // Sort the array
-        PointF[] pointsSorted = points.clone();
-        Arrays.sort(pointsSorted, new Comparator<PointF>() {
-            @Override
-            public int compare(PointF point1, PointF point2) {
-                if (point1.x < point2.x) {
-                    return -1;
-                } else if (point1.x > point2.x) {
-                    return 1;
-                } else {
-                    return 0;
-                }
-            }
-        });
-
-        // Convert from (0, 1) to (0, 255).
-        Point[] convertedPoints = new Point[pointsSorted.length];
-        for (int i = 0; i < points.length; i++) {
-            PointF point = pointsSorted[i];
-            convertedPoints[i] = new Point((int) (point.x * 255), (int) (point.y * 255));
+    private void setCurve(int curve, PointF[] points) {
+        synchronized (mCurveLock) {
+            mCurveValid[curve] = mSpline.evaluate(points, mCurves[curve]);
+            // Curves set up front are likely used as they are; once shown
+            // they are likely being edited.
+            mShareToneCurveTexture = !isInitialized();
         }
-
-        ArrayList<Point> splinePoints = createSplineCurve2(convertedPoints);
-
-        // If we have a first point like (0.3, 0) we'll be missing some points at the beginning
-        // that should be 0.
-        Point firstSplinePoint = splinePoints.get(0);
-        if (firstSplinePoint.x > 0) {
-            for (int i = firstSplinePoint.x; i >= 0; i--) {
-                splinePoints.add(0, new Point(i, 0));
-            }
-        }
-
-        // Insert points similarly at the end, if necessary.
-        Point lastSplinePoint = splinePoints.get(splinePoints.size() - 1);
-        if (lastSplinePoint.x < 255) {
-            for (int i = lastSplinePoint.x + 1; i <= 255; i++) {
-                splinePoints.add(new Point(i, 255));
-            }
-        }
-
-        // Prepare the spline points.
-        ArrayList<Float> preparedSplinePoints = new ArrayList<Float>(splinePoints.size());
-        for (Point newPoint : splinePoints) {
-            Point origPoint = new Point(newPoint.x, newPoint.x);
-
-            float distance = (float) Math.sqrt(Math.pow((origPoint.x - newPoint.x), 2.0) + Math.pow((origPoint.y - newPoint.y), 2.0));
-
-            if (origPoint.y > newPoint.y) {
-                distance = -distance;
-            }
-
-            preparedSplinePoints.add(distance);
-        }
-
-        return preparedSplinePoints;
+        updateToneCurveTexture();
     }
 
-    private ArrayList<Point> createSplineCurve2(Point[] points) {
-        ArrayList<Double> sdA = createSecondDerivative(points);
-
-        // Is [points count] equal to [sdA count]?
-//    int n = [points count];
-        int n = sdA.size();
-        if (n < 1) {
-            return null;
-        }
-        double sd[] = new double[n];
-
-        // From NSMutableArray to sd[n];
-        for (int i = 0; i < n; i++) {
-            sd[i] = sdA.get(i);
-        }
-
-
-        ArrayList<Point> output = new ArrayList<Point>(n + 1);
-
-        for (int i = 0; i < n - 1; i++) {
-            Point cur = points[i];
-            Point next = points[i + 1];
-
-            for (int x = cur.x; x < next.x; x++) {
-                double t = (double) (x - cur.x) / (next.x - cur.x);
-
-                double a = 1 - t;
-                double b = t;
-                double h = next.x - cur.x;
-
-                double y = a * cur.y + b * next.y + (h * h / 6) * ((a * a * a - a) * sd[i] + (b * b * b - b) * sd[i + 1]);
-
-                if (y > 255.0) {
-                    y = 255.0;
-                } else if (y < 0.0) {
-                    y = 0.0;
-                }
-
-                output.add(new Point(x, (int) Math.round(y)));
+    private void updateToneCurveTexture() {
+        synchronized (mCurveLock) {
+            // Points set several times between two frames need one upload.
+            if (mToneCurveTexturePending) {
+                return;
             }
+            mToneCurveTexturePending = true;
         }
+        runOnDraw(mUpdateToneCurveTexture);
+    }
 
-        // If the last point is (255, 255) it doesn't get added.
-        if (output.size() == 255) {
-            output.add(points[points.length - 1]);
+    /**
+     * Gets the curves as uploaded to the tone curve texture: for each of the 256 input values the
+     * red, green and blue outputs with the composite curve added, and 255.
+     *
+     * @return 256 RGBA entries, or null if a curve has no control points
+     */
+    public byte[] getToneCurve() {
+        byte[] toneCurve = new byte[ToneCurveSpline.LEVELS * 4];
+        synchronized (mCurveLock) {
+            return fillToneCurve(toneCurve) ? toneCurve : null;
         }
-        return output;
     }
 
-    private ArrayList<Double> createSecondDerivative(Point[] points) {
-        int n = points.length;
-        if (n <= 1) {
-            return null;
+    private boolean fillToneCurve(byte[] toneCurveByteArray) {
+        if (!mCurveValid[RGB_COMPOSITE] || !mCurveValid[RED] || !mCurveValid[GREEN]
+                || !mCurveValid[BLUE]) {
+            return false;
         }
-
-        double matrix[][] = new double[n][3];
-        double result[] = new double[n];
-        matrix[0][1] = 1;
-        // What about matrix[0][1] and matrix[0][0]? Assuming 0 for now (Brad L.)
-        matrix[0][0] = 0;
-        matrix[0][2] = 0;
-
-        for (int i = 1; i < n - 1; i++) {
-            Point P1 = points[i - 1];
-            Point P2 = points[i];
-            Point P3 = points[i + 1];
-
-            matrix[i][0] = (double) (P2.x - P1.x) / 6;
-            matrix[i][1] = (double) (P3.x - P1.x) / 3;
-            matrix[i][2] = (double) (P3.x - P2.x) / 6;
-            result[i] = (double) (P3.y - P2.y) / (P3.x - P2.x) - (double) (P2.y - P1.y) / (P2.x - P1.x);
+        float[] rgbCompositeCurve = mCurves[RGB_COMPOSITE];
+        float[] redCurve = mCurves[RED];
+        float[] greenCurve = mCurves[GREEN];
+        float[] blueCurve = mCurves[BLUE];
+        for (int currentCurveIndex = 0; currentCurveIndex < 256; currentCurveIndex++) {
+            // BGRA for upload to texture
+            toneCurveByteArray[currentCurveIndex * 4 + 2] = (byte) ((int) Math.min(Math.max(currentCurveIndex + blueCurve[currentCurveIndex] + rgbCompositeCurve[currentCurveIndex], 0), 255) & 0xff);
+            toneCurveByteArray[currentCurveIndex * 4 + 1] = (byte) ((int) Math.min(Math.max(currentCurveIndex + greenCurve[currentCurveIndex] + rgbCompositeCurve[currentCurveIndex], 0), 255) & 0xff);
+            toneCurveByteArray[currentCurveIndex * 4] = (byte) ((int) Math.min(Math.max(currentCurveIndex + redCurve[currentCurveIndex] + rgbCompositeCurve[currentCurveIndex], 0), 255) & 0xff);
+            toneCurveByteArray[currentCurveIndex * 4 + 3] = (byte) (255 & 0xff);
         }
+        return true;
+    }
 
-        // What about result[0] and result[n-1]? Assuming 0 for now (Brad L.)
-        result[0] = 0;
-        result[n - 1] = 0;
-
-        matrix[n - 1][1] = 1;
-        // What about matrix[n-1][0] and matrix[n-1][2]? For now, assuming they are 0 (Brad L.)
-        matrix[n - 1][0] = 0;
-        matrix[n - 1][2] = 0;
-
-        // solving pass1 (up->down)
-        for (int i = 1; i < n; i++) {
-            double k = matrix[i][0] / matrix[i - 1][1];
-            matrix[i][1] -= k * matrix[i - 1][2];
-            matrix[i][0] = 0;
-            result[i] -= k * result[i - 1];
-        }
-        // solving pass2 (down->up)
-        for (int i = n - 2; i >= 0; i--) {
-            double k = matrix[i][2] / matrix[i + 1][1];
-            matrix[i][1] -= k * matrix[i + 1][0];
-            matrix[i][2] = 0;
-            result[i] -= k * result[i + 1];
+    /**
+     * A parsed .acv file with its computed curves.
+     */
+    private static class CurveFile {
+        final byte[] content;
+        final PointF[][] points;
+        final float[][] curves = new float[4][ToneCurveSpline.LEVELS];
+        final boolean[] valid = new boolean[4];
+
+        CurveFile(byte[] content, PointF[][] points) {
+            this.content = content;
+            this.points = points;
         }
+    }
 
-        ArrayList<Double> output = new ArrayList<Double>(n);
-        for (int i = 0; i < n; i++) output.add(result[i] / matrix[i][1]);
-
-        return output;
+    @Override
+    public boolean isColorMapping() {
+        return true;
     }
 }
@@ -20,6 +20,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
+import jp.co.cyberagent.android.gpuimage.GPUImageTextureCache;
 import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
 import jp.co.cyberagent.android.gpuimage.Rotation;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
@@ -46,6 +47,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public int mFilterSecondTextureCoordinateAttribute;
     public int mFilterInputTextureUniform2;
     public int mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+    private GPUImageTextureCache.Texture mTexture2;
     private ByteBuffer mTexture2CoordinatesBuffer;
     private Bitmap mBitmap;
 
@@ -81,15 +83,20 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         }
         runOnDraw(new Runnable() {
             public void run() {
-                if (mFilterSourceTexture2 == OpenGlUtils.NO_TEXTURE) {
-                    if (bitmap == null || bitmap.isRecycled()) {
-                        return;
-                    }
-
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-                    mFilterSourceTexture2 = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                if (bitmap == null || bitmap.isRecycled()) {
+                    return;
                 }
+
+                // Filters using the same image share one texture.
+                GPUImageTextureCache cache = GPUImageTextureCache.getInstance();
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+                GPUImageTextureCache.Texture texture = cache.acquire(bitmap);
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                if (mTexture2 != null) {
+                    cache.release(mTexture2);
+                }
+                mTexture2 = texture;
+                mFilterSourceTexture2 = texture.getId();
             }
         });
     }
@@ -107,9 +114,10 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
     public void onDestroy() {
         super.onDestroy();
-        GLES20.glDeleteTextures(1, new int[]{
-                mFilterSourceTexture2
-        }, 0);
+        if (mTexture2 != null) {
+            GPUImageTextureCache.getInstance().release(mTexture2);
+            mTexture2 = null;
+        }
         mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
     }
 
@@ -127,7 +135,8 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     }
 
     public void setRotation(final Rotation rotation, final boolean flipHorizontal, final boolean flipVertical) {
-        float[] buffer = TextureRotationUtil.getRotation(rotation, flipHorizontal, flipVertical);
+        // The second texture holds the bitmap's top row at t = 0.
+        float[] buffer = TextureRotationUtil.getRotation(rotation, flipHorizontal, !flipVertical);
 
         ByteBuffer bBuffer = ByteBuffer.allocateDirect(buffer.length*4).order(ByteOrder.nativeOrder());
         FloatBuffer fBuffer = bBuffer.asFloatBuffer();
@@ -136,4 +145,10 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
         mTexture2CoordinatesBuffer = bBuffer;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The second image is stretched over the whole first one.
+        return -1;
+    }
 }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.opengl.GLES20;
+
+/**
+ * Holds the latest value of every uniform a filter has set, keyed by uniform
+ * location. Setting a value only copies it into primitive arrays and marks
+ * the uniform dirty; {@link #flush()} uploads each dirty uniform once on the
+ * GL thread. Once a location has been seen, neither side allocates.
+ */
+class GPUImageUniformStore {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int mSize;
+    private int mDirtyCount;
+    private int[] mLocations = new int[INITIAL_CAPACITY];
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    private int[] mCapacities = new int[INITIAL_CAPACITY];
+    private int[] mIntValues = new int[INITIAL_CAPACITY];
+    private boolean[] mDirty = new boolean[INITIAL_CAPACITY];
+    private float[] mFloatValues = new float[INITIAL_CAPACITY * 4];
+    private int mFloatValuesUsed;
+
+    public synchronized void setInt(final int location, final int value) {
+        if (location == -1) {
+            return;
+        }
+        int slot = obtainSlot(location, GLES20.GL_INT, 0);
+        mCounts[slot] = 1;
+        mIntValues[slot] = value;
+        markDirty(slot);
+    }
+
+    public synchronized void setFloat(final int location, final float value) {
+        if (location == -1) {
+            return;
+        }
+        int slot = obtainSlot(location, GLES20.GL_FLOAT, 1);
+        mCounts[slot] = 1;
+        mFloatValues[mOffsets[slot]] = value;
+        markDirty(slot);
+    }
+
+    public synchronized void setFloatVec2(final int location, final float x, final float y) {
+        if (location == -1) {
+            return;
+        }
+        int slot = obtainSlot(location, GLES20.GL_FLOAT_VEC2, 2);
+        mCounts[slot] = 1;
+        mFloatValues[mOffsets[slot]] = x;
+        mFloatValues[mOffsets[slot] + 1] = y;
+        markDirty(slot);
+    }
+
+    /**
+     * Stores {@code count} elements of the given uniform type.
+     *
+     * @param location the uniform location
+     * @param type one of GL_FLOAT, GL_FLOAT_VEC2..4, GL_FLOAT_MAT3 and GL_FLOAT_MAT4
+     * @param values the values, at least count times the type's components long
+     * @param count the number of elements
+     */
+    public synchronized void setFloats(final int location, final int type, final float[] values,
+                                       final int count) {
+        if (location == -1) {
+            return;
+        }
+        int length = getComponentCount(type) * count;
+        int slot = obtainSlot(location, type, length);
+        mCounts[slot] = count;
+        System.arraycopy(values, 0, mFloatValues, mOffsets[slot], length);
+        markDirty(slot);
+    }
+
+    public synchronized boolean isDirty() {
+        return mDirtyCount > 0;
+    }
+
+    /**
+     * Uploads all dirty uniforms to the program currently in use.
+     */
+    public synchronized void flush() {
+        if (mDirtyCount == 0) {
+            return;
+        }
+        for (int slot = 0; slot < mSize; slot++) {
+            if (!mDirty[slot]) {
+                continue;
+            }
+            mDirty[slot] = false;
+            int location = mLocations[slot];
+            int count = mCounts[slot];
+            int offset = mOffsets[slot];
+            switch (mTypes[slot]) {
+                case GLES20.GL_INT:
+                    GLES20.glUniform1i(location, mIntValues[slot]);
+                    break;
+                case GLES20.GL_FLOAT:
+                    GLES20.glUniform1fv(location, count, mFloatValues, offset);
+                    break;
+                case GLES20.GL_FLOAT_VEC2:
+                    GLES20.glUniform2fv(location, count, mFloatValues, offset);
+                    break;
+                case GLES20.GL_FLOAT_VEC3:
+                    GLES20.glUniform3fv(location, count, mFloatValues, offset);
+                    break;
+                case GLES20.GL_FLOAT_VEC4:
+                    GLES20.glUniform4fv(location, count, mFloatValues, offset);
+                    break;
+                case GLES20.GL_FLOAT_MAT3:
+                    GLES20.glUniformMatrix3fv(location, count, false, mFloatValues, offset);
+                    break;
+                case GLES20.GL_FLOAT_MAT4:
+                    GLES20.glUniformMatrix4fv(location, count, false, mFloatValues, offset);
+                    break;
+                default:
+                    break;
+            }
+        }
+        mDirtyCount = 0;
+    }
+
+    /**
+     * Marks all uniforms dirty, for when the program was changed by someone
+     * else.
+     */
+    public synchronized void invalidate() {
+        for (int slot = 0; slot < mSize; slot++) {
+            mDirty[slot] = true;
+        }
+        mDirtyCount = mSize;
+    }
+
+    /**
+     * Forgets all uniforms, for when the program they belong to is deleted.
+     */
+    public synchronized void clear() {
+        mSize = 0;
+        mDirtyCount = 0;
+        mFloatValuesUsed = 0;
+    }
+
+    private static int getComponentCount(final int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT_VEC2:
+                return 2;
+            case GLES20.GL_FLOAT_VEC3:
+                return 3;
+            case GLES20.GL_FLOAT_VEC4:
+                return 4;
+            case GLES20.GL_FLOAT_MAT3:
+                return 9;
+            case GLES20.GL_FLOAT_MAT4:
+                return 16;
+            default:
+                return 1;
+        }
+    }
+
+    private void markDirty(final int slot) {
+        if (!mDirty[slot]) {
+            mDirty[slot] = true;
+            mDirtyCount++;
+        }
+    }
+
+    /**
+     * Finds the slot of a location, creating it or growing its float storage
+     * when needed.
+     */
+    private int obtainSlot(final int location, final int type, final int floatCount) {
+        int slot = 0;
+        while (slot < mSize && mLocations[slot] != location) {
+            slot++;
+        }
+        if (slot == mSize) {
+            if (mSize == mLocations.length) {
+                growSlots();
+            }
+            mSize++;
+            mLocations[slot] = location;
+            mDirty[slot] = false;
+            mCapacities[slot] = 0;
+        }
+        mTypes[slot] = type;
+        if (mCapacities[slot] < floatCount) {
+            if (mFloatValuesUsed + floatCount > mFloatValues.length) {
+                float[] values = new float[Math.max(mFloatValues.length * 2,
+                        mFloatValuesUsed + floatCount)];
+                System.arraycopy(mFloatValues, 0, values, 0, mFloatValuesUsed);
+                mFloatValues = values;
+            }
+            mOffsets[slot] = mFloatValuesUsed;
+            mCapacities[slot] = floatCount;
+            mFloatValuesUsed += floatCount;
+        }
+        return slot;
+    }
+
+    private void growSlots() {
+        int capacity = mLocations.length * 2;
+        mLocations = copyOf(mLocations, capacity);
+        mTypes = copyOf(mTypes, capacity);
+        mCounts = copyOf(mCounts, capacity);
+        mOffsets = copyOf(mOffsets, capacity);
+        mCapacities = copyOf(mCapacities, capacity);
+        mIntValues = copyOf(mIntValues, capacity);
+        boolean[] dirty = new boolean[capacity];
+        System.arraycopy(mDirty, 0, dirty, 0, mSize);
+        mDirty = dirty;
+    }
+
+    private static int[] copyOf(final int[] array, final int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -88,4 +88,9 @@ public class GPUImageWhiteBalanceFilter extends GPUImageFilter {
         mTint = tint;
         setFloat(mTintLocation, (float)(mTint/100.0));
     }
+
+    @Override
+    public boolean isColorMapping() {
+        return true;
+    }
 }
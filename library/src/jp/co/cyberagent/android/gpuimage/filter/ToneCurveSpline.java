@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.graphics.PointF;
+
+/**
+ * The natural cubic spline through the control points of a tone curve,
+ * sampled at the 256 input levels. Works in arrays kept between calls, so
+ * dragging a control point allocates nothing once the arrays have grown to
+ * the number of points.
+ * <br>
+ * The results match the original list based implementation exactly,
+ * including its quirks: control points are truncated to whole levels, and a
+ * curve starting after 0 repeats its first level, which shifts the rest of
+ * the curve by one.
+ */
+class ToneCurveSpline {
+    static final int LEVELS = 256;
+
+    private float[] mKeys = new float[0];
+    private int[] mX = new int[0];
+    private int[] mY = new int[0];
+    private double[] mLower = new double[0];
+    private double[] mDiagonal = new double[0];
+    private double[] mUpper = new double[0];
+    private double[] mResult = new double[0];
+    private int mCount;
+
+    /**
+     * Samples the spline through the points.
+     *
+     * @param points the control points in 0 to 1, in any order
+     * @param curve receives for each of the 256 levels the offset of the
+     *              output level from the input level
+     * @return false if there are fewer than two distinct levels, leaving the
+     *         curve undefined
+     */
+    boolean evaluate(final PointF[] points, final float[] curve) {
+        if (points == null || points.length < 2) {
+            return false;
+        }
+        int n = points.length;
+        ensureCapacity(n);
+        float[] keys = mKeys;
+        int[] xs = mX;
+        int[] ys = mY;
+
+        // Insertion sort by x, stable like Arrays.sort on objects.
+        for (int i = 0; i < n; i++) {
+            PointF point = points[i];
+            int j = i;
+            while (j > 0 && keys[j - 1] > point.x) {
+                keys[j] = keys[j - 1];
+                xs[j] = xs[j - 1];
+                ys[j] = ys[j - 1];
+                j--;
+            }
+            keys[j] = point.x;
+            // Convert from (0, 1) to (0, 255).
+            xs[j] = (int) (point.x * 255);
+            ys[j] = (int) (point.y * 255);
+        }
+
+        int first = 0;
+        while (first < n - 1 && xs[first] >= xs[first + 1]) {
+            first++;
+        }
+        if (first == n - 1) {
+            return false;
+        }
+
+        double[] sd = solveSecondDerivatives(n);
+
+        // Levels before the first point are 0, those after the last one 255.
+        mCount = 0;
+        if (xs[first] > 0) {
+            for (int x = 0; x <= xs[first]; x++) {
+                add(curve, x, 0);
+            }
+        }
+        int sampled = 0;
+        int lastX = 0;
+        for (int i = 0; i < n - 1; i++) {
+            int curX = xs[i];
+            int curY = ys[i];
+            int nextX = xs[i + 1];
+            int nextY = ys[i + 1];
+            for (int x = curX; x < nextX; x++) {
+                double t = (double) (x - curX) / (nextX - curX);
+
+                double a = 1 - t;
+                double b = t;
+                double h = nextX - curX;
+
+                double y = a * curY + b * nextY
+                        + (h * h / 6) * ((a * a * a - a) * sd[i] + (b * b * b - b) * sd[i + 1]);
+
+                if (y > 255.0) {
+                    y = 255.0;
+                } else if (y < 0.0) {
+                    y = 0.0;
+                }
+
+                add(curve, x, (int) Math.round(y));
+                sampled++;
+                lastX = x;
+            }
+        }
+        // The segments stop short of the last point, which is only added
+        // when it completes 255 samples.
+        if (sampled == 255) {
+            add(curve, xs[n - 1], ys[n - 1]);
+            lastX = xs[n - 1];
+        }
+        if (lastX < 255) {
+            for (int x = lastX + 1; x <= 255; x++) {
+                add(curve, x, 255);
+            }
+        }
+        return mCount >= LEVELS;
+    }
+
+    private void add(final float[] curve, final int x, final int y) {
+        if (mCount < LEVELS) {
+            curve[mCount] = y - x;
+        }
+        mCount++;
+    }
+
+    /**
+     * Solves the tridiagonal system of the natural spline, whose second
+     * derivative is 0 at both ends.
+     */
+    private double[] solveSecondDerivatives(final int n) {
+        int[] xs = mX;
+        int[] ys = mY;
+        double[] lower = mLower;
+        double[] diagonal = mDiagonal;
+        double[] upper = mUpper;
+        double[] result = mResult;
+
+        lower[0] = 0;
+        diagonal[0] = 1;
+        upper[0] = 0;
+        result[0] = 0;
+        for (int i = 1; i < n - 1; i++) {
+            lower[i] = (double) (xs[i] - xs[i - 1]) / 6;
+            diagonal[i] = (double) (xs[i + 1] - xs[i - 1]) / 3;
+            upper[i] = (double) (xs[i + 1] - xs[i]) / 6;
+            result[i] = (double) (ys[i + 1] - ys[i]) / (xs[i + 1] - xs[i])
+                    - (double) (ys[i] - ys[i - 1]) / (xs[i] - xs[i - 1]);
+        }
+        lower[n - 1] = 0;
+        diagonal[n - 1] = 1;
+        upper[n - 1] = 0;
+        result[n - 1] = 0;
+
+        // Eliminate below the diagonal, top down.
+        for (int i = 1; i < n; i++) {
+            double k = lower[i] / diagonal[i - 1];
+            diagonal[i] -= k * upper[i - 1];
+            lower[i] = 0;
+            result[i] -= k * result[i - 1];
+        }
+        // Eliminate above the diagonal, bottom up.
+        for (int i = n - 2; i >= 0; i--) {
+            double k = upper[i] / diagonal[i + 1];
+            diagonal[i] -= k * lower[i + 1];
+            upper[i] = 0;
+            result[i] -= k * result[i + 1];
+        }
+
+        for (int i = 0; i < n; i++) {
+            result[i] /= diagonal[i];
+        }
+        return result;
+    }
+
+    private void ensureCapacity(final int n) {
+        if (mX.length >= n) {
+            return;
+        }
+        mKeys = new float[n];
+        mX = new int[n];
+        mY = new int[n];
+        mLower = new double[n];
+        mDiagonal = new double[n];
+        mUpper = new double[n];
+        mResult = new double[n];
+    }
+}
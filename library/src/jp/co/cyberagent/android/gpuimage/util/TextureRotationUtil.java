@@ -18,6 +18,8 @@ package jp.co.cyberagent.android.gpuimage.util;
 
 import jp.co.cyberagent.android.gpuimage.Rotation;
 
+import java.nio.FloatBuffer;
+
 public class TextureRotationUtil {
 
 
@@ -114,6 +116,24 @@ public class TextureRotationUtil {
         return rotatedTex;
     }
 
+    /**
+     * Copies 2D vertex positions with the y axis mirrored, so the quad ends
+     * up upside down in the framebuffer. Used to draw the final pass in the
+     * row order glReadPixels returns.
+     *
+     * @param cube the positions to mirror
+     * @param flipped receives the mirrored positions, same size as cube
+     * @return flipped, rewound
+     */
+    public static FloatBuffer flipVertically(final FloatBuffer cube, final FloatBuffer flipped) {
+        int count = Math.min(cube.capacity(), flipped.capacity());
+        for (int i = 0; i < count; i++) {
+            float value = cube.get(i);
+            flipped.put(i, i % 2 == 1 ? -value : value);
+        }
+        flipped.position(0);
+        return flipped;
+    }
 
     private static float flip(final float i) {
         if (i == 0.0f) {
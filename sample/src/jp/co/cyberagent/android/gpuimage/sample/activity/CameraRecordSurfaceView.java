@@ -32,7 +32,12 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebuffer;
+import jp.co.cyberagent.android.gpuimage.GPUImageFramebufferCache;
+import jp.co.cyberagent.android.gpuimage.GPUImageProgramBinaryCache;
+import jp.co.cyberagent.android.gpuimage.GPUImageProgramCache;
 import jp.co.cyberagent.android.gpuimage.GPUImageRenderer;
+import jp.co.cyberagent.android.gpuimage.GPUImageTextureCache;
 import jp.co.cyberagent.android.gpuimage.Rotation;
 import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
 import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilterGroup;
@@ -63,6 +68,8 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
 
         getHolder().addCallback(this);
         mCamera = new CameraLoader();
+        // Skip shader compilation on later starts where the driver allows it.
+        GPUImageProgramCache.getInstance().setBinaryCache(new GPUImageProgramBinaryCache(context));
     }
 
     public void setFpsUpdateListener(FPSUpdateListener fpsUpdateListener) {
@@ -353,9 +360,7 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
         private boolean mPreviousWasDropped;
 
         // Used for off-screen rendering.
-        private int mOffscreenTexture;
-        private int mFramebuffer;
-        private int mDepthBuffer;
+        private GPUImageFramebuffer mFramebuffer;
         private FullFrameRect mFullScreen;
 
         // Used for recording.
@@ -492,64 +497,21 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
         }
 
         /**
-         * Prepares the off-screen framebuffer.
+         * Prepares the off-screen framebuffer.  It comes from the shared framebuffer
+         * cache, so the one used for the previous size is handed back first.  No depth
+         * buffer is attached as GPUImage draws with the depth test disabled.
          */
         private void prepareFramebuffer(int width, int height) {
             GlUtil.checkGlError("prepareFramebuffer start");
 
-            int[] values = new int[1];
-
-            // Create a texture object and bind it.  This will be the color buffer.
-            GLES20.glGenTextures(1, values, 0);
-            GlUtil.checkGlError("glGenTextures");
-            mOffscreenTexture = values[0];   // expected > 0
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOffscreenTexture);
-            GlUtil.checkGlError("glBindTexture " + mOffscreenTexture);
-
-            // Create texture storage.
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-
-            // Set parameters.  We're probably using non-power-of-two dimensions, so
-            // some values may not be available for use.
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
-                    GLES20.GL_NEAREST);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
-                    GLES20.GL_LINEAR);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
-                    GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
-                    GLES20.GL_CLAMP_TO_EDGE);
-            GlUtil.checkGlError("glTexParameter");
-
-            // Create framebuffer object and bind it.
-            GLES20.glGenFramebuffers(1, values, 0);
-            GlUtil.checkGlError("glGenFramebuffers");
-            mFramebuffer = values[0];    // expected > 0
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
-            GlUtil.checkGlError("glBindFramebuffer " + mFramebuffer);
-
-            // Create a depth buffer and bind it.
-            GLES20.glGenRenderbuffers(1, values, 0);
-            GlUtil.checkGlError("glGenRenderbuffers");
-            mDepthBuffer = values[0];    // expected > 0
-            GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mDepthBuffer);
-            GlUtil.checkGlError("glBindRenderbuffer " + mDepthBuffer);
-
-            // Allocate storage for the depth buffer.
-            GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
-                    width, height);
-            GlUtil.checkGlError("glRenderbufferStorage");
-
-            // Attach the depth buffer and the texture (color buffer) to the framebuffer object.
-            GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                    GLES20.GL_RENDERBUFFER, mDepthBuffer);
-            GlUtil.checkGlError("glFramebufferRenderbuffer");
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                    GLES20.GL_TEXTURE_2D, mOffscreenTexture, 0);
-            GlUtil.checkGlError("glFramebufferTexture2D");
+            if (mFramebuffer != null) {
+                mFramebuffer.unlock();
+            }
+            mFramebuffer = GPUImageFramebufferCache.getInstance().fetchFramebuffer(width, height,
+                    GLES20.GL_RGBA, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, GLES20.GL_LINEAR);
 
             // See if GLES is happy with all this.
+            mFramebuffer.bind();
             int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
             if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
                 throw new RuntimeException("Framebuffer not complete, status=" + status);
@@ -600,8 +562,6 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
         private void releaseGl() {
             GlUtil.checkGlError("releaseGl start");
 
-            int[] values = new int[1];
-
             if (mWindowSurface != null) {
                 mWindowSurface.release();
                 mWindowSurface = null;
@@ -610,21 +570,15 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
                 gpuImageRenderer.deleteImage();
                 gpuImageRenderer = null;
             }
-            if (mOffscreenTexture > 0) {
-                values[0] = mOffscreenTexture;
-                GLES20.glDeleteTextures(1, values, 0);
-                mOffscreenTexture = -1;
-            }
-            if (mFramebuffer > 0) {
-                values[0] = mFramebuffer;
-                GLES20.glDeleteFramebuffers(1, values, 0);
-                mFramebuffer = -1;
-            }
-            if (mDepthBuffer > 0) {
-                values[0] = mDepthBuffer;
-                GLES20.glDeleteRenderbuffers(1, values, 0);
-                mDepthBuffer = -1;
+            if (mFramebuffer != null) {
+                mFramebuffer.unlock();
+                mFramebuffer = null;
             }
+            // Forget this context in the caches, so their byte counts and
+            // idle lists do not keep objects of a dead context.
+            GPUImageFramebufferCache.getInstance().releaseCurrentContext();
+            GPUImageProgramCache.getInstance().releaseCurrentContext();
+            GPUImageTextureCache.getInstance().releaseCurrentContext();
             if (mFullScreen != null) {
                 mFullScreen.release(false); // TODO: should be "true"; must ensure mEglCore current
                 mFullScreen = null;
@@ -804,14 +758,14 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
 
                     //Log.d(TAG, "MODE: offscreen + blit 2x");
                     // Render offscreen.
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+                    mFramebuffer.bind();
                     GlUtil.checkGlError("glBindFramebuffer");
                     draw();
 
                     // Blit to display.
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
                     GlUtil.checkGlError("glBindFramebuffer");
-                    mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
+                    mFullScreen.drawFrame(mFramebuffer.getTextureId(), mIdentityMatrix);
                     swapResult = mWindowSurface.swapBuffers();
 
                     // Blit to encoder.
@@ -821,7 +775,7 @@ public class CameraRecordSurfaceView extends SurfaceView implements SurfaceHolde
                     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);     //  clear pixels outside rect
                     GLES20.glViewport(mVideoRect.left, mVideoRect.top,
                             mVideoRect.width(), mVideoRect.height());
-                    mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
+                    mFullScreen.drawFrame(mFramebuffer.getTextureId(), mIdentityMatrix);
                     mInputWindowSurface.setPresentationTime(timeStampNanos);
                     mInputWindowSurface.swapBuffers();
 
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.opengl.GLES20;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageRenderer;
+import jp.co.cyberagent.android.gpuimage.PixelBuffer;
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+
+/**
+ * Times {@link PixelBuffer#getBitmap(Bitmap)} against the readback it
+ * replaced, which read into an int array, flipped the rows on the CPU and
+ * created a new bitmap for every frame. Results are logged under the tag
+ * of this class.
+ */
+public class PixelBufferReadbackBenchmark extends AndroidTestCase {
+    private static final String TAG = PixelBufferReadbackBenchmark.class.getSimpleName();
+
+    /** 1, 8 and 12 MP at 4:3. */
+    private static final int[][] SIZES = {{1152, 864}, {3264, 2448}, {4000, 3000}};
+    private static final int WARM_UP = 2;
+    private static final int ITERATIONS = 10;
+
+    public void testReadback() {
+        for (int[] size : SIZES) {
+            benchmark(size[0], size[1]);
+        }
+    }
+
+    private void benchmark(final int width, final int height) {
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        int maxSize = buffer.getMaxSurfaceSize();
+        if (maxSize > 0 && Math.max(width, height) > maxSize) {
+            Log.i(TAG, width + "x" + height + ": skipped, pbuffers are limited to " + maxSize);
+            buffer.destroy();
+            return;
+        }
+        GPUImageRenderer renderer = new GPUImageRenderer(new GPUImageFilter());
+        buffer.setRenderer(renderer);
+        renderer.setImageBitmap(createImage(width, height), true);
+
+        Bitmap expected = readLegacy(buffer, width, height);
+        Bitmap reuse = buffer.getBitmap(null);
+        assertTrue("Readbacks differ at " + width + "x" + height, expected.sameAs(reuse));
+        expected.recycle();
+
+        long[] legacy = new long[ITERATIONS];
+        long[] allocating = new long[ITERATIONS];
+        long[] reusing = new long[ITERATIONS];
+        for (int i = -WARM_UP; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            Bitmap bitmap = readLegacy(buffer, width, height);
+            long legacyEnd = System.nanoTime();
+            bitmap.recycle();
+
+            long allocatingStart = System.nanoTime();
+            bitmap = buffer.getBitmap(null);
+            long allocatingEnd = System.nanoTime();
+            bitmap.recycle();
+
+            long reusingStart = System.nanoTime();
+            buffer.getBitmap(reuse);
+            long reusingEnd = System.nanoTime();
+            if (i >= 0) {
+                legacy[i] = legacyEnd - start;
+                allocating[i] = allocatingEnd - allocatingStart;
+                reusing[i] = reusingEnd - reusingStart;
+            }
+        }
+        Log.i(TAG, String.format("%dx%d median ms: legacy %.1f, new %.1f, new reusing %.1f",
+                width, height, median(legacy), median(allocating), median(reusing)));
+
+        reuse.recycle();
+        renderer.deleteImage();
+        buffer.destroy();
+    }
+
+    /**
+     * Draws and reads back a frame like PixelBuffer.getBitmap() did before
+     * the renderer learned to draw upside down.
+     */
+    private static Bitmap readLegacy(final PixelBuffer buffer, final int width,
+                                     final int height) {
+        buffer.doDrawSimple();
+        buffer.doDrawSimple();
+
+        int[] iat = new int[width * height];
+        IntBuffer ib = IntBuffer.allocate(width * height);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ib);
+        int[] ia = ib.array();
+
+        // Convert upside down mirror-reversed image to right-side up normal
+        // image.
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                iat[(height - i - 1) * width + j] = ia[i * width + j];
+            }
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
+        return bitmap;
+    }
+
+    /**
+     * Creates an image which is not symmetric, so a readback of the wrong
+     * orientation fails the comparison.
+     */
+    private static Bitmap createImage(final int width, final int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, width / 3, height, Color.RED, Color.BLUE,
+                Shader.TileMode.MIRROR));
+        new Canvas(bitmap).drawRect(0, 0, width, height, paint);
+        return bitmap;
+    }
+
+    private static double median(final long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1e6;
+    }
+}